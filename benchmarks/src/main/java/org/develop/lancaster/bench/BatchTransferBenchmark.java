@@ -0,0 +1,102 @@
+package org.develop.lancaster.bench;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.transfer.BatchTransferTask;
+import org.develop.lancaster.core.transfer.TransferManifest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A folder of equal files per operation, fetched as whole-file batches by {@link BatchTransferTask}
+ * the way TransferManager fetches small files. Covers the per-file overhead of the batch protocol
+ * and the receive chunk handed to transferFrom ({@code transfer.batch.recv.chunk.mb}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchTransferBenchmark {
+
+    @Param({"100", "1000"})
+    public int files;
+
+    @Param({"4", "64", "1024"})
+    public int fileSizeKB;
+
+    @Param({"1", "16"})
+    public int recvChunkMB;
+
+    @Param({"4"})
+    public int streams;
+
+    private Path dir;
+    private TransferManifest manifest;
+    private List<File> destinations;
+    private long total;
+    private Sender sender;
+    private int port;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("lancaster-bench");
+        Loopback.configure(dir.resolve("state"), "nio");
+        System.setProperty("lancaster.transfer.batch.recv.chunk.mb", String.valueOf(recvChunkMB));
+        File source = Files.createDirectories(dir.resolve("source")).toFile();
+        for (int i = 0; i < files; i++) {
+            Loopback.writeRandom(new File(source, String.format("f%05d.bin", i)), fileSizeKB * 1024L + i);
+        }
+        manifest = TransferManifest.scan(source);
+        File targetDir = Files.createDirectories(dir.resolve("target")).toFile();
+        destinations = new ArrayList<>(manifest.size());
+        for (TransferManifest.Entry entry : manifest.getEntries()) {
+            destinations.add(TransferManifest.resolveSafely(targetDir, entry.getPath()));
+        }
+        total = manifest.getTotalSize();
+        sender = Loopback.serve(source);
+        port = Loopback.port(sender);
+        pool = Executors.newFixedThreadPool(streams);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        sender.stop();
+        Loopback.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        List<BatchTransferTask> tasks = new ArrayList<>();
+        int n = manifest.size();
+        for (int i = 0; i < streams; i++) {
+            int from = (int) ((long) n * i / streams);
+            int to = (int) ((long) n * (i + 1) / streams);
+            if (from < to) tasks.add(new BatchTransferTask(Loopback.HOST, port, manifest, destinations, from, to, null));
+        }
+        Loopback.runAll(pool, tasks);
+        return total;
+    }
+}
@@ -0,0 +1,124 @@
+package org.develop.lancaster.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with {@code -rf csv} and fails on regressions.
+ *
+ * Usage: CompareResults baseline.csv current.csv [thresholdPercent=10]
+ *
+ * Results are matched on benchmark and parameters. A result regresses when it is worse than the
+ * baseline by more than the threshold and by more than both error margins together, so noise
+ * alone does not fail a run. Exits with 1 when anything regressed.
+ */
+public final class CompareResults {
+
+    private record Result(String mode, double score, double error, String unit) {}
+
+    private CompareResults() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults baseline.csv current.csv [thresholdPercent=10]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(Path.of(args[0]));
+        Map<String, Result> current = read(Path.of(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> e : current.entrySet()) {
+            Result now = e.getValue();
+            Result before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.printf("  new      %s: %.3f %s%n", e.getKey(), now.score(), now.unit());
+                continue;
+            }
+            // Throughput modes are better higher, time modes better lower
+            boolean higherIsBetter = now.mode().equals("thrpt");
+            double change = (now.score() - before.score()) / before.score() * 100.0;
+            double worse = higherIsBetter ? -change : change;
+            boolean beyondNoise = Math.abs(now.score() - before.score()) > now.error() + before.error();
+            String verdict = "ok";
+            if (worse > threshold && beyondNoise) {
+                verdict = "WORSE";
+                regressions++;
+            } else if (-worse > threshold && beyondNoise) {
+                verdict = "better";
+            }
+            System.out.printf("  %-8s %s: %.3f -> %.3f %s (%+.1f%%)%n",
+                    verdict, e.getKey(), before.score(), now.score(), now.unit(), change);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) System.out.printf("  missing  %s%n", key);
+        }
+
+        System.out.printf("%d result(s) compared, %d regression(s) beyond %.0f%%%n",
+                current.size(), regressions, threshold);
+        if (regressions > 0) System.exit(1);
+    }
+
+    // Benchmark plus its parameters -> result, in file order
+    private static Map<String, Result> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        if (lines.isEmpty()) throw new IOException(file + " is empty");
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+        int error = -1;
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).startsWith("Score Error")) error = i;
+        }
+        if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+            throw new IOException(file + " is not a JMH CSV result file");
+        }
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            List<String> cols = split(line);
+            StringBuilder key = new StringBuilder(cols.get(benchmark));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < cols.size() && !cols.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(cols.get(i));
+                }
+            }
+            double err = error >= 0 ? parse(cols.get(error)) : 0;
+            results.put(key.toString(), new Result(cols.get(mode), parse(cols.get(score)), err, cols.get(unit)));
+        }
+        return results;
+    }
+
+    private static double parse(String value) {
+        // JMH writes NaN for the error of single-iteration runs
+        double v = Double.parseDouble(value);
+        return Double.isNaN(v) ? 0 : v;
+    }
+
+    // One CSV line; JMH quotes every text field and never embeds quotes in them
+    private static List<String> split(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder col = new StringBuilder();
+        boolean quoted = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                cols.add(col.toString());
+                col.setLength(0);
+            } else {
+                col.append(c);
+            }
+        }
+        cols.add(col.toString());
+        return cols;
+    }
+}
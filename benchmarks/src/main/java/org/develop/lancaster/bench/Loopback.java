@@ -0,0 +1,85 @@
+package org.develop.lancaster.bench;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.util.TaskExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/** Shared setup of the benchmarks: data files, an in-process sender on a free port, cleanup. */
+final class Loopback {
+
+    static final String HOST = "127.0.0.1";
+    static final long MB = 1024L * 1024L;
+
+    private Loopback() {}
+
+    /**
+     * Settings every benchmark runs with: state under {@code dataDir}, and no compression, swarm,
+     * stream tuning or disk-type handling, so only the path being measured varies.
+     */
+    static void configure(Path dataDir, String engine) {
+        System.setProperty("lancaster.data.dir", dataDir.toString());
+        System.setProperty("lancaster.sender.engine", engine);
+        System.setProperty("lancaster.transfer.compression", "off");
+        System.setProperty("lancaster.swarm.enabled", "false");
+        System.setProperty("lancaster.multicast.enabled", "false");
+        System.setProperty("lancaster.transfer.streams.tune", "false");
+        System.setProperty("lancaster.storage.kind", "ssd");
+    }
+
+    /** Incompressible content with a fixed seed, so every run moves the same bytes. */
+    static void writeRandom(File file, long size) throws IOException {
+        byte[] block = new byte[(int) MB];
+        Random random = new Random(size);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long pos = 0; pos < size; pos += block.length) {
+                random.nextBytes(block);
+                raf.write(block, 0, (int) Math.min(block.length, size - pos));
+            }
+        }
+    }
+
+    static void preallocate(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+    }
+
+    /** Starts serving {@code file} (or folder) and returns the sender once it listens. */
+    static Sender serve(File file) throws InterruptedException {
+        Sender sender = new Sender(null, 0);
+        TaskExecutors.start("bench-sender", true, () -> sender.startServing(file));
+        if (sender.awaitPort(10_000) <= 0) throw new IllegalStateException("Sender did not start");
+        return sender;
+    }
+
+    static int port(Sender sender) throws InterruptedException {
+        return sender.awaitPort(0);
+    }
+
+    /** Runs the tasks in parallel and fails if any of them did. */
+    static void runAll(ExecutorService pool, List<? extends Callable<Boolean>> tasks) throws Exception {
+        List<Future<Boolean>> futures = pool.invokeAll(tasks);
+        for (Future<Boolean> f : futures) {
+            if (!Boolean.TRUE.equals(f.get())) throw new IllegalStateException("A transfer task failed");
+        }
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) return;
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+}
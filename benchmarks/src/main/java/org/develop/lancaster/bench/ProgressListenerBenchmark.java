@@ -0,0 +1,122 @@
+package org.develop.lancaster.bench;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.transfer.ChunkScheduler;
+import org.develop.lancaster.core.transfer.ChunkTransferTask;
+import org.develop.lancaster.core.transfer.ProgressBus;
+import org.develop.lancaster.core.transfer.ProgressListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What progress reporting costs a download. Workers call their listener after every receive
+ * buffer (256 KB), so a 256 MB file makes about a thousand calls per worker:
+ * "none" passes no listener, "counting" folds worker totals into one counter the way
+ * TransferManager does, "posting" also hands every update to another thread as a fresh task,
+ * like the UI's Platform.runLater used to. "bus" reports into a {@link ProgressBus} that hands
+ * snapshots to the same thread every 100 ms, as the UI does now.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProgressListenerBenchmark {
+
+    @Param({"none", "counting", "posting", "bus"})
+    public String listener;
+
+    @Param({"256"})
+    public int fileSizeMB;
+
+    @Param({"4"})
+    public int streams;
+
+    private Path dir;
+    private File target;
+    private long size;
+    private Sender sender;
+    private int port;
+    private ExecutorService pool;
+    private ExecutorService ui;
+    private ProgressBus<String> bus;
+    private final AtomicLong shown = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("lancaster-bench");
+        Loopback.configure(dir.resolve("state"), "nio");
+        size = fileSizeMB * Loopback.MB;
+        File source = dir.resolve("source.bin").toFile();
+        Loopback.writeRandom(source, size);
+        target = dir.resolve("target.bin").toFile();
+        Loopback.preallocate(target, size);
+        sender = Loopback.serve(source);
+        port = Loopback.port(sender);
+        pool = Executors.newFixedThreadPool(streams);
+        ui = Executors.newSingleThreadExecutor();
+        bus = new ProgressBus<>(100, ui, s -> shown.set(s.totalBytes()));
+        bus.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        bus.stop();
+        pool.shutdownNow();
+        ui.shutdownNow();
+        sender.stop();
+        Loopback.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        ChunkScheduler scheduler = ChunkScheduler.forFile(size, 16 * Loopback.MB);
+        AtomicLong global = new AtomicLong();
+        ProgressBus.Channel<String> channel = "bus".equals(listener) ? bus.open("download", size).completeAtTotal() : null;
+        List<ChunkTransferTask> tasks = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            ProgressListener l = channel != null ? channel.source() : listener(global);
+            tasks.add(new ChunkTransferTask(Loopback.HOST, port, List.of(target), scheduler, null, i, l));
+        }
+        Loopback.runAll(pool, tasks);
+        if (!scheduler.isDone()) throw new IllegalStateException("Download incomplete", scheduler.getFailure());
+        return global.get();
+    }
+
+    private ProgressListener listener(AtomicLong global) {
+        if ("none".equals(listener)) return null;
+        boolean posting = "posting".equals(listener);
+        AtomicLong lastReported = new AtomicLong();
+        return (current, total) -> {
+            long prev = lastReported.getAndAccumulate(current, Math::max);
+            if (current <= prev) return;
+            long now = global.addAndGet(current - prev);
+            if (posting) {
+                double fraction = (double) now / size;
+                ui.execute(() -> shown.set((long) (fraction * 1000)));
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+package org.develop.lancaster.bench;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.transfer.BlockChecksums;
+import org.develop.lancaster.core.transfer.ChunkScheduler;
+import org.develop.lancaster.core.transfer.ChunkTransferTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One whole-file download per operation: {@code streams} {@link ChunkTransferTask} workers pulling
+ * {@code chunkSizeMB} ranges from an in-process {@link Sender}, the way TransferManager runs a
+ * single-source download. Covers the receive loop (with and without block checksums, either
+ * receive backend) and the sender's engines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RangeTransferBenchmark {
+
+    @Param({"64", "512"})
+    public int fileSizeMB;
+
+    @Param({"1", "4", "8"})
+    public int streams;
+
+    @Param({"1", "4", "16"})
+    public int chunkSizeMB;
+
+    @Param({"nio"})
+    public String engine;
+
+    @Param({"buffered"})
+    public String backend;
+
+    @Param({"false"})
+    public boolean checksums;
+
+    private Path dir;
+    private File target;
+    private long size;
+    private Sender sender;
+    private int port;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("lancaster-bench");
+        Loopback.configure(dir.resolve("state"), engine);
+        System.setProperty("lancaster.transfer.receive.backend", backend);
+        size = fileSizeMB * Loopback.MB;
+        File source = dir.resolve("source.bin").toFile();
+        Loopback.writeRandom(source, size);
+        target = dir.resolve("target.bin").toFile();
+        Loopback.preallocate(target, size);
+        sender = Loopback.serve(source);
+        port = Loopback.port(sender);
+        pool = Executors.newFixedThreadPool(streams);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        sender.stop();
+        Loopback.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        ChunkScheduler scheduler = ChunkScheduler.forFile(size, chunkSizeMB * Loopback.MB);
+        BlockChecksums sums = checksums ? new BlockChecksums(new long[]{size}) : null;
+        List<ChunkTransferTask> tasks = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            tasks.add(new ChunkTransferTask(Loopback.HOST, port, List.of(target), scheduler, sums, i, null));
+        }
+        Loopback.runAll(pool, tasks);
+        if (!scheduler.isDone()) throw new IllegalStateException("Download incomplete", scheduler.getFailure());
+        return size;
+    }
+}
@@ -0,0 +1,100 @@
+package org.develop.lancaster.bench;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.transfer.ChunkScheduler;
+import org.develop.lancaster.core.transfer.ChunkTransferTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sender's transferTo loop against the socket buffer sizes: how much ClientHandler hands to
+ * one transferTo call ({@code transfer.send.chunk.mb}, 64 MB by default) and the send and receive
+ * buffers both ends ask for (0 keeps the OS default). Runs the blocking engine, where the
+ * send chunk matters; ranges are large so every request spans several send chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SocketTuningBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int sendChunkMB;
+
+    @Param({"0", "256", "4096"})
+    public int sendBufferKB;
+
+    @Param({"0", "256", "2048"})
+    public int receiveBufferKB;
+
+    @Param({"512"})
+    public int fileSizeMB;
+
+    @Param({"2"})
+    public int streams;
+
+    private Path dir;
+    private File target;
+    private long size;
+    private Sender sender;
+    private int port;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("lancaster-bench");
+        Loopback.configure(dir.resolve("state"), "blocking");
+        System.setProperty("lancaster.transfer.send.chunk.mb", String.valueOf(sendChunkMB));
+        System.setProperty("lancaster.net.send.buffer.kb", String.valueOf(sendBufferKB));
+        System.setProperty("lancaster.net.receive.buffer.kb", String.valueOf(receiveBufferKB));
+        size = fileSizeMB * Loopback.MB;
+        File source = dir.resolve("source.bin").toFile();
+        Loopback.writeRandom(source, size);
+        target = dir.resolve("target.bin").toFile();
+        Loopback.preallocate(target, size);
+        sender = Loopback.serve(source);
+        port = Loopback.port(sender);
+        pool = Executors.newFixedThreadPool(streams);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        sender.stop();
+        Loopback.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        ChunkScheduler scheduler = ChunkScheduler.forFile(size, size / streams);
+        List<ChunkTransferTask> tasks = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            tasks.add(new ChunkTransferTask(Loopback.HOST, port, List.of(target), scheduler, null, i, null));
+        }
+        Loopback.runAll(pool, tasks);
+        if (!scheduler.isDone()) throw new IllegalStateException("Download incomplete", scheduler.getFailure());
+        return size;
+    }
+}
@@ -3,9 +3,13 @@ module org.develop.lancaster {
     requires javafx.fxml;
     requires java.base;
     requires java.logging;
+    requires java.management; // transfer metrics over JMX
+    requires jdk.httpserver; // text dump of the metrics
+    requires jdk.unsupported; // Unsafe.invokeCleaner, to unmap receive windows eagerly
 
     // Export core packages so other parts of the app can see them
     exports org.develop.lancaster.core.discovery;
+    exports org.develop.lancaster.core.metrics; // MXBean interfaces must be visible to JMX
     exports org.develop.lancaster.core.network;
     exports org.develop.lancaster.core.transfer;
     exports org.develop.lancaster.ui; // We are about to create this
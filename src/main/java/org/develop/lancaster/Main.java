@@ -1,10 +1,16 @@
 package org.develop.lancaster;
 
 import javafx.application.Application;
+import org.develop.lancaster.cli.Headless;
 import org.develop.lancaster.ui.MainWindow;
 
 public class Main {
     public static void main(String[] args) {
+        // serve/get/peers run without the JavaFX toolkit
+        if (Headless.handles(args)) {
+            Headless.main(args);
+            return;
+        }
         Application.launch(MainWindow.class, args);
     }
 }
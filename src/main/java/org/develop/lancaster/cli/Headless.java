@@ -0,0 +1,268 @@
+package org.develop.lancaster.cli;
+
+import org.develop.lancaster.core.discovery.DiscoveryService;
+import org.develop.lancaster.core.discovery.PeerInfo;
+import org.develop.lancaster.core.metrics.MetricsEndpoint;
+import org.develop.lancaster.core.metrics.RateMeter;
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.transfer.BandwidthShaper;
+import org.develop.lancaster.core.transfer.ProgressListener;
+import org.develop.lancaster.core.transfer.TransferManager;
+import org.develop.lancaster.core.transfer.TransferRuntime;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.TaskExecutors;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Command line front end that never touches JavaFX: serving from a build server or NAS, scripted
+ * downloads on CI agents. Runs from the plain class path without the JavaFX jars, e.g.
+ * {@code java -cp LAN-Caster-1.0-SNAPSHOT.jar org.develop.lancaster.cli.Headless serve dist/}
+ *
+ * serve keeps running (a daemon in all but name) until it is stopped; it announces itself to
+ * LAN-Caster windows on the network like the GUI does. get exits with 0 once the download is
+ * complete and verified, 1 if it failed.
+ */
+public final class Headless {
+
+    private static final int DEFAULT_PORT = 5000;
+    private static final long PRESENCE_INTERVAL_MS = 3000;
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: lan-caster <command> [options]",
+            "  serve <file|folder> [--port P] [--receivers N] [--name NAME] [--no-announce]",
+            "        Hosts the file or folder until stopped (Ctrl+C, SIGTERM)",
+            "  get <peer[:port]> [--to DIR] [--also ip,ip] [--limit MBPS]",
+            "        Downloads what the peer hosts; exit code 0 once complete and verified",
+            "  peers [--wait SECONDS]",
+            "        Lists the LAN-Caster peers that announce themselves",
+            "Options for all commands: --quiet (warnings only)");
+
+    private Headless() {}
+
+    /** Whether {@code args} name a command of this front end, so the GUI is not started. */
+    public static boolean handles(String[] args) {
+        return args.length > 0 && List.of("serve", "get", "peers", "help", "--help").contains(args[0]);
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        if (args.length == 0 || args[0].equals("help") || args[0].equals("--help")) {
+            System.out.println(USAGE);
+            return args.length == 0 ? 2 : 0;
+        }
+        Options opts;
+        try {
+            opts = Options.parse(Arrays.copyOfRange(args, 1, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (opts.flag("quiet")) Logger.getLogger("").setLevel(Level.WARNING);
+        MetricsEndpoint.startIfConfigured();
+
+        try {
+            switch (args[0]) {
+                case "serve":
+                    return serve(opts);
+                case "get":
+                    return get(opts);
+                case "peers":
+                    return peers(opts);
+                default:
+                    System.err.println("Unknown command " + args[0]);
+                    System.err.println(USAGE);
+                    return 2;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            TransferRuntime.shutdownShared();
+        }
+    }
+
+    private static int serve(Options opts) throws InterruptedException {
+        File file = new File(opts.positional(0, "file or folder to serve"));
+        if (!file.exists()) {
+            System.err.println(file + " does not exist");
+            return 2;
+        }
+        Sender sender = new Sender(null, opts.intValue("port", DEFAULT_PORT));
+        int receivers = opts.intValue("receivers", 0);
+        if (receivers > 1) sender.enableMulticast(receivers);
+        Runtime.getRuntime().addShutdownHook(new Thread(sender::stop, "lancaster-shutdown"));
+
+        if (!opts.flag("no-announce")) {
+            DiscoveryService discovery = new DiscoveryService();
+            discovery.setLocalName(opts.value("name", Config.getDeviceName()));
+            TaskExecutors.start("lancaster-presence", true, () -> {
+                while (true) {
+                    discovery.broadcastPresence();
+                    try {
+                        Thread.sleep(PRESENCE_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        // Blocks while serving; returns when the port cannot be opened or the sender is stopped
+        sender.startServing(file);
+        return sender.awaitPort(0) > 0 ? 0 : 1;
+    }
+
+    private static int get(Options opts) throws InterruptedException {
+        String peer = opts.positional(0, "peer address");
+        int port = DEFAULT_PORT;
+        int colon = peer.lastIndexOf(':');
+        if (colon > 0 && peer.indexOf(':') == colon) {
+            port = Integer.parseInt(peer.substring(colon + 1));
+            peer = peer.substring(0, colon);
+        }
+        File saveDir = new File(opts.value("to", "."));
+        if (!saveDir.isDirectory() && !saveDir.mkdirs()) {
+            System.err.println("Cannot create " + saveDir);
+            return 2;
+        }
+        List<String> others = new ArrayList<>();
+        for (String ip : opts.value("also", "").split(",")) {
+            if (!ip.isBlank()) others.add(ip.trim());
+        }
+
+        AtomicLong current = new AtomicLong();
+        AtomicLong total = new AtomicLong();
+        AtomicBoolean succeeded = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        TransferManager manager = new TransferManager(port);
+        BandwidthShaper.Transfer shaping = manager.downloadFile(peer, others, saveDir.getPath(), new ProgressListener() {
+            @Override
+            public void onProgress(long currentBytes, long totalBytes) {
+                current.accumulateAndGet(currentBytes, Math::max);
+                total.set(totalBytes);
+            }
+
+            @Override
+            public void onFinished(boolean success) {
+                succeeded.set(success);
+                finished.countDown();
+            }
+        });
+        long limit = opts.intValue("limit", 0);
+        if (limit > 0) shaping.setRate(BandwidthShaper.fromMbps(limit));
+
+        boolean quiet = opts.flag("quiet");
+        long started = System.nanoTime();
+        // Starts with the first poll, so bytes kept from an earlier attempt do not count as a burst
+        RateMeter rate = new RateMeter();
+        while (!finished.await(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            long now = current.get();
+            rate.sample(now, System.nanoTime());
+            if (!quiet && total.get() > 0) {
+                long eta = rate.etaSeconds(total.get() - now);
+                System.out.printf("%5.1f%%  %,d of %,d bytes  %.1f MB/s  %s%n", 100.0 * now / total.get(), now, total.get(),
+                        rate.rate() / (1024 * 1024), eta < 0 ? "stalled" : eta + " s left");
+            }
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        if (!succeeded.get()) {
+            System.err.println("Download from " + peer + " failed; run again to resume");
+            return 1;
+        }
+        if (!quiet) {
+            System.out.printf("Done: %,d bytes in %.1f s (%.1f MB/s, peak %.1f MB/s)%n", total.get(), seconds,
+                    total.get() / Math.max(1e-3, seconds) / (1024 * 1024), rate.peak() / (1024 * 1024));
+        }
+        return 0;
+    }
+
+    private static int peers(Options opts) throws InterruptedException {
+        Map<String, PeerInfo> found = new ConcurrentHashMap<>();
+        DiscoveryService discovery = new DiscoveryService();
+        discovery.setOnPeerFound(pi -> found.put(pi.getIp(), pi));
+        TaskExecutors.start("lancaster-discovery", true, discovery);
+        // Peers announce themselves every few seconds; asking them is not part of the protocol
+        Thread.sleep(TimeUnit.SECONDS.toMillis(opts.intValue("wait", 4)));
+        discovery.stop();
+        if (found.isEmpty()) {
+            System.err.println("No peers found");
+            return 1;
+        }
+        for (PeerInfo pi : found.values()) {
+            String name = Config.getPeerName(pi.getIp());
+            System.out.println(pi.getIp() + "\t" + (name != null ? name : pi.getName() != null ? pi.getName() : ""));
+        }
+        return 0;
+    }
+
+    // --key value, --flag and positional arguments, in any order
+    private static final class Options {
+        private static final List<String> FLAGS = List.of("quiet", "no-announce");
+
+        private final Map<String, String> values = new HashMap<>();
+        private final List<String> positional = new ArrayList<>();
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("--")) {
+                    o.positional.add(args[i]);
+                    continue;
+                }
+                String key = args[i].substring(2);
+                if (FLAGS.contains(key)) {
+                    o.values.put(key, "true");
+                } else if (i + 1 < args.length) {
+                    o.values.put(key, args[++i]);
+                } else {
+                    throw new IllegalArgumentException("--" + key + " needs a value");
+                }
+            }
+            return o;
+        }
+
+        String positional(int index, String what) {
+            if (index >= positional.size()) throw new IllegalArgumentException("Missing " + what);
+            return positional.get(index);
+        }
+
+        String value(String key, String fallback) {
+            return values.getOrDefault(key, fallback);
+        }
+
+        int intValue(String key, int fallback) {
+            String v = values.get(key);
+            if (v == null) return fallback;
+            try {
+                return Integer.parseInt(v);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("--" + key + " needs a number, not " + v);
+            }
+        }
+
+        boolean flag(String key) {
+            return values.containsKey(key);
+        }
+    }
+}
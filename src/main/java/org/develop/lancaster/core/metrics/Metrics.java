@@ -0,0 +1,250 @@
+package org.develop.lancaster.core.metrics;
+
+import org.develop.lancaster.core.util.LatencyHistogram;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide counters of the transfer paths: bytes per peer, open connections, range latency,
+ * time spent in transferTo/transferFrom, stalls and retries. Recording only bumps striped counters
+ * ({@link LongAdder}, {@link LatencyHistogram}, {@link RateMeter}), so it never locks or allocates
+ * and stays on. Hot paths look up their {@link Peer} once per connection and keep it. Once traffic
+ * starts, a daemon timer samples the global and per-peer rates every {@link #SAMPLE_MILLIS} ms.
+ *
+ * Shown over JMX ({@code org.develop.lancaster:type=Transfers}, one {@code type=Peer} bean per
+ * peer) and as text by {@link #dump()}, which {@link MetricsEndpoint} serves over HTTP.
+ */
+public final class Metrics implements MetricsMXBean {
+
+    // A single blocking socket call at least this long counts as a stall: the link stopped moving
+    public static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    public static final long SAMPLE_MILLIS = 1000;
+
+    private static final String DOMAIN = "org.develop.lancaster";
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+    private static final Metrics SHARED = register(new Metrics());
+
+    /** Bytes moved with one peer, either direction. */
+    public static final class Peer implements PeerMetricsMXBean {
+        private final String address;
+        private final Metrics owner;
+        private final RateMeter in = new RateMeter();
+        private final RateMeter out = new RateMeter();
+
+        private Peer(String address, Metrics owner) {
+            this.address = address;
+            this.owner = owner;
+        }
+
+        public void received(long bytes) {
+            in.add(bytes);
+            owner.bytesIn.add(bytes);
+        }
+
+        public void sent(long bytes) {
+            out.add(bytes);
+            owner.bytesOut.add(bytes);
+        }
+
+        @Override public String getAddress() { return address; }
+        /** Bytes per second received from the peer, as of the last sample. */
+        public RateMeter inRate() { return in; }
+
+        /** Bytes per second sent to the peer, as of the last sample. */
+        public RateMeter outRate() { return out; }
+
+        @Override public long getBytesIn() { return in.total(); }
+        @Override public long getBytesOut() { return out.total(); }
+        @Override public long getBytesInPerSecond() { return (long) in.rate(); }
+        @Override public long getBytesOutPerSecond() { return (long) out.rate(); }
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final RateMeter bytesIn = new RateMeter();
+    private final RateMeter bytesOut = new RateMeter();
+    private final LongAdder servingConnections = new LongAdder();
+    private final LongAdder downloadConnections = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder requeues = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder transferToNanos = new LongAdder();
+    private final LongAdder transferFromNanos = new LongAdder();
+    private final LatencyHistogram rangeLatency = new LatencyHistogram();
+    private final LatencyHistogram transferToCalls = new LatencyHistogram();
+    private final LatencyHistogram transferFromCalls = new LatencyHistogram();
+    private volatile boolean jmx;
+    private volatile ScheduledExecutorService sampler;
+
+    private Metrics() {}
+
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    public Peer peer(String address) {
+        Peer p = peers.get(address);
+        if (p != null) return p;
+        startSampling();
+        return peers.computeIfAbsent(address, a -> {
+            Peer created = new Peer(a, this);
+            if (jmx) registerBean(created, "type=Peer,address=" + ObjectName.quote(a));
+            return created;
+        });
+    }
+
+    /** Bytes per second received from all peers, as of the last sample. */
+    public RateMeter inRate() { return bytesIn; }
+
+    /** Bytes per second sent to all peers, as of the last sample. */
+    public RateMeter outRate() { return bytesOut; }
+
+    public void servingOpened() { servingConnections.increment(); }
+    public void servingClosed() { servingConnections.decrement(); }
+    public void downloadOpened() { downloadConnections.increment(); }
+    public void downloadClosed() { downloadConnections.decrement(); }
+
+    /** A range failed and goes back to the queue as a new attempt. */
+    public void retried() { retries.increment(); }
+
+    /** A range went back to the queue because its source left, not because it failed. */
+    public void requeued() { requeues.increment(); }
+
+    /** A blocking socket read of {@code nanos}; only long ones are counted, as stalls. */
+    public void socketRead(long nanos) {
+        if (nanos >= STALL_NANOS) stalls.increment();
+    }
+
+    public void transferTo(long nanos) {
+        transferToNanos.add(nanos);
+        transferToCalls.record(nanos);
+        if (nanos >= STALL_NANOS) stalls.increment();
+    }
+
+    public void transferFrom(long nanos) {
+        transferFromNanos.add(nanos);
+        transferFromCalls.record(nanos);
+        if (nanos >= STALL_NANOS) stalls.increment();
+    }
+
+    /** A range was committed {@code nanos} after a worker took it. */
+    public void rangeCommitted(long nanos) {
+        rangeLatency.record(nanos);
+    }
+
+    /** Range latency at quantile {@code q} (0..1) in nanoseconds, as an upper bound; 0 before any range. */
+    public long rangeLatency(double q) {
+        return rangeLatency.percentile(q);
+    }
+
+    /** Starts the range latency over, so figures cover one run only. */
+    public void resetRangeLatency() {
+        rangeLatency.reset();
+    }
+
+    @Override public long getBytesIn() { return bytesIn.total(); }
+    @Override public long getBytesOut() { return bytesOut.total(); }
+    @Override public long getBytesInPerSecond() { return (long) bytesIn.rate(); }
+    @Override public long getBytesOutPerSecond() { return (long) bytesOut.rate(); }
+    @Override public long getPeakBytesInPerSecond() { return (long) bytesIn.peak(); }
+    @Override public long getPeakBytesOutPerSecond() { return (long) bytesOut.peak(); }
+    @Override public long getServingConnections() { return servingConnections.sum(); }
+    @Override public long getDownloadConnections() { return downloadConnections.sum(); }
+    @Override public long getRetries() { return retries.sum(); }
+    @Override public long getRequeues() { return requeues.sum(); }
+    @Override public long getStalls() { return stalls.sum(); }
+    @Override public long getRangeLatencyP50Micros() { return rangeLatency.percentile(0.5) / 1000; }
+    @Override public long getRangeLatencyP99Micros() { return rangeLatency.percentile(0.99) / 1000; }
+    @Override public long getTransferToMillis() { return transferToNanos.sum() / 1_000_000; }
+    @Override public long getTransferToP99Micros() { return transferToCalls.percentile(0.99) / 1000; }
+    @Override public long getTransferFromMillis() { return transferFromNanos.sum() / 1_000_000; }
+    @Override public long getTransferFromP99Micros() { return transferFromCalls.percentile(0.99) / 1000; }
+
+    /** All figures in the Prometheus text format, one per line. */
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder(1024);
+        line(sb, "lancaster_bytes_in_total", "", bytesIn.total());
+        line(sb, "lancaster_bytes_out_total", "", bytesOut.total());
+        line(sb, "lancaster_bytes_in_per_second", "", bytesIn.rate());
+        line(sb, "lancaster_bytes_out_per_second", "", bytesOut.rate());
+        line(sb, "lancaster_bytes_in_per_second_peak", "", bytesIn.peak());
+        line(sb, "lancaster_bytes_out_per_second_peak", "", bytesOut.peak());
+        line(sb, "lancaster_connections", "{side=\"serving\"}", servingConnections.sum());
+        line(sb, "lancaster_connections", "{side=\"download\"}", downloadConnections.sum());
+        line(sb, "lancaster_retries_total", "", retries.sum());
+        line(sb, "lancaster_requeues_total", "", requeues.sum());
+        line(sb, "lancaster_stalls_total", "", stalls.sum());
+        quantiles(sb, "lancaster_range_latency_seconds", rangeLatency);
+        line(sb, "lancaster_transfer_to_seconds_total", "", transferToNanos.sum() / 1e9);
+        quantiles(sb, "lancaster_transfer_to_call_seconds", transferToCalls);
+        line(sb, "lancaster_transfer_from_seconds_total", "", transferFromNanos.sum() / 1e9);
+        quantiles(sb, "lancaster_transfer_from_call_seconds", transferFromCalls);
+        for (Peer p : peers.values()) {
+            String label = "{peer=\"" + p.address + "\"}";
+            line(sb, "lancaster_peer_bytes_in_total", label, p.in.total());
+            line(sb, "lancaster_peer_bytes_out_total", label, p.out.total());
+            line(sb, "lancaster_peer_bytes_in_per_second", label, p.in.rate());
+            line(sb, "lancaster_peer_bytes_out_per_second", label, p.out.rate());
+        }
+        return sb.toString();
+    }
+
+    private static void quantiles(StringBuilder sb, String name, LatencyHistogram h) {
+        for (double q : new double[]{0.5, 0.9, 0.99}) {
+            line(sb, name, "{quantile=\"" + q + "\"}", h.percentile(q) / 1e9);
+        }
+        line(sb, name + "_count", "", h.count());
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, Number value) {
+        sb.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private void startSampling() {
+        if (sampler != null) return;
+        synchronized (this) {
+            if (sampler != null) return;
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "lancaster-rates");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleAtFixedRate(this::sampleRates, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+            sampler = timer;
+        }
+    }
+
+    private void sampleRates() {
+        bytesIn.sample();
+        bytesOut.sample();
+        for (Peer p : peers.values()) {
+            p.in.sample();
+            p.out.sample();
+        }
+    }
+
+    private static Metrics register(Metrics metrics) {
+        metrics.jmx = registerBean(metrics, "type=Transfers");
+        return metrics;
+    }
+
+    private static boolean registerBean(Object bean, String properties) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(DOMAIN + ":" + properties));
+            return true;
+        } catch (Exception | LinkageError e) {
+            // No JMX in this runtime (or a name clash): the figures are still kept and dumped
+            logger.log(Level.FINE, "[Metrics] Not registered with JMX: " + properties, e);
+            return false;
+        }
+    }
+}
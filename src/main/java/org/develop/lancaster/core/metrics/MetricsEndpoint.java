@@ -0,0 +1,52 @@
+package org.develop.lancaster.core.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.develop.lancaster.core.util.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves {@link Metrics#dump()} as plain text on {@code GET /metrics} when
+ * {@code metrics.http.port} is set; by default only to the local machine.
+ */
+public final class MetricsEndpoint {
+
+    private static final Logger logger = Logger.getLogger(MetricsEndpoint.class.getName());
+    private static HttpServer server;
+
+    private MetricsEndpoint() {}
+
+    /** Starts the endpoint if it is configured and not running yet. */
+    public static synchronized void startIfConfigured() {
+        int port = Config.getMetricsHttpPort();
+        if (port <= 0 || server != null) return;
+        try {
+            server = HttpServer.create(new InetSocketAddress(Config.getMetricsHttpBind(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = Metrics.shared().dump().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // Answered on the server's own thread; a dump takes microseconds
+            server.setExecutor(null);
+            server.start();
+            logger.info(() -> "[Metrics] Serving http://" + Config.getMetricsHttpBind() + ":" + port + "/metrics");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "[Metrics] Cannot open port " + port, e);
+            server = null;
+        }
+    }
+
+    public static synchronized void stop() {
+        if (server != null) server.stop(0);
+        server = null;
+    }
+}
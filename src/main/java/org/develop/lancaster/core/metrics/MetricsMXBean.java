@@ -0,0 +1,25 @@
+package org.develop.lancaster.core.metrics;
+
+/** What {@link Metrics} shows over JMX, as {@code org.develop.lancaster:type=Transfers}. */
+public interface MetricsMXBean {
+    long getBytesIn();
+    long getBytesOut();
+    long getBytesInPerSecond();
+    long getBytesOutPerSecond();
+    long getPeakBytesInPerSecond();
+    long getPeakBytesOutPerSecond();
+    long getServingConnections();
+    long getDownloadConnections();
+    long getRetries();
+    long getRequeues();
+    long getStalls();
+    long getRangeLatencyP50Micros();
+    long getRangeLatencyP99Micros();
+    long getTransferToMillis();
+    long getTransferToP99Micros();
+    long getTransferFromMillis();
+    long getTransferFromP99Micros();
+
+    /** Everything above plus the per-peer figures, in the text format of {@link Metrics#dump()}. */
+    String dump();
+}
@@ -0,0 +1,10 @@
+package org.develop.lancaster.core.metrics;
+
+/** Per-peer figures over JMX, as {@code org.develop.lancaster:type=Peer,address=<ip>}. */
+public interface PeerMetricsMXBean {
+    String getAddress();
+    long getBytesIn();
+    long getBytesOut();
+    long getBytesInPerSecond();
+    long getBytesOutPerSecond();
+}
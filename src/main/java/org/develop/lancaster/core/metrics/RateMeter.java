@@ -0,0 +1,96 @@
+package org.develop.lancaster.core.metrics;
+
+import org.develop.lancaster.core.util.Config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Current, peak and expected rate of a byte stream. Counting ({@link #add}) only bumps a striped
+ * counter, so it can run on every chunk callback; the owner calls {@link #sample} now and then
+ * (the UI tick, a timer) and the rate is an exponentially weighted average of the intervals
+ * between samples, with a time constant of {@code rate.smoothing.ms}. Unlike bytes over uptime it
+ * follows the transfer, and unlike the last interval alone it does not jump with every burst.
+ */
+public final class RateMeter {
+
+    // Below this the average is only the tail of a finished burst; shown as stopped
+    private static final double IDLE_RATE = 1024;
+
+    private final LongAdder bytes = new LongAdder();
+    private final double smoothingNanos;
+
+    // Guarded by this
+    private long lastBytes;
+    private long lastNanos = -1;
+
+    private volatile double rate;
+    private volatile double peak;
+
+    public RateMeter() {
+        this(Config.getRateSmoothingMillis());
+    }
+
+    public RateMeter(long smoothingMillis) {
+        this.smoothingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, smoothingMillis));
+    }
+
+    public void add(long n) {
+        if (n > 0) bytes.add(n);
+    }
+
+    /** Bytes counted by {@link #add}. */
+    public long total() {
+        return bytes.sum();
+    }
+
+    /** Samples the bytes counted by {@link #add}; see {@link #sample(long, long)}. */
+    public double sample() {
+        return sample(bytes.sum(), System.nanoTime());
+    }
+
+    /**
+     * Folds in the interval since the last sample, for a stream that has moved {@code totalBytes}
+     * by {@code nowNanos} (from {@link #add} or a counter kept elsewhere). Returns that interval's
+     * own rate in bytes per second, or -1 on the first sample, which only sets the start.
+     */
+    public synchronized double sample(long totalBytes, long nowNanos) {
+        if (lastNanos < 0 || nowNanos <= lastNanos) {
+            if (lastNanos < 0) {
+                lastBytes = totalBytes;
+                lastNanos = nowNanos;
+            }
+            return -1;
+        }
+        long elapsed = nowNanos - lastNanos;
+        double interval = Math.max(0, totalBytes - lastBytes) * 1e9 / elapsed;
+        lastBytes = totalBytes;
+        lastNanos = nowNanos;
+
+        double smoothed = peak == 0 ? interval : rate + (1 - Math.exp(-elapsed / smoothingNanos)) * (interval - rate);
+        if (interval == 0 && smoothed < IDLE_RATE) smoothed = 0;
+        rate = smoothed;
+        if (smoothed > peak) peak = smoothed;
+        return interval;
+    }
+
+    /** Bytes per second, as of the last sample. */
+    public double rate() {
+        return rate;
+    }
+
+    /** Highest {@link #rate()} seen. */
+    public double peak() {
+        return peak;
+    }
+
+    /** Seconds until {@code remainingBytes} are in at the current rate; -1 while stopped. */
+    public long etaSeconds(long remainingBytes) {
+        return eta(remainingBytes, rate);
+    }
+
+    public static long eta(long remainingBytes, double bytesPerSecond) {
+        if (remainingBytes <= 0) return 0;
+        return bytesPerSecond > 0 ? (long) Math.ceil(remainingBytes / bytesPerSecond) : -1;
+    }
+}
@@ -1,22 +1,45 @@
 package org.develop.lancaster.core.network;
 
+import org.develop.lancaster.core.metrics.Metrics;
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.transfer.BandwidthShaper;
+import org.develop.lancaster.core.transfer.DeltaPlan;
+import org.develop.lancaster.core.transfer.DeltaSignature;
+import org.develop.lancaster.core.transfer.FileDigests;
+import org.develop.lancaster.core.transfer.FrameCompressor;
 import org.develop.lancaster.core.transfer.ProgressListener;
+import org.develop.lancaster.core.transfer.TransferManifest;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.NetworkUtils;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClientHandler implements Runnable {
 
+    private static final int BATCH_BUFFER_SIZE = 1024 * 1024;
+
     private final Socket clientSocket;
-    private final File fileToSend;
+    private final TransferManifest manifest;
     private final SocketChannel socketChannelField; // optional, for true zero-copy
+    private DigestCache digests; // shared by the Sender; created on demand otherwise
+    private final MulticastSession multicast; // null unless the Sender offers one-to-many sending
+    private final SwarmTracker swarm; // null when not hosting for a swarm
+    private BandwidthShaper.Flow flow; // caps for this peer; created with the first bulk reply
+    private Metrics.Peer peerMetrics; // looked up with the flow
+    // Transfer in chunks to produce frequent progress updates while keeping high throughput (64 MB)
+    private final long transferChunkSize = Config.getSendChunkBytes();
 
     // Support both a direct listener (old API) and a factory (new API)
     private final ProgressListener fallbackListener;
@@ -25,7 +48,9 @@ public class ClientHandler implements Runnable {
     // Constructor with direct Listener (backwards compatible)
     public ClientHandler(Socket socket, String filePath, ProgressListener listener) {
         this.clientSocket = socket;
-        this.fileToSend = new File(filePath);
+        this.multicast = null;
+        this.swarm = null;
+        this.manifest = manifestFor(filePath);
         this.fallbackListener = listener;
         this.listenerFactory = null;
         this.socketChannelField = socket.getChannel();
@@ -34,7 +59,9 @@ public class ClientHandler implements Runnable {
     // Constructor with factory: factory will be invoked when CHUNK command is received
     public ClientHandler(Socket socket, String filePath, Function<Socket, ProgressListener> listenerFactory) {
         this.clientSocket = socket;
-        this.fileToSend = new File(filePath);
+        this.multicast = null;
+        this.swarm = null;
+        this.manifest = manifestFor(filePath);
         this.listenerFactory = listenerFactory;
         this.fallbackListener = null;
         this.socketChannelField = socket.getChannel();
@@ -44,7 +71,9 @@ public class ClientHandler implements Runnable {
     @SuppressWarnings("unchecked")
     public ClientHandler(Socket socket, String filePath, Object listenerOrFactory) {
         this.clientSocket = socket;
-        this.fileToSend = new File(filePath);
+        this.multicast = null;
+        this.swarm = null;
+        this.manifest = manifestFor(filePath);
         if (listenerOrFactory instanceof ProgressListener) {
             this.fallbackListener = (ProgressListener) listenerOrFactory;
             this.listenerFactory = null;
@@ -62,7 +91,9 @@ public class ClientHandler implements Runnable {
     @SuppressWarnings("unchecked")
     public ClientHandler(SocketChannel sc, String filePath, Object listenerOrFactory) {
         this.clientSocket = sc.socket();
-        this.fileToSend = new File(filePath);
+        this.multicast = null;
+        this.swarm = null;
+        this.manifest = manifestFor(filePath);
         if (listenerOrFactory instanceof ProgressListener) {
             this.fallbackListener = (ProgressListener) listenerOrFactory;
             this.listenerFactory = null;
@@ -76,82 +107,504 @@ public class ClientHandler implements Runnable {
         this.socketChannelField = sc;
     }
 
+    // Serves a prepared manifest (single file or whole directory)
+    public ClientHandler(SocketChannel sc, TransferManifest manifest, Function<Socket, ProgressListener> listenerFactory) {
+        this(sc, manifest, null, null, null, listenerFactory);
+    }
+
+    ClientHandler(SocketChannel sc, TransferManifest manifest, DigestCache digests, MulticastSession multicast,
+                  SwarmTracker swarm, Function<Socket, ProgressListener> listenerFactory) {
+        this.clientSocket = sc.socket();
+        this.manifest = manifest;
+        this.digests = digests;
+        this.multicast = multicast;
+        this.swarm = swarm;
+        this.listenerFactory = listenerFactory;
+        this.fallbackListener = null;
+        this.socketChannelField = sc;
+    }
+
+    private static TransferManifest manifestFor(String filePath) {
+        try {
+            return TransferManifest.scan(new File(filePath));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
+    private static final Metrics metrics = Metrics.shared();
 
     @Override
     public void run() {
+        metrics.servingOpened();
         try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
-             FileInputStream fis = new FileInputStream(fileToSend);
-             FileChannel fileChannel = fis.getChannel()) {
-
-            WritableByteChannel socketChannel;
-            if (socketChannelField != null) {
-                socketChannel = socketChannelField; // true zero-copy path
-            } else {
-                socketChannel = Channels.newChannel(clientSocket.getOutputStream());
-            }
+             DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
 
             // 1. Handshake
             String command = dis.readUTF();
 
-            if ("METADATA".equals(command)) {
-                dos.writeUTF(fileToSend.getName());
-                dos.writeLong(fileToSend.length());
+            if (command.startsWith(WireProtocol.HELLO_PREFIX)) {
+                int clientVersion = WireProtocol.parseVersion(command, WireProtocol.HELLO_PREFIX);
+                if (clientVersion >= 2) {
+                    dos.writeUTF(WireProtocol.ACK_PREFIX + Math.min(clientVersion, WireProtocol.VERSION));
+                    dos.flush();
+                    serveBinary();
+                }
+            }
+            else if ("METADATA".equals(command)) {
+                writeMetadata(manifest, dos);
                 dos.flush();
             }
+            else if ("MANIFEST".equals(command)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), BATCH_BUFFER_SIZE));
+                manifest.write(out);
+                out.flush();
+            }
             else if (command.startsWith("CHUNK")) {
+                // Single-file form: always entry 0
                 String[] parts = command.split("\\|");
-                long start = Long.parseLong(parts[1]);
-                long end = Long.parseLong(parts[2]);
-
-                long expectedSize = end - start;
-                long totalSent = 0;
-
-                // Tune socket for bulk transfer: disable Nagle and increase send buffer.
-                try {
-                    clientSocket.setTcpNoDelay(true);
-                    clientSocket.setSendBufferSize(4 * 1024 * 1024); // 4 MB
-                } catch (SocketException se) {
-                    logger.log(Level.FINE, "Socket tuning not permitted", se);
-                }
+                sendRangeLegacy(0, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            }
+            else if (command.startsWith("FCHUNK")) {
+                String[] parts = command.split("\\|");
+                sendRangeLegacy(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+            }
+            else if (command.startsWith("BATCH")) {
+                String[] parts = command.split("\\|");
+                int from = Integer.parseInt(parts[1]);
+                int to = Integer.parseInt(parts[2]);
+                checkBatch(from, to);
+                tuneForBulk();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), BATCH_BUFFER_SIZE));
+                writeBatch(out, from, to, createListener(), 0);
+                out.flush();
+                logger.info("[Handler] Sent batch of " + (to - from) + " files to " + clientSocket.getInetAddress());
+            }
+
+        } catch (SocketException e) {
+            logger.info("[Handler] Transfer stopped (Client disconnected).");
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "IO error in ClientHandler", e);
+        } finally {
+            try { clientSocket.close(); } catch (IOException e) { /* ignore */ }
+            metrics.servingClosed();
+        }
+    }
 
-                // Create the listener only now (prevents duplicate UI card for METADATA)
-                ProgressListener activeListener = (listenerFactory != null) ? listenerFactory.apply(clientSocket) : fallbackListener;
+    /**
+     * Upgraded connection: answer pipelined binary requests in order until the client closes.
+     * Replies are buffered and flushed when a range needs the socket for zero-copy or when the
+     * client has nothing more queued.
+     */
+    private void serveBinary() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), BATCH_BUFFER_SIZE));
+        tuneForBulk();
 
-                // Transfer in chunks to produce frequent progress updates while keeping high throughput.
-                final long TRANSFER_CHUNK_SIZE = 64L * 1024L * 1024L; // 64 MB
+        ProgressListener activeListener = null;
+        FrameCompressor compressor = null;
+        long connectionSent = 0;
+        long rangeCount = 0;
+
+        while (true) {
+            byte op;
+            try {
+                op = in.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+            if (op == WireProtocol.OP_CLOSE) break;
+            int requestId = in.readInt();
 
-                // 2. High-Speed Loop with Progress Reporting
-                while (totalSent < expectedSize) {
-                    long remaining = expectedSize - totalSent;
-                    long toWrite = Math.min(remaining, TRANSFER_CHUNK_SIZE);
+            switch (op) {
+                case WireProtocol.OP_METADATA: {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    writeMetadata(manifest, digests, new DataOutputStream(bytes));
+                    writeReply(out, requestId, bytes.toByteArray());
+                    break;
+                }
+                case WireProtocol.OP_MANIFEST: {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    manifest.write(new DataOutputStream(bytes));
+                    writeReply(out, requestId, bytes.toByteArray());
+                    break;
+                }
+                case WireProtocol.OP_RANGE: {
+                    int index = in.readInt();
+                    long start = in.readLong();
+                    long end = in.readLong();
+                    String problem = checkRange(manifest, index, start, end);
+                    if (problem != null) {
+                        writeError(out, requestId, problem);
+                        break;
+                    }
+                    if (activeListener == null) activeListener = createListener();
 
-                    long written = fileChannel.transferTo(start + totalSent, toWrite, socketChannel);
+                    writeReplyHeader(out, requestId, WireProtocol.STATUS_OK, end - start);
+                    out.flush();
+                    connectionSent += transferRange(manifest.get(index).getSource(), start, end, activeListener, connectionSent);
+                    rangeCount++;
+                    break;
+                }
+                case WireProtocol.OP_RANGE_Z: {
+                    int index = in.readInt();
+                    long start = in.readLong();
+                    long end = in.readLong();
+                    byte mode = in.readByte();
+                    String problem = checkRange(manifest, index, start, end);
+                    if (problem != null) {
+                        writeError(out, requestId, problem);
+                        break;
+                    }
+                    if (activeListener == null) activeListener = createListener();
+                    if (compressor == null) compressor = new FrameCompressor(mode);
 
-                    if (written <= 0) {
-                        if (Thread.interrupted()) break;
-                        continue;
+                    writeReplyHeader(out, requestId, WireProtocol.STATUS_OK, end - start);
+                    connectionSent += transferFrames(manifest.get(index).getSource(), start, end, out, compressor, activeListener, connectionSent);
+                    rangeCount++;
+                    break;
+                }
+                case WireProtocol.OP_BATCH: {
+                    int from = in.readInt();
+                    int to = in.readInt();
+                    if (from < 0 || to > manifest.size() || from > to) {
+                        writeError(out, requestId, "Invalid batch " + from + ".." + to);
+                        break;
                     }
-                    totalSent += written;
+                    if (activeListener == null) activeListener = createListener();
 
-                    // 3. --- NOTIFY UI HERE ---
-                    if (activeListener != null) {
-                        activeListener.onProgress(totalSent, expectedSize);
+                    long length = 0;
+                    for (int i = from; i < to; i++) length += WireProtocol.BATCH_FRAME_HEADER_SIZE + manifest.get(i).getSize();
+                    writeReplyHeader(out, requestId, WireProtocol.STATUS_OK, length);
+                    connectionSent += writeBatch(out, from, to, activeListener, connectionSent);
+                    break;
+                }
+                case WireProtocol.OP_DIGESTS: {
+                    int index = in.readInt();
+                    // Replies already queued should not wait for the hash
+                    out.flush();
+                    if (digests == null) digests = new DigestCache(manifest);
+                    try {
+                        FileDigests fileDigests = digests.get(index).get();
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        fileDigests.write(new DataOutputStream(bytes));
+                        writeReply(out, requestId, bytes.toByteArray());
+                    } catch (ExecutionException e) {
+                        writeError(out, requestId, "Cannot hash file " + index + ": " + e.getCause().getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while hashing");
+                    }
+                    break;
+                }
+                case WireProtocol.OP_MULTICAST: {
+                    int index = in.readInt();
+                    if (multicast == null) {
+                        writeError(out, requestId, "Multicast is not offered for this transfer");
+                        break;
+                    }
+                    try {
+                        writeReply(out, requestId, multicast.join(clientSocket.getInetAddress(), index));
+                    } catch (IOException e) {
+                        writeError(out, requestId, "Cannot join multicast session: " + e.getMessage());
+                    }
+                    break;
+                }
+                case WireProtocol.OP_SWARM: {
+                    int servePort = in.readInt();
+                    if (swarm == null) {
+                        writeError(out, requestId, "No swarm for this transfer");
+                        break;
                     }
+                    writeReply(out, requestId, swarm.register(clientSocket.getInetAddress(), servePort));
+                    break;
                 }
+                case WireProtocol.OP_HAVE: {
+                    int index = in.readInt();
+                    if (index < 0) index = 0;
+                    if (index >= manifest.size()) {
+                        writeError(out, requestId, "No such file index " + index);
+                        break;
+                    }
+                    writeReply(out, requestId, haveReply(manifest, index));
+                    break;
+                }
+                case WireProtocol.OP_DELTA: {
+                    int index = in.readInt();
+                    DeltaSignature signature = DeltaSignature.read(in);
+                    out.flush();
+                    if (digests == null) digests = new DigestCache(manifest);
+                    DeltaPlan plan;
+                    try {
+                        plan = digests.planDelta(index, signature).get();
+                    } catch (ExecutionException e) {
+                        writeError(out, requestId, "Cannot build delta for file " + index + ": " + e.getCause().getMessage());
+                        break;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while building delta");
+                    }
+                    if (activeListener == null) activeListener = createListener();
 
-                dos.flush();
-                // log without lambda to avoid capturing mutable local
-                logger.info("[Handler] Sent " + (totalSent/1024/1024) + " MB to " + clientSocket.getInetAddress());
+                    writeReplyHeader(out, requestId, WireProtocol.STATUS_OK, plan.replyLength());
+                    File source = manifest.get(index).getSource();
+                    for (DeltaPlan.Op step : plan.getOps()) {
+                        ByteBuffer header = DeltaPlan.header(step);
+                        out.write(header.array(), 0, header.remaining());
+                        if (!step.isCopy()) {
+                            out.flush();
+                            connectionSent += transferRange(source, step.getOffset(), step.getOffset() + step.getLength(), activeListener, connectionSent);
+                        }
+                    }
+                    out.writeByte(WireProtocol.DELTA_END);
+                    logger.info("[Handler] Sent delta of " + manifest.get(index).getPath() + ": "
+                            + (plan.getLiteralBytes() / 1024 / 1024) + " MB literal to " + clientSocket.getInetAddress());
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown request op " + op);
             }
 
-        } catch (SocketException e) {
-            logger.info("[Handler] Transfer stopped (Client disconnected).");
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "IO error in ClientHandler", e);
-        } finally {
-            try { clientSocket.close(); } catch (IOException e) { /* ignore */ }
+            if (in.available() == 0) out.flush();
+        }
+        out.flush();
+        // On an error exit the deflater is left to its cleaner
+        if (compressor != null) {
+            logger.info("[Handler] Compressed " + compressor.getFramesCompressed() + " frames, saving "
+                    + (compressor.getBytesSaved() / 1024 / 1024) + " MB");
+            compressor.close();
+        }
+        // log without lambda to avoid capturing mutable local
+        logger.info("[Handler] Sent " + (connectionSent/1024/1024) + " MB in " + rangeCount + " ranges to " + clientSocket.getInetAddress());
+    }
+
+    private static void writeReplyHeader(DataOutputStream out, int requestId, byte status, long length) throws IOException {
+        out.writeInt(requestId);
+        out.writeByte(status);
+        out.writeLong(length);
+    }
+
+    private static void writeReply(DataOutputStream out, int requestId, byte[] payload) throws IOException {
+        writeReplyHeader(out, requestId, WireProtocol.STATUS_OK, payload.length);
+        out.write(payload);
+    }
+
+    private static void writeError(DataOutputStream out, int requestId, String message) throws IOException {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        writeReplyHeader(out, requestId, WireProtocol.STATUS_ERROR, text.length);
+        out.write(text);
+    }
+
+    // Shared with the selector engine
+    static void writeMetadata(TransferManifest manifest, DataOutputStream dos) throws IOException {
+        if (manifest.isDirectory()) {
+            dos.writeUTF(manifest.getRootName());
+            dos.writeLong(manifest.getTotalSize());
+            dos.writeLong(0L);
+            dos.writeByte(TransferManifest.KIND_DIRECTORY);
+        } else {
+            File file = manifest.get(0).getSource();
+            dos.writeUTF(file.getName());
+            dos.writeLong(file.length());
+            // Trailing fields: old clients stop reading after the size and never see them
+            dos.writeLong(file.lastModified());
+            dos.writeByte(TransferManifest.KIND_FILE);
+        }
+    }
+
+    // Binary METADATA reply: the legacy fields plus the content digest, if the file has been indexed
+    static void writeMetadata(TransferManifest manifest, DigestCache digests, DataOutputStream dos) throws IOException {
+        writeMetadata(manifest, dos);
+        byte[] content = digests == null || manifest.isDirectory() ? new byte[0] : digests.contentDigest(0);
+        dos.writeShort(content.length);
+        dos.write(content);
+    }
+
+    // Returns a description of what is wrong with the range, or null if it can be served
+    static String checkRange(TransferManifest manifest, int index, long start, long end) {
+        if (index < 0 || index >= manifest.size()) return "No such file index " + index;
+        if (start < 0 || end < start) return "Invalid range " + start + ".." + end;
+        long size = manifest.get(index).getSource().length();
+        if (end > size) return "Range " + start + ".." + end + " is beyond the end of the file (" + size + " bytes)";
+        if (!manifest.holds(index, start, end)) return "Range " + start + ".." + end + " has not arrived here yet";
+        return null;
+    }
+
+    // Shared with the selector engine: int blockCount, then the held-block bitmap
+    static byte[] haveReply(TransferManifest manifest, int index) throws IOException {
+        int blockCount = FileDigests.blockCount(manifest.get(index).getSize());
+        byte[] bits = manifest.heldBlocks(index).toByteArray();
+        byte[] padded = new byte[(blockCount + 7) / 8];
+        System.arraycopy(bits, 0, padded, 0, Math.min(bits.length, padded.length));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeInt(blockCount);
+        dos.write(padded);
+        return bytes.toByteArray();
+    }
+
+    private void checkBatch(int from, int to) throws IOException {
+        if (from < 0 || to > manifest.size() || from > to) throw new IOException("Invalid batch " + from + ".." + to);
+    }
+
+    private void sendRangeLegacy(int index, long start, long end) throws IOException {
+        String problem = checkRange(manifest, index, start, end);
+        if (problem != null) throw new IOException(problem);
+
+        tuneForBulk();
+
+        // Create the listener only now (prevents duplicate UI card for METADATA)
+        ProgressListener activeListener = createListener();
+        long totalSent = transferRange(manifest.get(index).getSource(), start, end, activeListener, 0);
+
+        // log without lambda to avoid capturing mutable local
+        logger.info("[Handler] Sent " + (totalSent/1024/1024) + " MB to " + clientSocket.getInetAddress());
+    }
+
+    /**
+     * Zero-copy send of [start, end) of the file. Progress is reported as {@code reportedBase}
+     * plus the bytes sent so far, so one listener can follow several ranges on a connection.
+     */
+    private long transferRange(File fileToSend, long start, long end, ProgressListener activeListener, long reportedBase) throws IOException {
+        long expectedSize = end - start;
+        long totalSent = 0;
+
+        try (FileInputStream fis = new FileInputStream(fileToSend);
+             FileChannel fileChannel = fis.getChannel()) {
+
+            WritableByteChannel socketChannel = outputChannel();
+
+            // 2. High-Speed Loop with Progress Reporting
+            while (totalSent < expectedSize) {
+                long remaining = expectedSize - totalSent;
+                long toWrite = flow().chunk(Math.min(remaining, transferChunkSize));
+
+                long t0 = System.nanoTime();
+                long written = fileChannel.transferTo(start + totalSent, toWrite, socketChannel);
+                metrics.transferTo(System.nanoTime() - t0);
+
+                if (written <= 0) {
+                    if (Thread.interrupted()) throw new InterruptedIOException("Transfer interrupted");
+                    if (start + totalSent >= fileChannel.size()) {
+                        throw new EOFException("Range " + start + ".." + end + " is beyond the end of " + fileToSend);
+                    }
+                    continue;
+                }
+                totalSent += written;
+                flow().acquire(written);
+                peerMetrics().sent(written);
+
+                // 3. --- NOTIFY UI HERE ---
+                if (activeListener != null) {
+                    activeListener.onProgress(reportedBase + totalSent, reportedBase + expectedSize);
+                }
+            }
+        }
+        return totalSent;
+    }
+
+    /**
+     * RANGE_Z payload for [start, end): frames of {@link FrameCompressor#FRAME_SIZE}, each either deflated
+     * into {@code out} or sent raw with zero-copy. Every frame is flushed and timed so the compressor
+     * knows the link speed. Progress counts file bytes, not wire bytes.
+     */
+    private long transferFrames(File fileToSend, long start, long end, DataOutputStream out, FrameCompressor compressor,
+                                ProgressListener activeListener, long reportedBase) throws IOException {
+        long done = 0;
+        try (FileChannel fileChannel = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ)) {
+            while (start + done < end) {
+                int length = (int) Math.min(FrameCompressor.FRAME_SIZE, end - start - done);
+                ByteBuffer frame = compressor.encode(fileChannel, start + done, length);
+                long began;
+                long wire;
+                if (frame != null) {
+                    began = System.nanoTime();
+                    out.write(frame.array(), 0, frame.remaining());
+                    out.flush();
+                    wire = frame.remaining();
+                    flow().acquire(wire);
+                    peerMetrics().sent(wire);
+                } else {
+                    ByteBuffer header = FrameCompressor.rawHeader(length);
+                    out.write(header.array(), 0, header.remaining());
+                    out.flush();
+                    began = System.nanoTime();
+                    transferRange(fileToSend, start + done, start + done + length, null, 0);
+                    wire = length;
+                }
+                compressor.recordLink(wire, System.nanoTime() - began);
+                done += length;
+                if (activeListener != null) activeListener.onProgress(reportedBase + done, reportedBase + end - start);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Streams entries [from, to) back to back, each framed as (int index, long length, bytes).
+     * Meant for small files, so everything goes through one large buffer instead of a
+     * syscall pair per file. Returns the number of file bytes written.
+     */
+    private long writeBatch(DataOutputStream out, int from, int to, ProgressListener activeListener, long reportedBase) throws IOException {
+        long expectedSize = 0;
+        for (int i = from; i < to; i++) expectedSize += manifest.get(i).getSize();
+
+        byte[] copyBuf = new byte[64 * 1024];
+        long totalSent = 0;
+
+        for (int i = from; i < to; i++) {
+            TransferManifest.Entry entry = manifest.get(i);
+            out.writeInt(i);
+            out.writeLong(entry.getSize());
+
+            // The frame length is fixed by the manifest; a file that shrank since is an error
+            try (FileInputStream fis = new FileInputStream(entry.getSource())) {
+                long left = entry.getSize();
+                while (left > 0) {
+                    int n = fis.read(copyBuf, 0, (int) Math.min(copyBuf.length, left));
+                    if (n < 0) throw new EOFException(entry.getPath() + " changed while being sent");
+                    out.write(copyBuf, 0, n);
+                    left -= n;
+                }
+            }
+            flow().acquire(entry.getSize());
+            peerMetrics().sent(entry.getSize());
+
+            totalSent += entry.getSize();
+            if (activeListener != null) activeListener.onProgress(reportedBase + totalSent, reportedBase + expectedSize);
+        }
+        return totalSent;
+    }
+
+    private void tuneForBulk() {
+        // Tune socket for bulk transfer: disable Nagle and increase send buffer.
+        try {
+            clientSocket.setTcpNoDelay(true);
+            NetworkUtils.tuneSendBuffer(clientSocket); // 4 MB unless configured
+        } catch (SocketException se) {
+            logger.log(Level.FINE, "Socket tuning not permitted", se);
+        }
+    }
+
+    private BandwidthShaper.Flow flow() {
+        if (flow == null) flow = BandwidthShaper.shared().flow(clientSocket.getInetAddress().getHostAddress());
+        return flow;
+    }
+
+    private Metrics.Peer peerMetrics() {
+        if (peerMetrics == null) peerMetrics = metrics.peer(clientSocket.getInetAddress().getHostAddress());
+        return peerMetrics;
+    }
+
+    private ProgressListener createListener() {
+        return (listenerFactory != null) ? listenerFactory.apply(clientSocket) : fallbackListener;
+    }
+
+    private WritableByteChannel outputChannel() throws IOException {
+        if (socketChannelField != null) {
+            return socketChannelField; // true zero-copy path
         }
+        return Channels.newChannel(clientSocket.getOutputStream());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,153 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.transfer.DeltaPlan;
+import org.develop.lancaster.core.transfer.DeltaSignature;
+import org.develop.lancaster.core.transfer.FileDigests;
+import org.develop.lancaster.core.transfer.HashIndex;
+import org.develop.lancaster.core.transfer.TransferManifest;
+import org.develop.lancaster.core.util.TaskExecutors;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Merkle digests of the hosted files, computed on first request and kept for the rest of the session.
+ * Also plans DELTA replies, the other request that has to read a whole file before answering, and
+ * runs other reply work that must not block the selector engine ({@link #submit}).
+ * Hashing runs on its own small pool, so it overlaps with the range transfers already in progress;
+ * {@link #submit} work has a pool of its own, so it never waits behind a whole-file hash, and RANGE_Z
+ * frames are deflated on a third pool ({@link #compress}) sized to the cores.
+ * Large files go through the persistent {@link HashIndex}, so an unchanged file is hashed only once
+ * across sessions; {@link #prefetch()} fills it in the background as soon as hosting starts.
+ */
+class DigestCache {
+
+    private static final int HASH_THREADS = 2;
+    private static final int REPLY_THREADS = 2;
+    private static final int COMPRESS_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Smaller files are cheaper to hash again than to index
+    private static final long INDEX_MIN_SIZE = 64L * 1024L * 1024L; // 64 MB
+
+    private final TransferManifest manifest;
+    private final HashIndex index;
+    private final Map<Integer, CompletableFuture<FileDigests>> digests = new ConcurrentHashMap<>();
+    private final ExecutorService hashing = TaskExecutors.newBlockingExecutor("lancaster-hash", HASH_THREADS);
+    private final ExecutorService replies = TaskExecutors.newBlockingExecutor("lancaster-reply", REPLY_THREADS);
+    private final ExecutorService compressing = TaskExecutors.newBlockingExecutor("lancaster-compress", COMPRESS_THREADS);
+
+    DigestCache(TransferManifest manifest) {
+        this(manifest, null);
+    }
+
+    DigestCache(TransferManifest manifest, HashIndex index) {
+        this.manifest = manifest;
+        this.index = index;
+    }
+
+    /** Starts hashing every large file that the index does not know yet. */
+    void prefetch() {
+        if (index == null) return;
+        for (int i = 0; i < manifest.size(); i++) {
+            if (manifest.get(i).getSize() >= INDEX_MIN_SIZE) get(i);
+        }
+    }
+
+    CompletableFuture<FileDigests> get(int fileIndex) {
+        if (fileIndex < 0 || fileIndex >= manifest.size()) {
+            return CompletableFuture.failedFuture(new IOException("No such file index " + fileIndex));
+        }
+        if (manifest.isPartial()) {
+            return CompletableFuture.failedFuture(new IOException("File is still being downloaded"));
+        }
+        CompletableFuture<FileDigests> future = digests.computeIfAbsent(fileIndex, i -> CompletableFuture.supplyAsync(() -> {
+            TransferManifest.Entry entry = manifest.get(i);
+            try {
+                if (index == null || entry.getSize() < INDEX_MIN_SIZE) {
+                    return FileDigests.compute(entry.getSource(), entry.getSize());
+                }
+                HashIndex.Record record = index.get(entry.getSource());
+                if (record.getSize() != entry.getSize()) {
+                    throw new IOException(entry.getPath() + " changed since it was shared");
+                }
+                return record.getDigests();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, hashing));
+        // A failed hash (file busy, removed) is tried again on the next request
+        future.whenComplete((d, e) -> {
+            if (e != null) digests.remove(fileIndex, future);
+        });
+        return future;
+    }
+
+    /**
+     * SHA-256 of a file's content if the index already has it, otherwise an empty array; never hashes,
+     * so METADATA replies do not wait. May stat the file and read its index entry, so the selector
+     * engine calls it through {@link #submit}. Receivers use it to find other senders of the same file.
+     */
+    byte[] contentDigest(int fileIndex) {
+        if (index == null || manifest.isPartial() || fileIndex < 0 || fileIndex >= manifest.size()) return new byte[0];
+        TransferManifest.Entry entry = manifest.get(fileIndex);
+        if (entry.getSize() < INDEX_MIN_SIZE) return new byte[0];
+        try {
+            HashIndex.Record record = index.lookup(entry.getSource());
+            return record != null ? record.getContentDigest() : new byte[0];
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    /** Works out a delta reply against the receiver's signature; reads the file once, off the caller's thread. */
+    CompletableFuture<DeltaPlan> planDelta(int fileIndex, DeltaSignature signature) {
+        if (fileIndex < 0 || fileIndex >= manifest.size()) {
+            return CompletableFuture.failedFuture(new IOException("No such file index " + fileIndex));
+        }
+        if (manifest.isPartial()) {
+            return CompletableFuture.failedFuture(new IOException("File is still being downloaded"));
+        }
+        TransferManifest.Entry entry = manifest.get(fileIndex);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return DeltaPlan.build(entry.getSource(), entry.getSize(), signature);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, hashing);
+    }
+
+    /** Runs {@code work} on the reply pool. */
+    <T> CompletableFuture<T> submit(Callable<T> work) {
+        return supply(work, replies);
+    }
+
+    /** Runs {@code work}, one frame's compression, on the compression pool. */
+    <T> CompletableFuture<T> compress(Callable<T> work) {
+        return supply(work, compressing);
+    }
+
+    private static <T> CompletableFuture<T> supply(Callable<T> work, ExecutorService pool) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return work.call();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    void shutdown() {
+        hashing.shutdownNow();
+        replies.shutdownNow();
+        compressing.shutdownNow();
+    }
+}
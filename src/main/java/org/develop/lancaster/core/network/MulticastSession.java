@@ -0,0 +1,294 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.transfer.FileDigests;
+import org.develop.lancaster.core.transfer.TransferManifest;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.NetworkUtils;
+import org.develop.lancaster.core.util.TaskExecutors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One-to-many distribution of a single hosted file. Receivers join over TCP (MULTICAST request); once
+ * the expected number have joined, or a short wait after the first one, the file is multicast once
+ * in packets. At the end of every round the sender multicasts an END marker, receivers answer with
+ * NAKs for the packets they miss, and the union of those is multicast again in the next round, until
+ * a round draws no NAKs. Whatever a receiver still lacks after the session it fetches over unicast.
+ *
+ * The send rate starts at the configured value and backs off while a round's NAKs exceed
+ * {@link #LOSS_HIGH} of the packets sent, so a busy receiver is not flooded.
+ */
+final class MulticastSession {
+
+    // 128 packets per digest block, so blocks complete independently
+    static final int PACKET_SIZE = 8 * 1024;
+
+    private static final int MAX_ROUNDS = 64;
+    private static final long NAK_WINDOW_MS = 300;
+    private static final int MARKER_REPEATS = 3;
+    private static final long MARKER_GAP_MS = 20;
+    // Heartbeat while gathering, so waiting receivers do not time out
+    private static final long WAIT_BEAT_MS = 500;
+
+    private static final double LOSS_HIGH = 0.02;
+    private static final double LOSS_LOW = 0.005;
+    private static final double MIN_RATE_MBPS = 20;
+
+    private static final Logger logger = Logger.getLogger(MulticastSession.class.getName());
+
+    private final TransferManifest manifest;
+    private final int expectedReceivers;
+
+    // Guarded by this
+    private int joined;
+    private boolean running;
+    private boolean stopped;
+    private int sessionId;
+    private DatagramChannel channel;
+
+    // NAKed packets for the next round; guarded by itself
+    private final BitSet repairs = new BitSet();
+    private volatile int round;
+    private double rateMbps = Config.getMulticastRateMbps();
+
+    MulticastSession(TransferManifest manifest, int expectedReceivers) {
+        this.manifest = manifest;
+        this.expectedReceivers = Math.max(1, expectedReceivers);
+    }
+
+    /** Registers a receiver, starting a session if none is running; returns the MULTICAST reply payload. */
+    synchronized byte[] join(InetAddress receiver, int fileIndex) throws IOException {
+        if (stopped) throw new IOException("Sender is stopping");
+        if (manifest.isDirectory() || fileIndex > 0) throw new IOException("Multicast is only available for single files");
+        if (!running) start();
+        joined++;
+        notifyAll();
+        logger.info(() -> "[Multicast] " + receiver.getHostAddress() + " joined session " + sessionId);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeUTF(Config.getMulticastGroup());
+        dos.writeInt(Config.getMulticastPort());
+        dos.writeInt(sessionId);
+        dos.writeInt(PACKET_SIZE);
+        dos.writeLong(manifest.get(0).getSize());
+        return bytes.toByteArray();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+        closeChannel();
+    }
+
+    private void start() throws IOException {
+        NetworkInterface netIf = NetworkUtils.findInterface();
+        DatagramChannel dc = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            dc.setOption(StandardSocketOptions.IP_MULTICAST_IF, netIf);
+            dc.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            dc.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            dc.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+            dc.bind(new InetSocketAddress(0));
+        } catch (IOException e) {
+            dc.close();
+            throw e;
+        }
+        channel = dc;
+        sessionId = ThreadLocalRandom.current().nextInt();
+        running = true;
+        joined = 0;
+        synchronized (repairs) {
+            repairs.clear();
+        }
+
+        DatagramChannel ch = dc;
+        int id = sessionId;
+        TaskExecutors.start("lancaster-mcast-nak", true, () -> readNaks(ch, id));
+        TaskExecutors.start("lancaster-mcast", true, () -> run(ch, id));
+    }
+
+    private void run(DatagramChannel ch, int id) {
+        TransferManifest.Entry entry = manifest.get(0);
+        long size = entry.getSize();
+        int packets = (int) ((size + PACKET_SIZE - 1) / PACKET_SIZE);
+        InetSocketAddress group = new InetSocketAddress(Config.getMulticastGroup(), Config.getMulticastPort());
+
+        try (FileChannel fc = FileChannel.open(entry.getSource().toPath(), StandardOpenOption.READ)) {
+            if (!awaitReceivers(ch, id, group)) return;
+            logger.info(() -> "[Multicast] Session " + id + ": sending " + entry.getPath() + " to " + joinedCount() + " receiver(s)");
+
+            BitSet pending = new BitSet(packets);
+            pending.set(0, packets);
+            long started = System.nanoTime();
+            for (round = 0; round < MAX_ROUNDS && !pending.isEmpty() && !isStopped(); round++) {
+                int sent = sendPackets(ch, id, group, fc, size, pending);
+                pending = collectNaks(ch, id, group);
+                adjustRate(sent, pending.cardinality());
+                int r = round;
+                int missing = pending.cardinality();
+                logger.fine(() -> "[Multicast] Round " + r + ": " + sent + " packets, " + missing + " NAKed");
+            }
+            for (int i = 0; i < MARKER_REPEATS; i++) sendMarker(ch, id, group, WireProtocol.MCAST_FINISH, round);
+
+            long ms = (System.nanoTime() - started) / 1_000_000;
+            int rounds = round;
+            logger.info(() -> "[Multicast] Session " + id + " finished after " + rounds + " rounds in " + ms + " ms");
+        } catch (ClosedChannelException e) {
+            logger.fine("[Multicast] Session " + id + " stopped");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Multicast session failed, receivers continue over unicast", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                running = false;
+                if (channel == ch) closeChannel();
+            }
+        }
+    }
+
+    // Waits until every expected receiver joined, or the configured wait after the first one
+    private synchronized boolean awaitReceivers(DatagramChannel ch, int id, SocketAddress group)
+            throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + Config.getMulticastWaitMillis();
+        while (!stopped && joined < expectedReceivers) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) break;
+            sendMarker(ch, id, group, WireProtocol.MCAST_WAIT, 0);
+            wait(Math.min(left, WAIT_BEAT_MS));
+        }
+        return !stopped;
+    }
+
+    /** Multicasts every packet set in {@code pending}, reading each 1 MB block once. Returns the packet count. */
+    private int sendPackets(DatagramChannel ch, int id, SocketAddress group, FileChannel fc, long size, BitSet pending)
+            throws IOException {
+        ByteBuffer block = ByteBuffer.allocateDirect(FileDigests.BLOCK_SIZE);
+        ByteBuffer packet = ByteBuffer.allocateDirect(WireProtocol.MCAST_HEADER_SIZE + PACKET_SIZE);
+        int perBlock = FileDigests.BLOCK_SIZE / PACKET_SIZE;
+        int sent = 0;
+        long next = System.nanoTime();
+
+        for (int p = pending.nextSetBit(0); p >= 0 && !isStopped(); p = pending.nextSetBit(p)) {
+            int firstInBlock = p - p % perBlock;
+            long blockStart = (long) firstInBlock * PACKET_SIZE;
+            block.clear().limit((int) Math.min(FileDigests.BLOCK_SIZE, size - blockStart));
+            while (block.hasRemaining()) {
+                if (fc.read(block, blockStart + block.position()) < 0) throw new IOException("File shrank during multicast");
+            }
+
+            for (; p >= 0 && p < firstInBlock + perBlock; p = pending.nextSetBit(p + 1)) {
+                int off = (p - firstInBlock) * PACKET_SIZE;
+                int len = Math.min(PACKET_SIZE, block.limit() - off);
+                packet.clear();
+                packet.putInt(WireProtocol.MCAST_MAGIC).putInt(id).put(WireProtocol.MCAST_DATA).putInt(p);
+                packet.put(block.duplicate().position(off).limit(off + len));
+                packet.flip();
+
+                // Pace to the current rate
+                long wait = next - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                next = Math.max(next, System.nanoTime() - 1_000_000) + (long) (packet.limit() * 8 * 1000 / rateMbps);
+                ch.send(packet, group);
+                sent++;
+            }
+            if (p < 0) break;
+        }
+        return sent;
+    }
+
+    // Ends the round and gives receivers a window to NAK; returns the packets to send again
+    private BitSet collectNaks(DatagramChannel ch, int id, SocketAddress group) throws IOException, InterruptedException {
+        for (int i = 0; i < MARKER_REPEATS; i++) {
+            sendMarker(ch, id, group, WireProtocol.MCAST_END, round);
+            Thread.sleep(MARKER_GAP_MS);
+        }
+        Thread.sleep(NAK_WINDOW_MS);
+        synchronized (repairs) {
+            BitSet next = (BitSet) repairs.clone();
+            repairs.clear();
+            return next;
+        }
+    }
+
+    private void sendMarker(DatagramChannel ch, int id, SocketAddress group, byte type, int seq) throws IOException {
+        ByteBuffer marker = ByteBuffer.allocate(WireProtocol.MCAST_HEADER_SIZE);
+        marker.putInt(WireProtocol.MCAST_MAGIC).putInt(id).put(type).putInt(seq).flip();
+        ch.send(marker, group);
+    }
+
+    // AIMD on the NAK ratio of the last round
+    private void adjustRate(int sent, int naked) {
+        if (sent == 0) return;
+        double loss = (double) naked / sent;
+        double max = Config.getMulticastRateMbps();
+        if (loss > LOSS_HIGH) {
+            rateMbps = Math.max(MIN_RATE_MBPS, rateMbps * 0.7);
+        } else if (loss < LOSS_LOW) {
+            rateMbps = Math.min(max, rateMbps * 1.1);
+        }
+    }
+
+    private void readNaks(DatagramChannel ch, int id) {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long packets = (manifest.get(0).getSize() + PACKET_SIZE - 1) / PACKET_SIZE;
+        try {
+            while (true) {
+                buf.clear();
+                ch.receive(buf);
+                buf.flip();
+                if (buf.remaining() < WireProtocol.MCAST_HEADER_SIZE + 2) continue;
+                if (buf.getInt() != WireProtocol.MCAST_MAGIC || buf.getInt() != id || buf.get() != WireProtocol.MCAST_NAK) continue;
+                buf.getInt(); // round the NAK answers; late ones still count for the next round
+                int count = buf.getShort() & 0xFFFF;
+                synchronized (repairs) {
+                    for (int i = 0; i < count && buf.remaining() >= 8; i++) {
+                        int first = buf.getInt();
+                        int n = buf.getInt();
+                        if (first >= 0 && n > 0 && first + (long) n <= packets) repairs.set(first, first + n);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Channel closed with the session
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    private synchronized int joinedCount() {
+        return joined;
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,725 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.metrics.Metrics;
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.transfer.BandwidthShaper;
+import org.develop.lancaster.core.transfer.DeltaPlan;
+import org.develop.lancaster.core.transfer.DeltaSignature;
+import org.develop.lancaster.core.transfer.FrameCompressor;
+import org.develop.lancaster.core.transfer.ProgressListener;
+import org.develop.lancaster.core.transfer.TransferManifest;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * State of one non-blocking connection served by {@link NioServingEngine}.
+ *
+ * Speaks the same protocol as {@link ClientHandler}: a legacy UTF command (answered once, then the
+ * socket is closed) or the HELLO upgrade followed by pipelined binary requests. Replies are queued
+ * as header buffers and file regions; file regions are sent with non-blocking transferTo whenever the
+ * socket is writable, at most {@link #WRITE_QUANTUM} bytes per wakeup so connections interleave fairly.
+ * DIGESTS and DELTA replies are placeholders until their hashing is done; everything behind them
+ * waits, keeping replies in request order, while the work runs off the selector thread. RANGE_Z data
+ * is framed one frame at a time as the socket drains: the next frame is deflated on the compression
+ * pool while the current one is written, and frames not worth sampling go out as file regions.
+ */
+final class NioConnection {
+
+    private static final int WRITE_QUANTUM = 512 * 1024;
+    // Stop reading new requests while this many reply items are still queued
+    private static final int MAX_QUEUED = 256;
+
+    private enum Mode { COMMAND, BINARY, CLOSING }
+
+    /** Part of a reply that comes straight from a file. */
+    private static final class FileRegion {
+        final File file;
+        long position;
+        long remaining;
+        FileChannel channel; // opened when the region reaches the head of the queue
+
+        FileRegion(File file, long position, long length) {
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+        }
+    }
+
+    /** Compressed file data: counts as {@code dataBytes} of progress once written. */
+    private static final class DataBuffer {
+        final ByteBuffer buf;
+        final long dataBytes;
+
+        DataBuffer(ByteBuffer buf, long dataBytes) {
+            this.buf = buf;
+            this.dataBytes = dataBytes;
+        }
+    }
+
+    /** RANGE_Z data not framed yet; the head frame is put in front of it once encoded. */
+    private static final class CompressedRange {
+        final File file;
+        long position;
+        final long end;
+        FileChannel channel; // opened when the range reaches the head of the queue
+        // Frame at position: being deflated, or completed with null to send it raw
+        CompletableFuture<ByteBuffer> frame;
+
+        CompressedRange(File file, long position, long end) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** Reply that is still being computed; completes with the queue items to send. */
+    private static final class PendingReply {
+        final int requestId;
+        final CompletableFuture<List<Object>> items;
+
+        PendingReply(int requestId, CompletableFuture<List<Object>> items) {
+            this.requestId = requestId;
+            this.items = items;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final TransferManifest manifest;
+    private final DigestCache digests;
+    private final MulticastSession multicast;
+    private final SwarmTracker swarm;
+    private final Executor loop;
+    private final Function<Socket, ProgressListener> listenerFactory;
+
+    private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // A request larger than readBuf (a DELTA signature) asks for this much room
+    private int requiredCapacity;
+    private final Deque<Object> outQueue = new ArrayDeque<>();
+    private Mode mode = Mode.COMMAND;
+
+    private ProgressListener listener;
+    private long sent;
+    private long expected;
+
+    // Bandwidth caps for this peer; while paused the connection waits for the shaper, not the socket
+    private BandwidthShaper.Flow flow;
+    private Metrics.Peer peerMetrics;
+    private boolean paused;
+    private boolean closed;
+
+    // RANGE_Z state; the link speed is taken from how fast a full socket buffer drains
+    private FrameCompressor compressor;
+    private long blockedSince;
+
+    NioConnection(SocketChannel channel, SelectionKey key, TransferManifest manifest, DigestCache digests,
+                  MulticastSession multicast, SwarmTracker swarm, Executor loop,
+                  Function<Socket, ProgressListener> listenerFactory) {
+        this.channel = channel;
+        this.key = key;
+        this.manifest = manifest;
+        this.digests = digests;
+        this.multicast = multicast;
+        this.swarm = swarm;
+        this.loop = loop;
+        this.listenerFactory = listenerFactory;
+        Metrics.shared().servingOpened();
+    }
+
+    long getBytesSent() {
+        return sent;
+    }
+
+    void onReadable() throws IOException {
+        int n = channel.read(readBuf);
+        if (n < 0) {
+            // Client finished sending; answer what is queued, then close
+            mode = Mode.CLOSING;
+        } else {
+            readBuf.flip();
+            try {
+                parse();
+            } finally {
+                readBuf.compact();
+            }
+            resizeReadBuffer();
+        }
+        updateInterest();
+    }
+
+    private void resizeReadBuffer() {
+        if (requiredCapacity > readBuf.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(requiredCapacity);
+            readBuf.flip();
+            bigger.put(readBuf);
+            readBuf = bigger;
+        } else if (readBuf.capacity() > READ_BUFFER_SIZE && readBuf.position() == 0) {
+            readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        requiredCapacity = 0;
+    }
+
+    void onWritable() throws IOException {
+        if (!key.isValid() || paused) return;
+        if (flow == null) {
+            String peer = channel.socket().getInetAddress().getHostAddress();
+            flow = BandwidthShaper.shared().flow(peer);
+            peerMetrics = Metrics.shared().peer(peer);
+        }
+        long wait = flow.delayNanos();
+        if (wait > 0) {
+            pause(wait);
+            return;
+        }
+        long budget = WRITE_QUANTUM;
+        long now = compressor != null ? System.nanoTime() : 0;
+        boolean blocked = false;
+
+        while (budget > 0 && !outQueue.isEmpty()) {
+            Object head = outQueue.peek();
+
+            if (head instanceof PendingReply) {
+                PendingReply pending = (PendingReply) head;
+                if (!pending.items.isDone()) break; // resumed from the loop once the work is done
+                outQueue.poll();
+                resolve(pending);
+                continue;
+            }
+
+            if (head instanceof CompressedRange) {
+                CompressedRange range = (CompressedRange) head;
+                if (range.frame != null && !range.frame.isDone()) break; // resumed once the frame is encoded
+                if (range.position == range.end) {
+                    if (range.channel != null) range.channel.close();
+                    outQueue.poll();
+                    continue;
+                }
+                nextFrame(range);
+                continue;
+            }
+
+            if (head instanceof ByteBuffer) {
+                ByteBuffer buf = (ByteBuffer) head;
+                budget -= channel.write(buf);
+                if (buf.hasRemaining()) { // socket buffer full
+                    blocked = true;
+                    break;
+                }
+                outQueue.poll();
+                continue;
+            }
+
+            if (head instanceof DataBuffer) {
+                DataBuffer data = (DataBuffer) head;
+                budget -= channel.write(data.buf);
+                if (data.buf.hasRemaining()) {
+                    blocked = true;
+                    break;
+                }
+                outQueue.poll();
+                sent += data.dataBytes;
+                peerMetrics.sent(data.dataBytes);
+                if (listener != null) listener.onProgress(sent, expected);
+                continue;
+            }
+
+            FileRegion region = (FileRegion) head;
+            if (region.channel == null) {
+                region.channel = FileChannel.open(region.file.toPath(), StandardOpenOption.READ);
+            }
+            long t0 = System.nanoTime();
+            long written = region.remaining == 0 ? 0
+                    : region.channel.transferTo(region.position, Math.min(region.remaining, budget), channel);
+            Metrics.shared().transferTo(System.nanoTime() - t0);
+            if (written == 0 && region.remaining > 0) {
+                if (region.position >= region.channel.size()) {
+                    throw new EOFException(region.file + " is shorter than the requested range");
+                }
+                blocked = true;
+                break; // socket buffer full
+            }
+            region.position += written;
+            region.remaining -= written;
+            budget -= written;
+            sent += written;
+            peerMetrics.sent(written);
+            if (listener != null && written > 0) listener.onProgress(sent, expected);
+
+            if (region.remaining == 0) {
+                region.channel.close();
+                outQueue.poll();
+            }
+        }
+
+        wait = flow.charge(WRITE_QUANTUM - budget);
+        // A full socket buffer or a bandwidth cap sets the link speed; time spent waiting for a frame
+        // to encode does not, and a wakeup that finds the socket still full keeps the running interval
+        blocked |= wait > 0;
+        if (compressor != null && (!blocked || WRITE_QUANTUM - budget > 0)) {
+            if (blockedSince > 0) compressor.recordLink(WRITE_QUANTUM - budget, now - blockedSince);
+            blockedSince = blocked ? System.nanoTime() : 0;
+        }
+        if (wait > 0) pause(wait);
+
+        if (outQueue.isEmpty() && mode == Mode.CLOSING) {
+            close();
+            return;
+        }
+        // Backpressure may have paused parsing of requests already in the buffer
+        if (outQueue.size() < MAX_QUEUED && mode == Mode.BINARY && readBuf.position() > 0) {
+            readBuf.flip();
+            try {
+                parse();
+            } finally {
+                readBuf.compact();
+            }
+            resizeReadBuffer();
+        }
+        updateInterest();
+    }
+
+    void close() {
+        CompletableFuture<ByteBuffer> encoding = null;
+        for (Object o : outQueue) {
+            FileChannel fc = null;
+            if (o instanceof FileRegion) fc = ((FileRegion) o).channel;
+            if (o instanceof CompressedRange) {
+                fc = ((CompressedRange) o).channel;
+                if (((CompressedRange) o).frame != null) encoding = ((CompressedRange) o).frame;
+            }
+            if (fc != null) {
+                try { fc.close(); } catch (IOException ignored) { /* ignore */ }
+            }
+        }
+        outQueue.clear();
+        if (compressor != null) {
+            // A frame still deflating keeps the deflater until it is done
+            FrameCompressor frames = compressor;
+            if (encoding != null) encoding.whenComplete((f, e) -> frames.close());
+            else frames.close();
+        }
+        key.cancel();
+        try { channel.close(); } catch (IOException ignored) { /* ignore */ }
+        if (!closed) {
+            closed = true;
+            Metrics.shared().servingClosed();
+        }
+    }
+
+    // Stops writing until the shaper lets this peer send again; the timer hands control back to the loop
+    private void pause(long nanos) {
+        paused = true;
+        flow.resumeAfter(nanos, () -> loop.execute(() -> {
+            paused = false;
+            try {
+                onWritable();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }));
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) return;
+        int ops = 0;
+        if (mode != Mode.CLOSING && outQueue.size() < MAX_QUEUED) ops |= SelectionKey.OP_READ;
+        if (!paused && !outQueue.isEmpty() && !waitingForReply()) ops |= SelectionKey.OP_WRITE;
+        if (ops == 0 && mode == Mode.CLOSING && outQueue.isEmpty()) {
+            close();
+            return;
+        }
+        key.interestOps(ops);
+    }
+
+    // --- Request parsing (readBuf is in read mode here) ---
+
+    private void parse() throws IOException {
+        while (mode != Mode.CLOSING && outQueue.size() < MAX_QUEUED) {
+            if (mode == Mode.COMMAND) {
+                if (readBuf.remaining() < 2) return;
+                int len = Short.toUnsignedInt(readBuf.getShort(readBuf.position()));
+                if (readBuf.remaining() < 2 + len) {
+                    if (2 + len > readBuf.capacity()) throw new IOException("Command too long");
+                    return;
+                }
+                byte[] raw = new byte[2 + len];
+                readBuf.get(raw);
+                handleCommand(new DataInputStream(new ByteArrayInputStream(raw)).readUTF());
+            } else {
+                if (!parseBinaryRequest()) return;
+            }
+        }
+    }
+
+    private void handleCommand(String command) throws IOException {
+        if (command.startsWith(WireProtocol.HELLO_PREFIX)) {
+            int clientVersion = WireProtocol.parseVersion(command, WireProtocol.HELLO_PREFIX);
+            if (clientVersion < 2) {
+                mode = Mode.CLOSING;
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(WireProtocol.ACK_PREFIX + Math.min(clientVersion, WireProtocol.VERSION));
+            outQueue.add(ByteBuffer.wrap(bytes.toByteArray()));
+            mode = Mode.BINARY;
+            return;
+        }
+
+        // Every legacy command is answered once, then the connection closes
+        mode = Mode.CLOSING;
+        if ("METADATA".equals(command)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ClientHandler.writeMetadata(manifest, new DataOutputStream(bytes));
+            outQueue.add(ByteBuffer.wrap(bytes.toByteArray()));
+        } else if ("MANIFEST".equals(command)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            manifest.write(new DataOutputStream(bytes));
+            outQueue.add(ByteBuffer.wrap(bytes.toByteArray()));
+        } else if (command.startsWith("CHUNK")) {
+            String[] parts = command.split("\\|");
+            queueRange(0, Long.parseLong(parts[1]), Long.parseLong(parts[2]), -1);
+        } else if (command.startsWith("FCHUNK")) {
+            String[] parts = command.split("\\|");
+            queueRange(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), -1);
+        } else if (command.startsWith("BATCH")) {
+            String[] parts = command.split("\\|");
+            queueBatch(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), -1);
+        }
+    }
+
+    // Returns false if the buffer does not yet hold a complete request
+    private boolean parseBinaryRequest() throws IOException {
+        if (!readBuf.hasRemaining()) return false;
+        int start = readBuf.position();
+        byte op = readBuf.get(start);
+
+        if (op == WireProtocol.OP_CLOSE) {
+            readBuf.get();
+            mode = Mode.CLOSING;
+            return true;
+        }
+
+        int payload;
+        switch (op) {
+            case WireProtocol.OP_METADATA:
+            case WireProtocol.OP_MANIFEST:
+                payload = 0;
+                break;
+            case WireProtocol.OP_RANGE:
+                payload = 4 + 8 + 8;
+                break;
+            case WireProtocol.OP_RANGE_Z:
+                payload = 4 + 8 + 8 + 1;
+                break;
+            case WireProtocol.OP_BATCH:
+                payload = 4 + 4;
+                break;
+            case WireProtocol.OP_DIGESTS:
+            case WireProtocol.OP_MULTICAST:
+            case WireProtocol.OP_SWARM:
+            case WireProtocol.OP_HAVE:
+                payload = 4;
+                break;
+            case WireProtocol.OP_DELTA: {
+                // Fixed part, then 8 bytes per signature block
+                if (readBuf.remaining() < 1 + 4 + 4 + 4 + 4) return false;
+                int count = readBuf.getInt(start + 1 + 4 + 4 + 4);
+                DeltaSignature.checkHeader(readBuf.getInt(start + 1 + 4 + 4), count);
+                payload = 4 + 4 + 4 + 8 * count;
+                break;
+            }
+            default:
+                throw new IOException("Unknown request op " + op);
+        }
+        if (readBuf.remaining() < 1 + 4 + payload) {
+            requiredCapacity = 1 + 4 + payload;
+            return false;
+        }
+
+        readBuf.get();
+        int requestId = readBuf.getInt();
+
+        switch (op) {
+            case WireProtocol.OP_METADATA:
+                queueMetadata(requestId);
+                break;
+            case WireProtocol.OP_MANIFEST: {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                manifest.write(new DataOutputStream(bytes));
+                queueReply(requestId, bytes.toByteArray());
+                break;
+            }
+            case WireProtocol.OP_RANGE:
+                queueRange(readBuf.getInt(), readBuf.getLong(), readBuf.getLong(), requestId);
+                break;
+            case WireProtocol.OP_RANGE_Z:
+                queueCompressedRange(readBuf.getInt(), readBuf.getLong(), readBuf.getLong(), readBuf.get(), requestId);
+                break;
+            case WireProtocol.OP_DIGESTS:
+                queueDigests(readBuf.getInt(), requestId);
+                break;
+            case WireProtocol.OP_MULTICAST:
+                queueMulticast(readBuf.getInt(), requestId);
+                break;
+            case WireProtocol.OP_SWARM: {
+                int servePort = readBuf.getInt();
+                if (swarm == null) {
+                    queueError(requestId, "No swarm for this transfer");
+                } else {
+                    queueReply(requestId, swarm.register(channel.socket().getInetAddress(), servePort));
+                }
+                break;
+            }
+            case WireProtocol.OP_HAVE: {
+                int index = Math.max(0, readBuf.getInt());
+                if (index >= manifest.size()) {
+                    queueError(requestId, "No such file index " + index);
+                } else {
+                    queueReply(requestId, ClientHandler.haveReply(manifest, index));
+                }
+                break;
+            }
+            case WireProtocol.OP_DELTA: {
+                int index = readBuf.getInt();
+                DeltaSignature signature = DeltaSignature.read(readBuf.getInt(), readBuf.getInt(), readBuf);
+                queueDelta(index, signature, requestId);
+                break;
+            }
+            default:
+                queueBatch(readBuf.getInt(), readBuf.getInt(), requestId);
+                break;
+        }
+        return true;
+    }
+
+    // --- Reply queueing; requestId < 0 means a legacy reply without header ---
+
+    private void queueRange(int index, long start, long end, int requestId) throws IOException {
+        String problem = ClientHandler.checkRange(manifest, index, start, end);
+        if (problem != null) {
+            if (requestId < 0) throw new IOException(problem);
+            queueError(requestId, problem);
+            return;
+        }
+        if (requestId >= 0) outQueue.add(replyHeader(requestId, WireProtocol.STATUS_OK, end - start));
+        outQueue.add(new FileRegion(manifest.get(index).getSource(), start, end - start));
+        expectData(end - start);
+    }
+
+    // Frames are deflated on the compression pool (DigestCache.compress); raw frames stay file regions
+    private void queueCompressedRange(int index, long start, long end, byte compression, int requestId) {
+        String problem = ClientHandler.checkRange(manifest, index, start, end);
+        if (problem != null) {
+            queueError(requestId, problem);
+            return;
+        }
+        if (compressor == null) compressor = new FrameCompressor(compression);
+        outQueue.add(replyHeader(requestId, WireProtocol.STATUS_OK, end - start));
+        outQueue.add(new CompressedRange(manifest.get(index).getSource(), start, end));
+        expectData(end - start);
+    }
+
+    // Puts the frame at the range's position in front of it, then starts encoding the one after
+    private void nextFrame(CompressedRange range) throws IOException {
+        if (range.channel == null) {
+            range.channel = FileChannel.open(range.file.toPath(), StandardOpenOption.READ);
+        }
+        if (range.frame == null) {
+            startFrame(range);
+            return;
+        }
+        int length = frameLength(range);
+        ByteBuffer frame;
+        try {
+            frame = range.frame.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            throw new IOException("Cannot compress " + range.file + ": " + cause.getMessage(), cause);
+        }
+        if (frame != null) {
+            outQueue.addFirst(new DataBuffer(frame, length));
+        } else {
+            outQueue.addFirst(new FileRegion(range.file, range.position, length));
+            outQueue.addFirst(FrameCompressor.rawHeader(length));
+        }
+        range.position += length;
+        range.frame = null;
+        if (range.position < range.end) startFrame(range);
+    }
+
+    // Raw frames are decided on the loop; only frames worth a sample go to the compression pool
+    private void startFrame(CompressedRange range) {
+        if (!compressor.wantsSample()) {
+            range.frame = CompletableFuture.completedFuture(null);
+            return;
+        }
+        FrameCompressor frames = compressor;
+        FileChannel fc = range.channel;
+        long pos = range.position;
+        int length = frameLength(range);
+        range.frame = digests.compress(() -> frames.encodeSampled(fc, pos, length));
+        resumeWhenDone(range.frame);
+    }
+
+    private static int frameLength(CompressedRange range) {
+        return (int) Math.min(FrameCompressor.FRAME_SIZE, range.end - range.position);
+    }
+
+    private void queueBatch(int from, int to, int requestId) throws IOException {
+        if (from < 0 || to > manifest.size() || from > to) {
+            if (requestId < 0) throw new IOException("Invalid batch " + from + ".." + to);
+            queueError(requestId, "Invalid batch " + from + ".." + to);
+            return;
+        }
+        long length = 0;
+        long data = 0;
+        for (int i = from; i < to; i++) {
+            length += WireProtocol.BATCH_FRAME_HEADER_SIZE + manifest.get(i).getSize();
+            data += manifest.get(i).getSize();
+        }
+        if (requestId >= 0) outQueue.add(replyHeader(requestId, WireProtocol.STATUS_OK, length));
+
+        for (int i = from; i < to; i++) {
+            TransferManifest.Entry entry = manifest.get(i);
+            ByteBuffer frame = ByteBuffer.allocate(WireProtocol.BATCH_FRAME_HEADER_SIZE);
+            frame.putInt(i).putLong(entry.getSize()).flip();
+            outQueue.add(frame);
+            outQueue.add(new FileRegion(entry.getSource(), 0, entry.getSize()));
+        }
+        expectData(data);
+    }
+
+    // The content digest may stat the file and read its index entry: built off the loop
+    private void queueMetadata(int requestId) {
+        queuePending(requestId, digests.submit(() -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ClientHandler.writeMetadata(manifest, digests, new DataOutputStream(bytes));
+            return List.of(replyHeader(requestId, WireProtocol.STATUS_OK, bytes.size()), ByteBuffer.wrap(bytes.toByteArray()));
+        }));
+    }
+
+    private void queueDigests(int index, int requestId) {
+        queuePending(requestId, digests.get(index).thenApply(fileDigests -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                fileDigests.write(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return List.of(replyHeader(requestId, WireProtocol.STATUS_OK, bytes.size()), ByteBuffer.wrap(bytes.toByteArray()));
+        }));
+    }
+
+    private void queueDelta(int index, DeltaSignature signature, int requestId) {
+        queuePending(requestId, digests.planDelta(index, signature).thenApply(plan -> {
+            File source = manifest.get(index).getSource();
+            List<Object> items = new ArrayList<>();
+            items.add(replyHeader(requestId, WireProtocol.STATUS_OK, plan.replyLength()));
+            for (DeltaPlan.Op op : plan.getOps()) {
+                items.add(DeltaPlan.header(op));
+                if (!op.isCopy()) items.add(new FileRegion(source, op.getOffset(), op.getLength()));
+            }
+            items.add(ByteBuffer.wrap(new byte[]{WireProtocol.DELTA_END}));
+            return items;
+        }));
+    }
+
+    // Joining only registers the receiver and, for the first one, opens a socket; fine on the loop
+    private void queueMulticast(int index, int requestId) {
+        if (multicast == null) {
+            queueError(requestId, "Multicast is not offered for this transfer");
+            return;
+        }
+        try {
+            queueReply(requestId, multicast.join(channel.socket().getInetAddress(), index));
+        } catch (IOException e) {
+            queueError(requestId, "Cannot join multicast session: " + e.getMessage());
+        }
+    }
+
+    private void queuePending(int requestId, CompletableFuture<List<Object>> items) {
+        outQueue.add(new PendingReply(requestId, items));
+        resumeWhenDone(items);
+    }
+
+    // Work the head of the queue waits for hands control back to the loop when done
+    private void resumeWhenDone(CompletableFuture<?> work) {
+        work.whenComplete((r, e) -> loop.execute(() -> {
+            try {
+                onWritable();
+            } catch (IOException | RuntimeException ex) {
+                close();
+            }
+        }));
+    }
+
+    private boolean waitingForReply() {
+        Object head = outQueue.peek();
+        if (head instanceof CompressedRange) {
+            CompletableFuture<ByteBuffer> frame = ((CompressedRange) head).frame;
+            return frame != null && !frame.isDone();
+        }
+        return head instanceof PendingReply && !((PendingReply) head).items.isDone();
+    }
+
+    // Replaces a finished placeholder at the head of the queue with the actual reply
+    private void resolve(PendingReply pending) {
+        try {
+            List<Object> items = pending.items.join();
+            long data = 0;
+            for (int i = items.size() - 1; i >= 0; i--) {
+                Object item = items.get(i);
+                if (item instanceof FileRegion) data += ((FileRegion) item).remaining;
+                if (item instanceof DataBuffer) data += ((DataBuffer) item).dataBytes;
+                outQueue.addFirst(item);
+            }
+            if (data > 0) expectData(data);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            byte[] text = ("Request failed: " + cause.getMessage()).getBytes(StandardCharsets.UTF_8);
+            outQueue.addFirst(ByteBuffer.wrap(text));
+            outQueue.addFirst(replyHeader(pending.requestId, WireProtocol.STATUS_ERROR, text.length));
+        }
+    }
+
+    private void expectData(long bytes) {
+        // Create the listener only on the first data request (prevents duplicate UI card for METADATA)
+        if (listener == null && listenerFactory != null) listener = listenerFactory.apply(channel.socket());
+        expected += bytes;
+    }
+
+    private void queueReply(int requestId, byte[] payload) {
+        outQueue.add(replyHeader(requestId, WireProtocol.STATUS_OK, payload.length));
+        outQueue.add(ByteBuffer.wrap(payload));
+    }
+
+    private void queueError(int requestId, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        outQueue.add(replyHeader(requestId, WireProtocol.STATUS_ERROR, text.length));
+        outQueue.add(ByteBuffer.wrap(text));
+    }
+
+    private static ByteBuffer replyHeader(int requestId, byte status, long length) {
+        ByteBuffer header = ByteBuffer.allocate(WireProtocol.REPLY_HEADER_SIZE);
+        header.putInt(requestId).put(status).putLong(length).flip();
+        return header;
+    }
+}
@@ -0,0 +1,161 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.transfer.ProgressListener;
+import org.develop.lancaster.core.transfer.TransferManifest;
+import org.develop.lancaster.core.util.NetworkUtils;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves accepted connections from a few selector threads instead of a thread per connection.
+ * Each loop owns its connections; {@link #register} hands new sockets over round robin.
+ */
+class NioServingEngine {
+
+    private static final Logger logger = Logger.getLogger(NioServingEngine.class.getName());
+
+    private final TransferManifest manifest;
+    private final DigestCache digests;
+    private final MulticastSession multicast;
+    private final SwarmTracker swarm;
+    private final Function<Socket, ProgressListener> listenerFactory;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    NioServingEngine(TransferManifest manifest, DigestCache digests, MulticastSession multicast, SwarmTracker swarm,
+                     Function<Socket, ProgressListener> listenerFactory, int loopCount) {
+        this.manifest = manifest;
+        this.digests = digests;
+        this.multicast = multicast;
+        this.swarm = swarm;
+        this.listenerFactory = listenerFactory;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    static int defaultLoopCount() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread t = new Thread(loops[i], "lancaster-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    void register(SocketChannel sc) throws IOException {
+        sc.configureBlocking(false);
+        try {
+            sc.socket().setTcpNoDelay(true);
+            NetworkUtils.tuneSendBuffer(sc.socket()); // 4 MB unless configured
+        } catch (SocketException se) {
+            logger.log(Level.FINE, "Socket tuning not permitted", se);
+        }
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.pending.add(sc);
+        loop.selector.wakeup();
+    }
+
+    void stop() {
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.stop();
+        }
+    }
+
+    private final class EventLoop implements Runnable, Executor {
+        final Selector selector;
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Work handed over from other threads (e.g. a finished hash) to run on this loop
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        volatile boolean running = true;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+                    runTasks();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException | RuntimeException e) {
+                            logger.log(Level.FINE, "[Engine] Connection dropped", e);
+                            conn.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) logger.log(Level.WARNING, "Selector loop failed", e);
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel sc;
+            while ((sc = pending.poll()) != null) {
+                try {
+                    SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(sc, key, manifest, digests, multicast, swarm, this, listenerFactory));
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Failed to register connection", e);
+                    try { sc.close(); } catch (IOException ignored) { /* ignore */ }
+                }
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) task.run();
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection) ((NioConnection) key.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException ignored) {
+                // shutting down
+            }
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package org.develop.lancaster.core.network;
 
+import org.develop.lancaster.core.transfer.HashIndex;
 import org.develop.lancaster.core.transfer.ProgressListener;
+import org.develop.lancaster.core.transfer.TransferJournal;
+import org.develop.lancaster.core.transfer.TransferManifest;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.TaskExecutors;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.net.Socket;
 import java.util.logging.Level;
@@ -16,9 +22,18 @@ import java.util.logging.Logger;
 public class Sender {
     private static final int PORT = 5000;
     private static final int THREAD_POOL_SIZE = 10;
+    private final int port;
+    private final CountDownLatch bound = new CountDownLatch(1);
+    private volatile int boundPort = -1;
     private volatile boolean running = false;
     private ServerSocketChannel serverSocketChannel;
     private ExecutorService pool;
+    private NioServingEngine engine;
+    private volatile TransferManifest manifest;
+    private DigestCache digests;
+    private MulticastSession multicast;
+    private SwarmTracker swarm;
+    private volatile int multicastReceivers;
 
     // Factory to create a listener
     private final Function<Socket, ProgressListener> listenerFactory;
@@ -32,17 +47,75 @@ public class Sender {
 
     // --- CONSTRUCTOR 2: WITH LISTENER (Used for Progress Bars) ---
     public Sender(Function<Socket, ProgressListener> listenerFactory) {
+        this(listenerFactory, PORT);
+    }
+
+    // Port 0 picks a free one (swarm peers serve next to the regular Sender); see awaitPort
+    public Sender(Function<Socket, ProgressListener> listenerFactory, int port) {
         this.listenerFactory = listenerFactory;
+        this.port = port;
     }
 
+    /**
+     * Offers one-to-many sending to receivers that ask for it: a single file is multicast once to
+     * everyone instead of once per receiver. Call before {@link #startServing}.
+     */
+    public void enableMulticast(int expectedReceivers) {
+        this.multicastReceivers = expectedReceivers;
+    }
+
+    // Hosts a single file or, for a directory, every regular file below it
     public void startServing(File file) {
-        pool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        try {
+            manifest = TransferManifest.scan(file);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to read " + file.getAbsolutePath(), e);
+            return;
+        }
+
+        // Digests of large files come from the persistent index; unknown ones are hashed in the background
+        digests = new DigestCache(manifest, HashIndex.shared());
+        digests.prefetch();
+        if (multicastReceivers > 0 && !manifest.isDirectory() && Config.isMulticastEnabled()) {
+            multicast = new MulticastSession(manifest, multicastReceivers);
+        }
+        // Downloaders of a single file find each other through the host
+        if (!manifest.isDirectory() && Config.isSwarmEnabled()) {
+            swarm = new SwarmTracker();
+        }
+        serve(file.getName() + (manifest.isDirectory() ? " (" + manifest.size() + " files)" : ""));
+    }
+
+    /**
+     * Serves the parts of a file that is still downloading: requests for ranges the journal has not
+     * committed yet are refused. Used by swarm peers; blocks like {@link #startServing}.
+     */
+    public void startSeeding(File partial, long size, long lastModified, TransferJournal journal) {
+        manifest = TransferManifest.partial(partial, size, lastModified, journal);
+        digests = new DigestCache(manifest);
+        serve(partial.getName() + " (partial)");
+    }
+
+    private void serve(String description) {
+        // Default: a few selector threads serve every connection; "blocking" keeps thread-per-connection
+        boolean blocking = "blocking".equalsIgnoreCase(Config.getServingEngine());
         running = true;
 
         try {
             serverSocketChannel = ServerSocketChannel.open();
-            serverSocketChannel.bind(new InetSocketAddress(PORT));
-            logger.info(() -> "[Sender] Hosting " + file.getName() + " on Port " + PORT);
+            // Deep backlog: swarms of range connections arrive together
+            serverSocketChannel.bind(new InetSocketAddress(port), 512);
+            boundPort = ((InetSocketAddress) serverSocketChannel.getLocalAddress()).getPort();
+            bound.countDown();
+
+            if (blocking) {
+                // Virtual-thread mode lifts the pool limit: one cheap thread per connection
+                pool = TaskExecutors.newBlockingExecutor("lancaster-handler", THREAD_POOL_SIZE);
+            } else {
+                engine = new NioServingEngine(manifest, digests, multicast, swarm, listenerFactory, NioServingEngine.defaultLoopCount());
+                engine.start();
+            }
+            logger.info(() -> "[Sender] Hosting " + description + " on Port " + boundPort);
 
             while (running) {
                 try {
@@ -50,23 +123,43 @@ public class Sender {
 
                     if (sc != null && running) {
                         logger.info(() -> "[Sender] Connected: " + sc.socket().getInetAddress());
-                        // Pass SocketChannel directly to ClientHandler to enable optimal transferTo
-                        pool.submit(new ClientHandler(sc, file.getAbsolutePath(), listenerFactory));
+                        if (engine != null) {
+                            engine.register(sc);
+                        } else {
+                            // Pass SocketChannel directly to ClientHandler to enable optimal transferTo
+                            pool.submit(new ClientHandler(sc, manifest, digests, multicast, swarm, listenerFactory));
+                        }
                     }
                 } catch (IOException e) {
                     if (running) logger.log(Level.WARNING, "Error accepting connection", e);
                 }
             }
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Port 5000 is occupied or failed to open server socket.", e);
+            logger.log(Level.SEVERE, "Port " + port + " is occupied or failed to open server socket.", e);
+            bound.countDown();
         }
     }
 
+    /** The port being served once bound; -1 if binding failed or did not happen in time. */
+    public int awaitPort(long timeoutMillis) throws InterruptedException {
+        bound.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return boundPort;
+    }
+
+    // Total bytes being hosted (sum of all files for a directory); 0 before serving starts
+    public long getTotalBytes() {
+        TransferManifest m = manifest;
+        return m == null ? 0 : m.getTotalSize();
+    }
+
     public void stop() {
         running = false;
         try {
             if (serverSocketChannel != null) serverSocketChannel.close();
             if (pool != null) pool.shutdownNow();
+            if (engine != null) engine.stop();
+            if (digests != null) digests.shutdown();
+            if (multicast != null) multicast.stop();
         } catch (IOException e) {
             logger.log(Level.WARNING, "Error while stopping sender", e);
         }
@@ -0,0 +1,59 @@
+package org.develop.lancaster.core.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The host's list of swarm peers: downloaders of the hosted file that serve what they already have
+ * on their own port. Peers re-register every few seconds while they download (and while they linger
+ * afterwards) and are forgotten {@link #EXPIRY_MS} after their last SWARM request.
+ */
+final class SwarmTracker {
+
+    private static final long EXPIRY_MS = 30_000;
+    // Enough for the downloader to spread its ranges; it learns about others on the next refresh
+    private static final int MAX_REPLY_PEERS = 64;
+
+    // "host:port" -> last seen; guarded by this
+    private final Map<String, Long> peers = new LinkedHashMap<>();
+
+    /** Registers the caller (if it serves) and returns the SWARM reply listing the other peers. */
+    synchronized byte[] register(InetAddress caller, int servePort) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = peers.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > EXPIRY_MS) it.remove();
+        }
+        String self = caller.getHostAddress() + ":" + servePort;
+        if (servePort > 0 && servePort <= 0xFFFF) {
+            // Re-inserted at the end, so the newest entries are the peers heard from last
+            peers.remove(self);
+            peers.put(self, now);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        int count = Math.min(MAX_REPLY_PEERS, peers.size() - (peers.containsKey(self) ? 1 : 0));
+        dos.writeInt(count);
+        int written = 0;
+        // Newest first, so a long list is cut among the peers that went quiet longest ago
+        List<String> newestFirst = new ArrayList<>(peers.keySet());
+        Collections.reverse(newestFirst);
+        for (String peer : newestFirst) {
+            if (written == count) break;
+            if (peer.equals(self)) continue;
+            int colon = peer.lastIndexOf(':');
+            dos.writeUTF(peer.substring(0, colon));
+            dos.writeInt(Integer.parseInt(peer.substring(colon + 1)));
+            written++;
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,117 @@
+package org.develop.lancaster.core.protocol;
+
+/**
+ * Binary framing used once a connection has been upgraded.
+ *
+ * Negotiation rides on the legacy text protocol: the client sends {@code writeUTF("HELLO|<version>")}.
+ * An old sender does not know the command and just closes the socket, so the client falls back to
+ * one UTF command per connection. A new sender answers {@code writeUTF("LCBIN|<version>")} with the
+ * version both sides speak, and from then on the connection carries binary frames in both directions.
+ *
+ * Request:  byte op, int requestId, op-specific payload
+ *           RANGE = int fileIndex, long start, long end
+ *           BATCH = int from, int to
+ *           DIGESTS = int fileIndex (version 3+; reply is the file's Merkle tree of block CRC32Cs)
+ *           DELTA = int fileIndex, int blockSize, int count, count x (int weak, int strong)
+ *                   (version 4+; reply is a stream of COPY / LITERAL instructions, see DeltaPlan)
+ *           RANGE_Z = int fileIndex, long start, long end, byte compression (version 5+)
+ *           MULTICAST = int fileIndex (version 6+; joins the sender's multicast session, reply is
+ *                       UTF group, int port, int session, int packetSize, long size)
+ *           SWARM = int servePort (version 7+; registers the caller as a swarm peer serving on that
+ *                   port, 0 = not serving; reply is int count, count x (UTF host, int port) of other peers)
+ *           HAVE = int fileIndex (version 7+; reply is int blockCount and a bitmap of the 1 MB blocks
+ *                  the peer can serve, BitSet.toByteArray order)
+ *           METADATA replies end with short length and the SHA-256 content digest of a single file
+ *           (version 8+; length 0 while the sender has not indexed the file yet)
+ * Reply:    int requestId, byte status, long length, then {@code length} payload bytes
+ *           (raw file bytes for RANGE, a UTF error message when status is ERROR)
+ *           RANGE_Z replies announce the raw range length and carry frames of
+ *           (byte codec, int rawLength, int encodedLength, encodedLength bytes) until it is covered
+ *
+ * Requests may be pipelined; replies come back in request order.
+ *
+ * Multicast datagrams: int MCAST_MAGIC, int session, byte type, int seq, then for DATA the bytes of
+ * packet {@code seq}; seq is the round for END and NAK. A NAK (receiver to sender, unicast) carries
+ * short count, count x (int firstPacket, int packets).
+ */
+public final class WireProtocol {
+
+    public static final int VERSION = 8;
+
+    // First version whose senders answer DIGESTS
+    public static final int VERSION_DIGESTS = 3;
+    // First version whose senders answer DELTA
+    public static final int VERSION_DELTA = 4;
+    // First version whose senders answer RANGE_Z
+    public static final int VERSION_COMPRESSION = 5;
+    // First version whose senders answer MULTICAST
+    public static final int VERSION_MULTICAST = 6;
+    // First version whose senders answer SWARM and HAVE
+    public static final int VERSION_SWARM = 7;
+    // First version whose METADATA replies carry a content digest
+    public static final int VERSION_CONTENT_DIGEST = 8;
+
+    public static final String HELLO_PREFIX = "HELLO|";
+    public static final String ACK_PREFIX = "LCBIN|";
+
+    public static final byte OP_CLOSE = 0;
+    public static final byte OP_METADATA = 1;
+    public static final byte OP_MANIFEST = 2;
+    public static final byte OP_RANGE = 3;
+    public static final byte OP_BATCH = 4;
+    public static final byte OP_DIGESTS = 5;
+    public static final byte OP_DELTA = 6;
+    public static final byte OP_RANGE_Z = 7;
+    public static final byte OP_MULTICAST = 8;
+    public static final byte OP_SWARM = 9;
+    public static final byte OP_HAVE = 10;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    public static final int REPLY_HEADER_SIZE = 4 + 1 + 8;
+
+    // BATCH payload frames each file as (int index, long length, bytes)
+    public static final int BATCH_FRAME_HEADER_SIZE = 4 + 8;
+
+    // Instructions inside a DELTA reply
+    public static final byte DELTA_END = 0;
+    public static final byte DELTA_COPY = 1;
+    public static final byte DELTA_LITERAL = 2;
+
+    // RANGE_Z compression byte: compress when it beats the link, or whenever the data shrinks
+    public static final byte COMPRESS_AUTO = 1;
+    public static final byte COMPRESS_ALWAYS = 2;
+
+    // RANGE_Z frame codecs
+    public static final byte CODEC_RAW = 0;
+    public static final byte CODEC_DEFLATE = 1;
+    public static final int FRAME_HEADER_SIZE = 1 + 4 + 4;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Multicast datagram types: file data, end of a round, end of the session, repair request,
+    // and a heartbeat while the session waits for its receivers
+    public static final int MCAST_MAGIC = 0x4C434D31; // "LCM1"
+    public static final byte MCAST_DATA = 1;
+    public static final byte MCAST_END = 2;
+    public static final byte MCAST_FINISH = 3;
+    public static final byte MCAST_NAK = 4;
+    public static final byte MCAST_WAIT = 5;
+    public static final int MCAST_HEADER_SIZE = 4 + 4 + 1 + 4;
+
+    private WireProtocol() {}
+
+    public static String hello() {
+        return HELLO_PREFIX + VERSION;
+    }
+
+    /** Parses "HELLO|n" / "LCBIN|n"; returns -1 if the text is not of that form. */
+    public static int parseVersion(String text, String prefix) {
+        if (text == null || !text.startsWith(prefix)) return -1;
+        try {
+            return Integer.parseInt(text.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
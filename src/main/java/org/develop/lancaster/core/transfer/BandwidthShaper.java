@@ -0,0 +1,203 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.util.Config;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Caps how fast LAN-Caster uses the network: one global limit over all traffic, one per remote peer
+ * and one per download, each changeable while transfers run. Traffic passes every bucket that
+ * applies ({@link Flow}) and waits for the slowest. Unused capacity is not reserved: a transfer
+ * that idles leaves the global and peer budgets to the others.
+ *
+ * Senders shape per peer (a receiver normally downloads one thing at a time from a sender), the
+ * download side also per transfer. Callers move data in chunks of up to {@link #QUANTUM} while a
+ * limit is set, which keeps zero-copy sends and the caps accurate to a few percent.
+ */
+public final class BandwidthShaper {
+
+    /** Largest chunk moved between two charges while a limit applies. */
+    public static final int QUANTUM = 1024 * 1024;
+
+    private static volatile BandwidthShaper shared;
+
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> peers = new ConcurrentHashMap<>();
+    private final Map<String, Long> peerOverrides = new ConcurrentHashMap<>();
+    private volatile long defaultPeerRate;
+    private volatile long defaultTransferRate;
+    private volatile ScheduledExecutorService timer;
+
+    /** Rates in bytes per second, 0 = unlimited; a negative peer rate takes per-peer caps from the config. */
+    public BandwidthShaper(long globalRate, long defaultPeerRate, long defaultTransferRate) {
+        this.global = new TokenBucket(globalRate);
+        this.defaultPeerRate = defaultPeerRate;
+        this.defaultTransferRate = defaultTransferRate;
+    }
+
+    /** The shaper for this process, with the rates from the config. */
+    public static BandwidthShaper shared() {
+        if (shared == null) {
+            synchronized (BandwidthShaper.class) {
+                if (shared == null) {
+                    shared = new BandwidthShaper(fromMbps(Config.getGlobalRateMbps()), -1,
+                            fromMbps(Config.getTransferRateMbps()));
+                }
+            }
+        }
+        return shared;
+    }
+
+    public static long fromMbps(long mbps) {
+        return Math.max(0, mbps) * 1_000_000L / 8;
+    }
+
+    /** Bytes per second over all traffic; 0 = unlimited. */
+    public void setGlobalRate(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    /** Cap for one peer, overriding the default; negative restores the default. */
+    public void setPeerRate(String ip, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            peerOverrides.remove(ip);
+        } else {
+            peerOverrides.put(ip, bytesPerSecond);
+        }
+        TokenBucket bucket = peers.get(ip);
+        if (bucket != null) bucket.setRate(peerRate(ip));
+    }
+
+    /** Cap for every peer without its own; applies to peers already seen too. */
+    public void setDefaultPeerRate(long bytesPerSecond) {
+        defaultPeerRate = Math.max(0, bytesPerSecond);
+        peers.forEach((ip, bucket) -> bucket.setRate(peerRate(ip)));
+    }
+
+    /** Cap for downloads started from now on; see {@link Transfer#setRate} for running ones. */
+    public void setDefaultTransferRate(long bytesPerSecond) {
+        defaultTransferRate = Math.max(0, bytesPerSecond);
+    }
+
+    private long peerRate(String ip) {
+        Long override = peerOverrides.get(ip);
+        if (override != null) return override;
+        // -1: not set by the caller, take it from the config
+        return defaultPeerRate >= 0 ? defaultPeerRate : fromMbps(Config.getPeerRateMbps(ip));
+    }
+
+    private TokenBucket peer(String ip) {
+        return peers.computeIfAbsent(ip, k -> new TokenBucket(peerRate(k)));
+    }
+
+    /** A new download with its own cap (the default transfer rate until changed). */
+    public Transfer openTransfer() {
+        return new Transfer(new TokenBucket(defaultTransferRate));
+    }
+
+    /** Traffic with {@code peerIp}, outside any particular download. */
+    public Flow flow(String peerIp) {
+        return new Flow(global, peer(peerIp), null);
+    }
+
+    // Wakes non-blocking senders once their wait is over
+    void schedule(Runnable task, long delayNanos) {
+        if (timer == null) {
+            synchronized (this) {
+                if (timer == null) {
+                    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "lancaster-shaper");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** One download: all its connections share a bucket, whichever peer they talk to. */
+    public final class Transfer {
+        private final TokenBucket bucket;
+
+        private Transfer(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        /** Bytes per second for this download; 0 = unlimited. */
+        public void setRate(long bytesPerSecond) {
+            bucket.setRate(bytesPerSecond);
+        }
+
+        public long getRate() {
+            return bucket.getRate();
+        }
+
+        /** This download's traffic with {@code peerIp}. */
+        public Flow flow(String peerIp) {
+            return new Flow(global, peer(peerIp), bucket);
+        }
+    }
+
+    /** The buckets one connection's traffic passes through. */
+    public final class Flow {
+        private final TokenBucket global;
+        private final TokenBucket peer;
+        private final TokenBucket transfer; // null outside a download
+
+        private Flow(TokenBucket global, TokenBucket peer, TokenBucket transfer) {
+            this.global = global;
+            this.peer = peer;
+            this.transfer = transfer;
+        }
+
+        /** Whether any cap applies right now; callers then move at most {@link #QUANTUM} per charge. */
+        public boolean isLimited() {
+            return global.isLimited() || peer.isLimited() || (transfer != null && transfer.isLimited());
+        }
+
+        /** Largest chunk to move before the next charge. */
+        public long chunk(long wanted) {
+            return isLimited() ? Math.min(wanted, QUANTUM) : wanted;
+        }
+
+        /** Charges bytes that moved and returns how long to wait before moving more, in nanoseconds. */
+        public long charge(long bytes) {
+            if (bytes <= 0) return delayNanos();
+            long wait = Math.max(global.charge(bytes), peer.charge(bytes));
+            return transfer == null ? wait : Math.max(wait, transfer.charge(bytes));
+        }
+
+        /** How long until every bucket lets traffic through again, in nanoseconds. */
+        public long delayNanos() {
+            long wait = Math.max(global.delayNanos(), peer.delayNanos());
+            return transfer == null ? wait : Math.max(wait, transfer.delayNanos());
+        }
+
+        /** Charges bytes that moved and waits as long as the caps require. */
+        public void acquire(long bytes) throws InterruptedIOException {
+            long wait = charge(bytes);
+            if (wait <= 0) return;
+            long until = System.nanoTime() + wait;
+            while ((wait = until - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while shaping");
+            }
+        }
+
+        /** Runs {@code task} after {@code delayNanos}, for callers that cannot block. */
+        public void resumeAfter(long delayNanos, Runnable task) {
+            schedule(task, delayNanos);
+        }
+    }
+}
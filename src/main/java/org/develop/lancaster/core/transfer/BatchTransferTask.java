@@ -0,0 +1,150 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.metrics.Metrics;
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.NetworkUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches a run of small files [from, to) over a single connection using a BATCH request.
+ * The sender streams them back to back as (int index, long length, bytes) frames.
+ * On failure the batch is retried from the first file that did not arrive completely.
+ */
+public class BatchTransferTask implements Callable<Boolean> {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final Logger logger = Logger.getLogger(BatchTransferTask.class.getName());
+    private static final Metrics metrics = Metrics.shared();
+
+    private final String serverIp;
+    private final int port;
+    private final TransferManifest manifest;
+    private final List<File> destinations;
+    private final int from;
+    private final int to;
+    private final ProgressListener listener;
+    private BandwidthShaper.Flow flow; // peer caps unless the download sets its own
+    private final long recvChunk = Config.getBatchReceiveChunkBytes(); // 16 MB unless configured
+    private final Metrics.Peer peerMetrics;
+
+    public BatchTransferTask(String serverIp, int port, TransferManifest manifest, List<File> destinations,
+                             int from, int to, ProgressListener listener) {
+        this.serverIp = serverIp;
+        this.port = port;
+        this.manifest = manifest;
+        this.destinations = destinations;
+        this.from = from;
+        this.to = to;
+        this.listener = listener;
+        this.peerMetrics = metrics.peer(serverIp);
+    }
+
+    /** Counts this batch against a download's bandwidth caps. */
+    BatchTransferTask shapedBy(BandwidthShaper.Flow flow) {
+        this.flow = flow;
+        return this;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+        if (flow == null) flow = BandwidthShaper.shared().flow(serverIp);
+        long expected = 0;
+        for (int i = from; i < to; i++) expected += manifest.get(i).getSize();
+
+        int next = from;
+        long received = 0;
+        IOException last = null;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && next < to; attempt++) {
+            PeerConnection conn = null;
+            SocketChannel legacy = null;
+            try {
+                SocketChannel sc;
+                conn = PeerConnection.connect(serverIp, port);
+                if (conn != null) {
+                    conn.requestBatch(next, to);
+                    conn.awaitReply();
+                    sc = conn.channel();
+                } else {
+                    // Pre-upgrade sender
+                    legacy = SocketChannel.open();
+                    try {
+                        NetworkUtils.tuneReceiveBuffer(legacy.socket()); // 2MB unless configured
+                    } catch (IOException ignored) {}
+                    legacy.connect(new InetSocketAddress(serverIp, port));
+                    DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(legacy));
+                    dos.writeUTF("BATCH|" + next + "|" + to);
+                    dos.flush();
+                    sc = legacy;
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(WireProtocol.BATCH_FRAME_HEADER_SIZE);
+                while (next < to) {
+                    header.clear();
+                    readFully(sc, header);
+                    header.flip();
+                    int index = header.getInt();
+                    long length = header.getLong();
+                    if (index != next || length != manifest.get(index).getSize()) {
+                        throw new IOException("Unexpected batch frame " + index + " (" + length + " bytes)");
+                    }
+
+                    receiveFile(sc, destinations.get(index), length);
+                    File dest = destinations.get(index);
+                    dest.setLastModified(manifest.get(index).getLastModified());
+
+                    received += length;
+                    next++;
+                    if (listener != null) listener.onProgress(received, expected);
+                }
+            } catch (IOException e) {
+                last = e;
+                metrics.retried();
+                logger.log(Level.FINE, "Batch " + next + ".." + to + " from " + serverIp + " failed, retrying", e);
+            } finally {
+                if (conn != null) conn.close();
+                if (legacy != null) legacy.close();
+            }
+        }
+
+        if (next < to) {
+            throw last != null ? last : new IOException("Batch " + from + ".." + to + " incomplete");
+        }
+        return true;
+    }
+
+    private void receiveFile(SocketChannel sc, File dest, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+             FileChannel fc = raf.getChannel()) {
+            fc.truncate(length);
+            long done = 0;
+            while (done < length) {
+                long began = System.nanoTime();
+                long read = fc.transferFrom(sc, done, flow.chunk(Math.min(length - done, recvChunk)));
+                metrics.transferFrom(System.nanoTime() - began);
+                if (read <= 0) throw new EOFException("Peer closed connection inside " + dest.getName());
+                peerMetrics.received(read);
+                done += read;
+                flow.acquire(read);
+            }
+        }
+    }
+
+    private static void readFully(SocketChannel sc, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (sc.read(buf) < 0) throw new EOFException("Peer closed connection");
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.develop.lancaster.core.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CRC32C of every block the receiver has written, filled in by {@link ChunkTransferTask} while the
+ * bytes stream past, so verification needs no second read of the data. Blocks that were not hashed
+ * on the way in (resumed from an earlier run, or cut by a failed range) are read back from disk
+ * when the file is verified.
+ */
+public class BlockChecksums {
+
+    private static final long UNKNOWN = -1L;
+
+    private final long[] sizes;
+    private final AtomicLongArray[] crcs;
+
+    // sizes[i] is the size of manifest entry i (a single file uses entry 0)
+    public BlockChecksums(long[] sizes) {
+        this.sizes = sizes.clone();
+        this.crcs = new AtomicLongArray[sizes.length];
+    }
+
+    public long getFileSize(int fileIndex) {
+        return sizes[Math.max(0, fileIndex)];
+    }
+
+    private AtomicLongArray blocksOf(int fileIndex) {
+        int i = Math.max(0, fileIndex);
+        synchronized (crcs) {
+            if (crcs[i] == null) {
+                AtomicLongArray blocks = new AtomicLongArray(FileDigests.blockCount(sizes[i]));
+                for (int b = 0; b < blocks.length(); b++) blocks.set(b, UNKNOWN);
+                crcs[i] = blocks;
+            }
+            return crcs[i];
+        }
+    }
+
+    void record(int fileIndex, int block, int crc) {
+        blocksOf(fileIndex).set(block, crc & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Compares the file with the sender's digests and returns the ranges of every block that differs.
+     * Bad blocks are forgotten, so the re-fetch records fresh checksums for them.
+     */
+    public List<ChunkRange> verify(int fileIndex, File file, FileDigests expected) throws IOException {
+        long size = getFileSize(fileIndex);
+        if (expected.getSize() != size) throw new IOException("Digests describe " + expected.getSize() + " bytes, file has " + size);
+
+        AtomicLongArray blocks = blocksOf(fileIndex);
+        List<ChunkRange> bad = new ArrayList<>();
+        FileChannel fc = null;
+        ByteBuffer buf = null;
+        try {
+            for (int b = 0; b < blocks.length(); b++) {
+                long crc = blocks.get(b);
+                if (crc == UNKNOWN) {
+                    if (fc == null) {
+                        fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                        buf = ByteBuffer.allocateDirect(FileDigests.BLOCK_SIZE);
+                    }
+                    crc = FileDigests.hashBlock(fc, b, size, buf) & 0xFFFFFFFFL;
+                }
+                if ((int) crc != expected.getLeaf(b)) {
+                    long start = (long) b * FileDigests.BLOCK_SIZE;
+                    bad.add(new ChunkRange(fileIndex, start, Math.min(size, start + FileDigests.BLOCK_SIZE)));
+                    blocks.set(b, UNKNOWN);
+                } else {
+                    blocks.set(b, crc);
+                }
+            }
+        } finally {
+            if (fc != null) fc.close();
+        }
+        return bad;
+    }
+}
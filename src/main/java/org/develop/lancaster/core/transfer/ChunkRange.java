@@ -0,0 +1,43 @@
+package org.develop.lancaster.core.transfer;
+
+/**
+ * Half-open byte range [start, end) of the file being downloaded. In directory mode
+ * {@code fileIndex} says which manifest entry the range belongs to; it is -1 for a plain
+ * single-file download.
+ */
+public final class ChunkRange {
+    private final int fileIndex;
+    private final long start;
+    private final long end;
+    private int attempts;
+    private volatile long takenAt; // System.nanoTime() when a worker took it; read when it commits
+
+    public ChunkRange(long start, long end) {
+        this(-1, start, end);
+    }
+
+    public ChunkRange(int fileIndex, long start, long end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range " + start + ".." + end);
+        }
+        this.fileIndex = fileIndex;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int getFileIndex() { return fileIndex; }
+    public long getStart() { return start; }
+    public long getEnd() { return end; }
+    public long length() { return end - start; }
+
+    // Only touched under the scheduler's lock
+    int getAttempts() { return attempts; }
+    void setAttempts(int attempts) { this.attempts = attempts; }
+    long getTakenAt() { return takenAt; }
+    void setTakenAt(long takenAt) { this.takenAt = takenAt; }
+
+    @Override
+    public String toString() {
+        return (fileIndex >= 0 ? "#" + fileIndex : "") + "[" + start + ", " + end + ")";
+    }
+}
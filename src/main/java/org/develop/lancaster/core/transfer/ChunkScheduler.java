@@ -0,0 +1,254 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Shared work queue for a single download.
+ *
+ * The file is cut into many small ranges up front. Long-lived {@link ChunkTransferTask} workers
+ * pull the next range whenever they finish one, so a fast connection keeps taking work while a
+ * slow one is still busy with its current range. Ranges that fail are put back at the head of
+ * the queue and picked up by whichever worker is free first.
+ *
+ * Uses a {@link ReentrantLock} rather than monitors so idle workers running on virtual threads
+ * unmount while they wait instead of pinning their carrier thread.
+ */
+public class ChunkScheduler {
+
+    public static final long MIN_CHUNK_SIZE = 1024L * 1024L;        // 1 MB
+    public static final long MAX_CHUNK_SIZE = 16L * 1024L * 1024L;  // 16 MB
+
+    // Aim for enough ranges that the tail of the download is spread across all workers
+    private static final int CHUNKS_PER_WORKER = 16;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final Metrics metrics = Metrics.shared();
+
+    private final Deque<ChunkRange> pending = new ArrayDeque<>();
+    private final long totalBytes;
+    private final Consumer<ChunkRange> onCommitted;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int inFlight = 0;
+    private Exception failure;
+
+    public ChunkScheduler(Collection<ChunkRange> ranges) {
+        this(ranges, null);
+    }
+
+    // onCommitted is told about every range whose bytes are written (e.g. to journal them)
+    public ChunkScheduler(Collection<ChunkRange> ranges, Consumer<ChunkRange> onCommitted) {
+        this.onCommitted = onCommitted;
+        long sum = 0;
+        for (ChunkRange r : ranges) {
+            if (r.length() == 0) continue;
+            pending.add(r);
+            sum += r.length();
+        }
+        this.totalBytes = sum;
+    }
+
+    /** Splits [0, fileSize) into ranges of {@code chunkSize} bytes (last one may be shorter). */
+    public static ChunkScheduler forFile(long fileSize, long chunkSize) {
+        Deque<ChunkRange> ranges = new ArrayDeque<>();
+        for (long pos = 0; pos < fileSize; pos += chunkSize) {
+            ranges.add(new ChunkRange(pos, Math.min(fileSize, pos + chunkSize)));
+        }
+        return new ChunkScheduler(ranges);
+    }
+
+    /**
+     * Picks a range size so every worker gets several ranges, clamped to [1 MB, 16 MB] and rounded
+     * to whole MB so ranges line up with {@link FileDigests} blocks.
+     */
+    public static long chooseChunkSize(long fileSize, int workers) {
+        long target = fileSize / ((long) Math.max(1, workers) * CHUNKS_PER_WORKER);
+        target = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+        return target - target % MIN_CHUNK_SIZE;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next range to fetch, or null once the download is finished or has failed.
+     * Blocks while the queue is empty but other workers still hold ranges that could be requeued.
+     */
+    public ChunkRange next() throws InterruptedException {
+        return next(null);
+    }
+
+    /** Like {@link #next()}, but takes the first range matching {@code prefer} if there is one. */
+    public ChunkRange next(Predicate<ChunkRange> prefer) throws InterruptedException {
+        lock.lock();
+        try {
+            while (failure == null) {
+                ChunkRange r = prefer != null ? poll(prefer) : null;
+                if (r == null) r = pending.pollFirst();
+                if (r != null) {
+                    take(r);
+                    return r;
+                }
+                if (inFlight == 0) return null;
+                changed.await();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Non-blocking variant of {@link #next()} for topping up a request pipeline. */
+    public ChunkRange tryNext() {
+        lock.lock();
+        try {
+            if (failure != null) return null;
+            ChunkRange r = pending.pollFirst();
+            if (r != null) take(r);
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Non-blocking: the first pending range matching {@code only}, or null if there is none right now. */
+    public ChunkRange tryNext(Predicate<ChunkRange> only) {
+        lock.lock();
+        try {
+            if (failure != null) return null;
+            ChunkRange r = poll(only);
+            if (r != null) take(r);
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private void take(ChunkRange r) {
+        inFlight++;
+        r.setTakenAt(System.nanoTime());
+    }
+
+    // Caller holds the lock
+    private ChunkRange poll(Predicate<ChunkRange> filter) {
+        for (Iterator<ChunkRange> it = pending.iterator(); it.hasNext(); ) {
+            ChunkRange r = it.next();
+            if (filter.test(r)) {
+                it.remove();
+                return r;
+            }
+        }
+        return null;
+    }
+
+    public void complete(ChunkRange range) {
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (range.getTakenAt() != 0) metrics.rangeCommitted(System.nanoTime() - range.getTakenAt());
+        // Outside the lock: the callback may hit the disk
+        if (onCommitted != null) onCommitted.accept(range);
+    }
+
+    /**
+     * Gives back the unfinished part of a range after a failed attempt. Once a range has failed
+     * too often the whole download is marked as failed.
+     */
+    public void retry(ChunkRange range, long bytesDone, Exception cause) {
+        lock.lock();
+        try {
+            inFlight--;
+            metrics.retried();
+            int attempts = range.getAttempts() + 1;
+            if (attempts >= MAX_ATTEMPTS) {
+                if (failure == null) failure = cause;
+            } else if (bytesDone < range.length()) {
+                ChunkRange rest = new ChunkRange(range.getFileIndex(), range.getStart() + bytesDone, range.getEnd());
+                // Progress on the range counts as a fresh start
+                rest.setAttempts(bytesDone > 0 ? 0 : attempts);
+                pending.addFirst(rest);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (onCommitted != null && bytesDone > 0) {
+            onCommitted.accept(new ChunkRange(range.getFileIndex(), range.getStart(), range.getStart() + bytesDone));
+        }
+    }
+
+    /**
+     * Gives back the unfinished part of a range whose source went away (a swarm peer leaving) without
+     * counting it as a failed attempt.
+     */
+    public void requeue(ChunkRange range, long bytesDone) {
+        lock.lock();
+        try {
+            inFlight--;
+            metrics.requeued();
+            if (bytesDone < range.length()) {
+                ChunkRange rest = new ChunkRange(range.getFileIndex(), range.getStart() + bytesDone, range.getEnd());
+                rest.setAttempts(range.getAttempts());
+                pending.addFirst(rest);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (onCommitted != null && bytesDone > 0) {
+            onCommitted.accept(new ChunkRange(range.getFileIndex(), range.getStart(), range.getStart() + bytesDone));
+        }
+    }
+
+    public void fail(Exception cause) {
+        lock.lock();
+        try {
+            if (failure == null) failure = cause;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Exception getFailure() {
+        lock.lock();
+        try {
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDone() {
+        lock.lock();
+        try {
+            return failure == null && pending.isEmpty() && inFlight == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,83 +1,494 @@
 package org.develop.lancaster.core.transfer;
 
+import org.develop.lancaster.core.metrics.Metrics;
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.NetworkUtils;
+
 import java.io.*;
-import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ChunkTransferTask implements Callable<Boolean> {
 
     private final String serverIp;
     private final int port;
-    private final long startByte;
-    private final long endByte;
-    private final File destinationFile;
+    private final List<File> destinations;
+    private final ChunkScheduler scheduler;
     private final int taskId;
     private final ProgressListener listener; // <--- NEW: Listener
+    private final BlockChecksums checksums; // null when the sender cannot provide digests
+    // Swarm mode: ranges to take first from the host, or the only ranges a peer can serve
+    private Predicate<ChunkRange> prefer;
+    private Predicate<ChunkRange> only;
+    private BandwidthShaper.Flow flow; // peer caps unless the download sets its own
+    private BooleanSupplier retired = () -> false;
+    private ReorderBuffer reorder; // spinning disk: writes go out in file order
+
+    // Ranges requested ahead on one connection, so the link never idles between replies
+    private static final int PIPELINE_DEPTH = 3;
+
+    private static final Logger logger = Logger.getLogger(ChunkTransferTask.class.getName());
+    private static final Metrics metrics = Metrics.shared();
+
+    // Ranges of the same file arrive back to back, so keeping one file open is enough
+    private int openIndex = Integer.MIN_VALUE;
+    private RandomAccessFile openFile;
 
-    private static final int BUFFER_SIZE = 64 * 1024;
+    // Bytes this worker has written so far, across all ranges it handled
+    private long workerBytes = 0;
 
-    // Updated Constructor
+    // Socket reads go through this buffer so each block can be hashed on its way to disk;
+    // taken from the runtime's pool for the length of call()
+    private ByteBuffer recvBuffer;
+    // "mmap" backend: plain ranges are read straight into the file's pages; null for "buffered"
+    private final MappedWindow mapped = "mmap".equals(Config.getReceiveBackend()) ? new MappedWindow() : null;
+    private final CRC32C crc = new CRC32C();
+    // Whether the block being written is hashed; false for a block joined in the middle
+    private boolean hashing;
+    private final Metrics.Peer peerMetrics;
+
+    // RANGE_Z: 0 = plain ranges, otherwise the compression byte sent with each request
+    private final byte compression = compressionMode();
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(WireProtocol.FRAME_HEADER_SIZE);
+    private Inflater inflater;
+    private byte[] packed = new byte[0];
+    private byte[] unpacked = new byte[0];
+
+    // Single fixed range (original behaviour)
     public ChunkTransferTask(String serverIp, int port, File destinationFile, long start, long end, int id, ProgressListener listener) {
+        this(serverIp, port, destinationFile, new ChunkScheduler(List.of(new ChunkRange(start, end))), id, listener);
+    }
+
+    // Long-lived worker: keeps pulling ranges from the shared scheduler until it runs dry
+    public ChunkTransferTask(String serverIp, int port, File destinationFile, ChunkScheduler scheduler, int id, ProgressListener listener) {
+        this(serverIp, port, List.of(destinationFile), scheduler, id, listener);
+    }
+
+    // Directory mode: ranges carry a manifest index into destinations
+    public ChunkTransferTask(String serverIp, int port, List<File> destinations, ChunkScheduler scheduler, int id, ProgressListener listener) {
+        this(serverIp, port, destinations, scheduler, null, id, listener);
+    }
+
+    // checksums, if given, receives the CRC32C of every whole block written
+    public ChunkTransferTask(String serverIp, int port, List<File> destinations, ChunkScheduler scheduler,
+                             BlockChecksums checksums, int id, ProgressListener listener) {
         this.serverIp = serverIp;
         this.port = port;
-        this.destinationFile = destinationFile;
-        this.startByte = start;
-        this.endByte = end;
+        this.destinations = destinations;
+        this.scheduler = scheduler;
+        this.checksums = checksums;
         this.taskId = id;
         this.listener = listener;
+        this.peerMetrics = metrics.peer(serverIp);
+    }
+
+    /** Counts this worker against a download's bandwidth caps. */
+    ChunkTransferTask shapedBy(BandwidthShaper.Flow flow) {
+        this.flow = flow;
+        return this;
+    }
+
+    /** Takes ranges matching {@code prefer} first when there is a choice. */
+    ChunkTransferTask preferring(Predicate<ChunkRange> prefer) {
+        this.prefer = prefer;
+        return this;
+    }
+
+    /**
+     * Only takes ranges matching {@code only} and stops once none is left, or on the first error
+     * (giving its ranges back without counting a failed attempt): the source is a swarm peer that
+     * holds just part of the file and may go away.
+     */
+    ChunkTransferTask onlyFrom(Predicate<ChunkRange> only) {
+        this.only = only;
+        return this;
+    }
+
+    /**
+     * Stops taking new ranges while {@code retired} holds and exits once the ones already requested
+     * are in: the stream tuner runs fewer connections.
+     */
+    ChunkTransferTask retireWhen(BooleanSupplier retired) {
+        this.retired = retired;
+        return this;
+    }
+
+    /**
+     * Hands received data to {@code reorder} instead of writing it, and commits a range only once
+     * the buffer has written all of it. A range cut short is fetched again from its start.
+     */
+    ChunkTransferTask writingThrough(ReorderBuffer reorder) {
+        this.reorder = reorder;
+        return this;
     }
 
     @Override
     public Boolean call() throws Exception {
-        // Use SocketChannel for better throughput and allow FileChannel.transferFrom
-        try (SocketChannel sc = SocketChannel.open();
-             RandomAccessFile raf = new RandomAccessFile(destinationFile, "rw");
-             FileChannel fileChannel = raf.getChannel()) {
+        if (flow == null) flow = BandwidthShaper.shared().flow(serverIp);
+        TransferRuntime runtime = TransferRuntime.shared();
+        recvBuffer = runtime.acquire();
+        PeerConnection conn = null;
+        boolean legacyPeer = false;
+
+        // Ranges requested on conn whose replies have not been read yet, oldest first
+        Deque<ChunkRange> pipeline = new ArrayDeque<>();
+
+        try {
+            while (true) {
+                if (pipeline.isEmpty()) {
+                    if (retired.getAsBoolean()) break;
+                    ChunkRange r = only != null ? scheduler.tryNext(only) : scheduler.next(prefer);
+                    if (r == null) break;
+                    begin(r);
+                    pipeline.add(r);
+                }
+
+                if (legacyPeer && only != null) {
+                    requeueAll(pipeline, 0, null);
+                    break;
+                }
+                if (legacyPeer) {
+                    fetchRangeLegacy(pipeline.poll());
+                    continue;
+                }
+
+                // 1. (Re)connect and send everything in the pipeline
+                if (conn == null) {
+                    try {
+                        conn = PeerConnection.connect(serverIp, port);
+                        if (conn == null) {
+                            // Old sender: one UTF command per connection from now on
+                            legacyPeer = true;
+                            continue;
+                        }
+                        for (ChunkRange r : pipeline) request(conn, r);
+                    } catch (IOException e) {
+                        closeQuietly(conn);
+                        conn = null;
+                        requeueAll(pipeline, 0, e);
+                        if (only != null) break;
+                        continue;
+                    }
+                }
+
+                // 2. Keep a few requests queued behind the one being received
+                long[] done = {0};
+                try {
+                    while (pipeline.size() < PIPELINE_DEPTH && !retired.getAsBoolean()) {
+                        ChunkRange more = only != null ? scheduler.tryNext(only) : scheduler.tryNext();
+                        if (more == null) break;
+                        begin(more);
+                        pipeline.add(more);
+                        request(conn, more);
+                    }
+
+                    ChunkRange head = pipeline.peek();
+                    long length = conn.awaitReply();
+                    if (length != head.length()) throw new IOException("Reply length " + length + " for " + head);
+                    if (compressed(conn)) {
+                        receiveFrames(conn, head, done);
+                    } else {
+                        receive(conn.channel(), head, done);
+                    }
+
+                    pipeline.poll();
+                    workerBytes += done[0];
+                    commit(head);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "[Task " + taskId + "] Connection failed at " + pipeline.peek() + ", requeueing", e);
+                    closeQuietly(conn);
+                    conn = null;
+                    long kept = keep(pipeline.peek(), done[0]);
+                    workerBytes += kept;
+                    requeueAll(pipeline, kept, e);
+                    if (only != null) break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            closeQuietly(conn);
+            if (mapped != null) mapped.close();
+            if (openFile != null) openFile.close();
+            if (inflater != null) inflater.end();
+            runtime.release(recvBuffer);
+            recvBuffer = null;
+        }
+        return scheduler.getFailure() == null;
+    }
+
+    private static byte compressionMode() {
+        switch (Config.getCompression()) {
+            case "off": return 0;
+            case "on": return WireProtocol.COMPRESS_ALWAYS;
+            default: return WireProtocol.COMPRESS_AUTO;
+        }
+    }
+
+    private boolean compressed(PeerConnection conn) {
+        return compression != 0 && conn.supportsCompression();
+    }
+
+    private void request(PeerConnection conn, ChunkRange range) throws IOException {
+        if (compressed(conn)) {
+            conn.requestCompressedRange(range, compression);
+        } else {
+            conn.requestRange(range);
+        }
+    }
+
+    // The head may be partly written; everything behind it was only requested
+    private void requeueAll(Deque<ChunkRange> pipeline, long headDone, IOException cause) {
+        boolean head = true;
+        ChunkRange r;
+        while ((r = pipeline.poll()) != null) {
+            if (reorder != null) reorder.abandon(r);
+            if (only != null) {
+                scheduler.requeue(r, head ? headDone : 0);
+            } else {
+                scheduler.retry(r, head ? headDone : 0, cause);
+            }
+            head = false;
+        }
+    }
+
+    private void begin(ChunkRange range) {
+        if (reorder != null) reorder.begin(range);
+    }
+
+    // Marks the range done once it is on disk
+    private void commit(ChunkRange range) throws IOException {
+        if (reorder != null) {
+            reorder.whenWritten(range, () -> scheduler.complete(range));
+        } else {
+            scheduler.complete(range);
+        }
+    }
+
+    /**
+     * How much of a partly received range to keep: with checksums only whole blocks, since the
+     * hash of a cut block is lost and the block must come again in one piece. Nothing when writing
+     * through a reorder buffer, which drops what it still holds of the range.
+     */
+    private long keep(ChunkRange range, long done) {
+        if (reorder != null) return 0;
+        if (checksums == null || range == null) return done;
+        long end = range.getStart() + done;
+        if (end == range.getEnd()) return done;
+        return Math.max(0, end - end % FileDigests.BLOCK_SIZE - range.getStart());
+    }
+
+    private FileChannel channelFor(ChunkRange range) throws IOException {
+        if (range.getFileIndex() != openIndex || openFile == null) {
+            if (mapped != null) mapped.release();
+            if (openFile != null) openFile.close();
+            openFile = null;
+            openFile = new RandomAccessFile(destinations.get(Math.max(0, range.getFileIndex())), "rw");
+            openIndex = range.getFileIndex();
+        }
+        return openFile.getChannel();
+    }
+
+    private void receive(SocketChannel sc, ChunkRange range, long[] done) throws IOException {
+        FileChannel fileChannel = channelFor(range);
+        startRange(range, done[0]);
+        receiveRaw(sc, fileChannel, range, done, range.length());
+    }
+
+    /** RANGE_Z reply: frames that are either raw bytes or deflated, until the range is covered. */
+    private void receiveFrames(PeerConnection conn, ChunkRange range, long[] done) throws IOException {
+        FileChannel fileChannel = channelFor(range);
+        startRange(range, done[0]);
+        long expectedSize = range.length();
+
+        while (done[0] < expectedSize) {
+            frameHeader.clear();
+            conn.readFully(frameHeader);
+            byte codec = frameHeader.get(0);
+            int rawLength = frameHeader.getInt(1);
+            int encodedLength = frameHeader.getInt(5);
+            if (rawLength <= 0 || rawLength > WireProtocol.MAX_FRAME_SIZE || rawLength > expectedSize - done[0]) {
+                throw new IOException("Invalid frame of " + rawLength + " bytes at " + done[0] + " of " + range);
+            }
+
+            if (codec == WireProtocol.CODEC_RAW) {
+                if (encodedLength != rawLength) throw new IOException("Raw frame with encoded length " + encodedLength);
+                receiveRaw(conn.channel(), fileChannel, range, done, done[0] + rawLength);
+            } else if (codec == WireProtocol.CODEC_DEFLATE) {
+                if (encodedLength <= 0 || encodedLength > WireProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid compressed frame of " + encodedLength + " bytes");
+                }
+                if (packed.length < encodedLength) packed = new byte[encodedLength];
+                if (unpacked.length < rawLength) unpacked = new byte[rawLength];
+                conn.readFully(ByteBuffer.wrap(packed, 0, encodedLength));
+                flow.acquire(encodedLength);
+                peerMetrics.received(encodedLength);
+                inflate(encodedLength, rawLength);
+                store(fileChannel, range, done, ByteBuffer.wrap(unpacked, 0, rawLength));
+            } else {
+                throw new IOException("Unknown frame codec " + codec);
+            }
+        }
+    }
+
+    private void inflate(int encodedLength, int rawLength) throws IOException {
+        if (inflater == null) inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(packed, 0, encodedLength);
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int got = inflater.inflate(unpacked, n, rawLength - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+            if (n != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed frame inflated to " + n + " bytes, expected " + rawLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+    }
+
+    // Hash only blocks received from their first byte; ranges normally start on a block boundary
+    private void startRange(ChunkRange range, long done) {
+        hashing = checksums != null && (range.getStart() + done) % FileDigests.BLOCK_SIZE == 0;
+        crc.reset();
+    }
+
+    // Copies socket bytes to the file until done reaches {@code until}
+    private void receiveRaw(SocketChannel sc, FileChannel fileChannel, ChunkRange range, long[] done, long until) throws IOException {
+        if (mapped != null && reorder == null) {
+            receiveMapped(sc, fileChannel, range, done, until);
+            return;
+        }
+        while (done[0] < until) {
+            recvBuffer.clear();
+            recvBuffer.limit((int) Math.min(recvBuffer.capacity(), until - done[0]));
+            long t0 = System.nanoTime();
+            int read = sc.read(recvBuffer);
+            metrics.socketRead(System.nanoTime() - t0);
+            if (read < 0) {
+                throw new EOFException("Peer closed connection after " + done[0] + " of " + range.length() + " bytes");
+            }
+            recvBuffer.flip();
+            store(fileChannel, range, done, recvBuffer);
+            flow.acquire(read);
+            peerMetrics.received(read);
+        }
+    }
+
+    // mmap backend: the socket fills the mapped window, store() then only hashes and counts
+    private void receiveMapped(SocketChannel sc, FileChannel fileChannel, ChunkRange range, long[] done, long until) throws IOException {
+        while (done[0] < until) {
+            ByteBuffer view = mapped.at(fileChannel, range.getStart() + done[0], Math.min(TransferRuntime.BUFFER_SIZE, until - done[0]));
+            int from = view.position();
+            long t0 = System.nanoTime();
+            int read = sc.read(view);
+            metrics.socketRead(System.nanoTime() - t0);
+            if (read < 0) {
+                throw new EOFException("Peer closed connection after " + done[0] + " of " + range.length() + " bytes");
+            }
+            view.flip().position(from);
+            store(null, range, done, view);
+            flow.acquire(read);
+            peerMetrics.received(read);
+        }
+    }
+
+    /**
+     * Writes {@code data} at the range's current position, hashing it block by block on the way.
+     * With a null channel the data is already in place (a mapped window) and is only hashed.
+     */
+    private void store(FileChannel fileChannel, ChunkRange range, long[] done, ByteBuffer data) throws IOException {
+        long fileSize = checksums != null ? checksums.getFileSize(range.getFileIndex()) : -1;
+
+        while (data.hasRemaining()) {
+            long pos = range.getStart() + done[0];
+            int n = (int) Math.min(data.remaining(), FileDigests.BLOCK_SIZE - pos % FileDigests.BLOCK_SIZE);
+
+            // Split at block boundaries, so each piece belongs to exactly one block
+            ByteBuffer piece = data.duplicate();
+            piece.limit(piece.position() + n);
+            if (hashing) crc.update(piece.duplicate());
+            if (reorder != null) {
+                reorder.put(range, pos, piece);
+            } else {
+                // Positional writes, so the channel position never matters
+                while (fileChannel != null && piece.hasRemaining()) {
+                    fileChannel.write(piece, pos + piece.position() - data.position());
+                }
+            }
+            data.position(data.position() + n);
+
+            done[0] += n;
+            pos += n;
+            if (checksums != null && (pos % FileDigests.BLOCK_SIZE == 0 || pos == fileSize)) {
+                if (hashing) checksums.record(range.getFileIndex(), (int) ((pos - 1) / FileDigests.BLOCK_SIZE), (int) crc.getValue());
+                crc.reset();
+                hashing = true;
+            }
+        }
+        if (listener != null) listener.onProgress(workerBytes + done[0], scheduler.getTotalBytes());
+    }
 
+    // Pre-upgrade senders: a fresh connection and a UTF command per range
+    private void fetchRangeLegacy(ChunkRange range) {
+        long[] done = {0};
+        begin(range);
+        try (SocketChannel sc = SocketChannel.open()) {
+            try {
+                NetworkUtils.tuneReceiveBuffer(sc.socket()); // 2MB unless configured
+            } catch (IOException ignored) {}
             sc.connect(new InetSocketAddress(serverIp, port));
             sc.configureBlocking(true);
             try {
                 sc.socket().setTcpNoDelay(true);
-                sc.socket().setReceiveBufferSize(2 * 1024 * 1024); // 2MB
             } catch (IOException ignored) {}
 
             // 1. Send Request using socket output stream
             DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(sc));
-            dos.writeUTF("CHUNK|" + startByte + "|" + endByte);
+            if (range.getFileIndex() < 0) {
+                dos.writeUTF("CHUNK|" + range.getStart() + "|" + range.getEnd());
+            } else {
+                dos.writeUTF("FCHUNK|" + range.getFileIndex() + "|" + range.getStart() + "|" + range.getEnd());
+            }
             dos.flush();
 
-            long totalRead = 0;
-            long expectedSize = endByte - startByte;
-
-            // Position file channel at the offset
-            fileChannel.position(startByte);
-
-            // Use transferFrom in chunks for zero-copy receive
-            final long RECV_CHUNK = 16L * 1024L * 1024L; // 16MB
-
-            while (totalRead < expectedSize) {
-                long remaining = expectedSize - totalRead;
-                long toRead = Math.min(remaining, RECV_CHUNK);
-
-                long read = fileChannel.transferFrom(sc, fileChannel.position(), toRead);
-                if (read <= 0) {
-                    if (Thread.interrupted()) break;
-                    continue;
-                }
-
-                totalRead += read;
-                // advance file position
-                fileChannel.position(fileChannel.position() + read);
+            receive(sc, range, done);
+            workerBytes += done[0];
+            commit(range);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "[Task " + taskId + "] Range " + range + " failed, requeueing", e);
+            if (reorder != null) reorder.abandon(range);
+            long kept = keep(range, done[0]);
+            workerBytes += kept;
+            scheduler.retry(range, kept, e);
+        }
+    }
 
-                if (listener != null) listener.onProgress(totalRead, expectedSize);
-            }
-            return true;
+    private static void closeQuietly(PeerConnection conn) {
+        if (conn == null) return;
+        try {
+            conn.close();
+        } catch (IOException ignored) {
+            // already broken
         }
     }
-}
\ No newline at end of file
+}
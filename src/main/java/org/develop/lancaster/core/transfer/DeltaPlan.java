@@ -0,0 +1,177 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.protocol.WireProtocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Sender side of a delta transfer: how to rebuild the sender's file from the receiver's old copy.
+ * Built by sliding the rolling checksum of {@link DeltaSignature} over the file once; the result is a
+ * list of "copy these blocks of your copy" and "here are bytes [offset, offset + length) of mine"
+ * instructions. Literal bytes are not kept in memory but sent straight from the file afterwards.
+ *
+ * Reply payload: repeated (byte DELTA_COPY, int block, int count) or
+ * (byte DELTA_LITERAL, long length, bytes), ended by byte DELTA_END.
+ */
+public final class DeltaPlan {
+
+    public static final int COPY_HEADER_SIZE = 1 + 4 + 4;
+    public static final int LITERAL_HEADER_SIZE = 1 + 8;
+
+    private static final int READ_SIZE = 8 * 1024 * 1024;
+
+    /** COPY: {@code first} is the block index, {@code second} the block count. LITERAL: offset and length. */
+    public static final class Op {
+        private final boolean copy;
+        private final long first;
+        private long second;
+
+        Op(boolean copy, long first, long second) {
+            this.copy = copy;
+            this.first = first;
+            this.second = second;
+        }
+
+        public boolean isCopy() { return copy; }
+        public int getBlock() { return (int) first; }
+        public int getBlockCount() { return (int) second; }
+        public long getOffset() { return first; }
+        public long getLength() { return second; }
+    }
+
+    private final List<Op> ops;
+    private final long literalBytes;
+
+    private DeltaPlan(List<Op> ops) {
+        this.ops = Collections.unmodifiableList(ops);
+        long sum = 0;
+        for (Op op : ops) if (!op.copy) sum += op.second;
+        this.literalBytes = sum;
+    }
+
+    public List<Op> getOps() { return ops; }
+    public long getLiteralBytes() { return literalBytes; }
+
+    /** Length of the reply payload, literal bytes included. */
+    public long replyLength() {
+        long length = 1; // DELTA_END
+        for (Op op : ops) length += op.copy ? COPY_HEADER_SIZE : LITERAL_HEADER_SIZE + op.second;
+        return length;
+    }
+
+    /** Header bytes for {@code op}; a LITERAL is followed by its bytes from the file. */
+    public static ByteBuffer header(Op op) {
+        ByteBuffer buf;
+        if (op.copy) {
+            buf = ByteBuffer.allocate(COPY_HEADER_SIZE);
+            buf.put(WireProtocol.DELTA_COPY).putInt((int) op.first).putInt((int) op.second);
+        } else {
+            buf = ByteBuffer.allocate(LITERAL_HEADER_SIZE);
+            buf.put(WireProtocol.DELTA_LITERAL).putLong(op.second);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public static DeltaPlan build(File source, long size, DeltaSignature sig) throws IOException {
+        int len = sig.getBlockSize();
+
+        // weak checksum -> candidate blocks (the common case is one)
+        Map<Integer, int[]> byWeak = new HashMap<>(sig.getBlockCount() * 2);
+        for (int b = 0; b < sig.getBlockCount(); b++) {
+            int[] prev = byWeak.get(sig.getWeak(b));
+            if (prev == null) {
+                byWeak.put(sig.getWeak(b), new int[]{b});
+            } else {
+                int[] grown = new int[prev.length + 1];
+                System.arraycopy(prev, 0, grown, 0, prev.length);
+                grown[prev.length] = b;
+                byWeak.put(sig.getWeak(b), grown);
+            }
+        }
+
+        List<Op> ops = new ArrayList<>();
+        if (byWeak.isEmpty() || size < len) {
+            if (size > 0) ops.add(new Op(false, 0, size));
+            return new DeltaPlan(ops);
+        }
+
+        // Sliding window over the file: data[bufStart..bufEnd) mirrors file[fileBase..fileBase + bufEnd)
+        byte[] data = new byte[Math.max(READ_SIZE, 2 * len)];
+        long fileBase = 0;
+        int bufEnd = 0;
+        CRC32C crc = new CRC32C();
+
+        try (FileChannel fc = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long pos = 0;          // window start in the file
+            long literalStart = 0; // first byte not yet covered by an instruction
+            int sum = 0;
+            boolean fresh = true;  // sum must be computed from scratch
+
+            while (pos + len <= size) {
+                // Keep the window plus one byte of look-ahead in the buffer
+                int at = (int) (pos - fileBase);
+                if (at + len + 1 > bufEnd && fileBase + bufEnd < size) {
+                    System.arraycopy(data, at, data, 0, bufEnd - at);
+                    bufEnd -= at;
+                    fileBase = pos;
+                    at = 0;
+                    ByteBuffer fill = ByteBuffer.wrap(data, bufEnd, data.length - bufEnd);
+                    while (fill.hasRemaining() && fileBase + fill.position() < size) {
+                        if (fc.read(fill, fileBase + fill.position()) < 0) break;
+                    }
+                    bufEnd = fill.position();
+                    if (fileBase + bufEnd < Math.min(size, pos + len)) throw new IOException(source + " shrank while reading");
+                }
+
+                if (fresh) {
+                    sum = DeltaSignature.rollingChecksum(data, at, len);
+                    fresh = false;
+                }
+
+                int match = -1;
+                int[] candidates = byWeak.get(sum);
+                if (candidates != null) {
+                    crc.reset();
+                    crc.update(data, at, len);
+                    int strong = (int) crc.getValue();
+                    for (int b : candidates) {
+                        if (sig.getStrong(b) == strong) {
+                            match = b;
+                            break;
+                        }
+                    }
+                }
+
+                if (match >= 0) {
+                    if (pos > literalStart) ops.add(new Op(false, literalStart, pos - literalStart));
+                    Op last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+                    // Consecutive blocks become one COPY
+                    if (last != null && last.copy && last.first + last.second == match) {
+                        last.second++;
+                    } else {
+                        ops.add(new Op(true, match, 1));
+                    }
+                    pos += len;
+                    literalStart = pos;
+                    fresh = true;
+                } else {
+                    if (pos + len < size) sum = DeltaSignature.roll(sum, len, data[at], data[at + len]);
+                    pos++;
+                }
+            }
+            if (size > literalStart) ops.add(new Op(false, literalStart, size - literalStart));
+        }
+        return new DeltaPlan(ops);
+    }
+}
@@ -0,0 +1,123 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.protocol.WireProtocol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receiver side of a delta transfer. Sends the signature of the existing file, then rebuilds the
+ * new version next to it ("name.lcdelta") from the sender's COPY / LITERAL instructions and moves
+ * it over the old one. Only the literal bytes cross the network.
+ */
+final class DeltaReceiver {
+
+    static final String SUFFIX = ".lcdelta";
+
+    private static final int RECV_BUFFER_SIZE = 256 * 1024;
+
+    private DeltaReceiver() {}
+
+    /**
+     * Updates {@code dest} to the sender's version of {@code size} bytes. Returns the number of literal
+     * bytes received, or -1 if the sender does not support delta transfers (nothing was changed).
+     */
+    static long download(String ip, int port, File dest, long size, ProgressListener listener) throws IOException {
+        DeltaSignature signature = DeltaSignature.compute(dest);
+        File temp = new File(dest.getParentFile(), dest.getName() + SUFFIX);
+
+        try (PeerConnection conn = PeerConnection.connect(ip, port)) {
+            if (conn == null || !conn.supportsDelta()) return -1;
+            conn.requestDelta(-1, signature);
+            long replyLength = conn.awaitReply();
+
+            long literal;
+            try (FileChannel basis = FileChannel.open(dest.toPath(), StandardOpenOption.READ);
+                 RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.setLength(0);
+                literal = apply(conn, replyLength, basis, signature.getBlockSize(), raf.getChannel(), size, listener);
+                raf.getChannel().force(false);
+            }
+
+            try {
+                Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return literal;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static long apply(PeerConnection conn, long replyLength, FileChannel basis, int blockSize,
+                              FileChannel out, long size, ProgressListener listener) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DeltaPlan.COPY_HEADER_SIZE);
+        ByteBuffer data = ByteBuffer.allocateDirect(RECV_BUFFER_SIZE);
+        long consumed = 0;
+        long written = 0;
+        long literal = 0;
+
+        while (true) {
+            header.clear().limit(1);
+            conn.readFully(header);
+            byte kind = header.get(0);
+            consumed++;
+            if (kind == WireProtocol.DELTA_END) break;
+
+            if (kind == WireProtocol.DELTA_COPY) {
+                header.limit(DeltaPlan.COPY_HEADER_SIZE);
+                conn.readFully(header);
+                long from = (long) header.getInt(1) * blockSize;
+                long length = (long) header.getInt(5) * blockSize;
+                consumed += DeltaPlan.COPY_HEADER_SIZE - 1;
+                if (length < 0 || from + length > basis.size()) throw new IOException("Delta copies beyond the local file");
+
+                out.position(written);
+                long copied = 0;
+                while (copied < length) {
+                    long n = basis.transferTo(from + copied, length - copied, out);
+                    if (n <= 0) throw new EOFException("Local file shrank during delta transfer");
+                    copied += n;
+                }
+                written += length;
+            } else if (kind == WireProtocol.DELTA_LITERAL) {
+                header.limit(DeltaPlan.LITERAL_HEADER_SIZE);
+                conn.readFully(header);
+                long length = header.getLong(1);
+                consumed += DeltaPlan.LITERAL_HEADER_SIZE - 1;
+                if (length < 0 || written + length > size) throw new IOException("Delta literal of " + length + " bytes overruns the file");
+
+                long done = 0;
+                while (done < length) {
+                    data.clear();
+                    data.limit((int) Math.min(data.capacity(), length - done));
+                    conn.readFully(data);
+                    data.flip();
+                    while (data.hasRemaining()) out.write(data, written + done + data.position());
+                    done += data.limit();
+                    if (listener != null) listener.onProgress(written + done, size);
+                }
+                written += length;
+                consumed += length;
+                literal += length;
+            } else {
+                throw new IOException("Unknown delta instruction " + kind);
+            }
+            if (written > size) throw new IOException("Delta produces more than " + size + " bytes");
+            if (listener != null) listener.onProgress(written, size);
+        }
+
+        if (consumed != replyLength) throw new IOException("Delta reply was " + consumed + " bytes, announced " + replyLength);
+        if (written != size) throw new IOException("Delta produced " + written + " of " + size + " bytes");
+        return literal;
+    }
+}
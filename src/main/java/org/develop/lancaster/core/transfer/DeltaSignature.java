@@ -0,0 +1,152 @@
+package org.develop.lancaster.core.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * rsync-style signature of the receiver's old copy of a file: for every full block a rolling
+ * (weak) checksum and a CRC32C (strong) checksum. The sender slides the weak checksum over its
+ * version byte by byte and only compares the CRC32C where the weak one matches.
+ *
+ * Two 32-bit checks can still collide; the result of a delta download is verified against the
+ * sender's {@link FileDigests} afterwards, which catches that.
+ */
+public final class DeltaSignature {
+
+    public static final int MIN_BLOCK_SIZE = 8 * 1024;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    // Refuse absurd requests: 16M blocks is already a 128 MB signature
+    public static final int MAX_BLOCKS = 16 * 1024 * 1024;
+
+    private final int blockSize;
+    private final int[] weak;
+    private final int[] strong;
+
+    private DeltaSignature(int blockSize, int[] weak, int[] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /** About sqrt(size), as rsync does, rounded to a power of two in [8 KB, 1 MB]. */
+    public static int chooseBlockSize(long size) {
+        long root = (long) Math.sqrt((double) size);
+        long pow = Long.highestOneBit(Math.max(1, root));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, pow));
+    }
+
+    /** Reads {@code basis} once and checksums every full block; a short tail is left out. */
+    public static DeltaSignature compute(File basis) throws IOException {
+        long size = basis.length();
+        int blockSize = chooseBlockSize(size);
+        long count = size / blockSize;
+        if (count > MAX_BLOCKS) throw new IOException(basis + " is too large for a delta signature");
+
+        int[] weak = new int[(int) count];
+        int[] strong = new int[(int) count];
+        // Several blocks per read; the array keeps the rolling checksum on plain bytes
+        int blocksPerRead = Math.max(1, (4 * 1024 * 1024) / blockSize);
+        byte[] data = new byte[blocksPerRead * blockSize];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        CRC32C crc = new CRC32C();
+
+        try (FileChannel fc = FileChannel.open(basis.toPath(), StandardOpenOption.READ)) {
+            for (int b = 0; b < count; b += blocksPerRead) {
+                int n = (int) Math.min(blocksPerRead, count - b);
+                buf.clear();
+                buf.limit(n * blockSize);
+                long pos = (long) b * blockSize;
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, pos + buf.position()) < 0) throw new IOException(basis + " shrank while reading");
+                }
+                for (int i = 0; i < n; i++) {
+                    int off = i * blockSize;
+                    weak[b + i] = rollingChecksum(data, off, blockSize);
+                    crc.reset();
+                    crc.update(data, off, blockSize);
+                    strong[b + i] = (int) crc.getValue();
+                }
+            }
+        }
+        return new DeltaSignature(blockSize, weak, strong);
+    }
+
+    /** rsync's weak checksum: a = sum of bytes, b = sum of running a, both mod 2^16. */
+    static int rollingChecksum(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            a += data[off + i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /** Slides a checksum of {@code len} bytes one byte forward: {@code out} leaves, {@code in} enters. */
+    static int roll(int sum, int len, byte out, byte in) {
+        int a = sum & 0xFFFF;
+        int b = sum >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - len * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    public int getBlockSize() { return blockSize; }
+    public int getBlockCount() { return weak.length; }
+    public int getWeak(int block) { return weak[block]; }
+    public int getStrong(int block) { return strong[block]; }
+
+    /** Bytes {@link #write} produces. */
+    public long encodedSize() {
+        return 4 + 4 + 8L * weak.length;
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(blockSize);
+        dos.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            dos.writeInt(weak[i]);
+            dos.writeInt(strong[i]);
+        }
+    }
+
+    public static DeltaSignature read(DataInputStream dis) throws IOException {
+        return read(dis.readInt(), dis.readInt(), dis);
+    }
+
+    /** Reads the block checksums after a header the caller has already consumed. */
+    public static DeltaSignature read(int blockSize, int count, DataInputStream dis) throws IOException {
+        checkHeader(blockSize, count);
+        int[] weak = new int[count];
+        int[] strong = new int[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = dis.readInt();
+            strong[i] = dis.readInt();
+        }
+        return new DeltaSignature(blockSize, weak, strong);
+    }
+
+    public static DeltaSignature read(int blockSize, int count, ByteBuffer buf) throws IOException {
+        checkHeader(blockSize, count);
+        int[] weak = new int[count];
+        int[] strong = new int[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = buf.getInt();
+            strong[i] = buf.getInt();
+        }
+        return new DeltaSignature(blockSize, weak, strong);
+    }
+
+    public static void checkHeader(int blockSize, int count) throws IOException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0 || count > MAX_BLOCKS) {
+            throw new IOException("Invalid delta signature: " + count + " blocks of " + blockSize + " bytes");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.develop.lancaster.core.transfer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admits downloads one by one instead of starting each as soon as it is asked for, so ten queued
+ * files do not run eighty connections against each other. At most {@code transfers.max.active}
+ * downloads run, at most {@code transfers.max.per.peer} of them from one peer; the others wait,
+ * highest priority first, then in the order they came. A peer at its cap does not hold up
+ * downloads from other peers.
+ *
+ * Running downloads split {@code transfers.max.connections} (and, per peer,
+ * {@code transfers.max.connections.per.peer}) evenly; a download's stream tuner stays within its
+ * {@link Ticket#connections() share}, which follows as downloads start and finish. Equal
+ * connection counts are what gives each download a fair share of the link (TCP) and of the
+ * bandwidth caps (every connection charges the same buckets).
+ *
+ * Priorities and limits can be changed at any time; waiting downloads are reordered at once.
+ * The process-wide queue belongs to the {@link TransferRuntime}.
+ */
+public final class DownloadQueue {
+
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    private static final Logger logger = Logger.getLogger(DownloadQueue.class.getName());
+
+    public enum State { QUEUED, RUNNING, FINISHED, CANCELLED }
+
+    /** One download's place in the queue. */
+    public final class Ticket {
+        private final String peer;
+        private final long seq;
+        private final BandwidthShaper.Transfer shaping;
+        private final Consumer<Ticket> job;
+        private final Runnable onCancel;
+        private int priority; // guarded by the queue
+        private volatile State state = State.QUEUED;
+
+        private Ticket(String peer, int priority, long seq, BandwidthShaper.Transfer shaping,
+                       Consumer<Ticket> job, Runnable onCancel) {
+            this.peer = peer;
+            this.priority = priority;
+            this.seq = seq;
+            this.shaping = shaping;
+            this.job = job;
+            this.onCancel = onCancel;
+        }
+
+        public String peer() {
+            return peer;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        /** This download's bandwidth cap, which can be changed while it waits or runs. */
+        public BandwidthShaper.Transfer shaping() {
+            return shaping;
+        }
+
+        public int priority() {
+            synchronized (DownloadQueue.this) {
+                return priority;
+            }
+        }
+
+        /** Higher runs first; reorders the queue if the download is still waiting. */
+        public void setPriority(int priority) {
+            synchronized (DownloadQueue.this) {
+                this.priority = priority;
+            }
+            admit();
+        }
+
+        /** Runs this download next, ahead of every other waiting one. */
+        public void moveToFront() {
+            synchronized (DownloadQueue.this) {
+                if (state != State.QUEUED || isFirst()) return;
+                int top = priority;
+                for (Ticket t : waiting) top = Math.max(top, t.priority);
+                priority = top + 1;
+            }
+            admit();
+        }
+
+        /** Drops the download if it is still waiting; false once it has started. */
+        public boolean cancel() {
+            synchronized (DownloadQueue.this) {
+                if (state != State.QUEUED) return false;
+                waiting.remove(this);
+                state = State.CANCELLED;
+            }
+            if (onCancel != null) onCancel.run();
+            return true;
+        }
+
+        /** Place among the waiting downloads, 1 for the next to run; 0 once it has left the queue. */
+        public int position() {
+            synchronized (DownloadQueue.this) {
+                if (state != State.QUEUED) return 0;
+                int ahead = 1;
+                for (Ticket t : waiting) {
+                    if (t != this && ORDER.compare(t, this) < 0) ahead++;
+                }
+                return ahead;
+            }
+        }
+
+        /** Connections this download may run now: its share of the global and per-peer budgets. */
+        public int connections() {
+            synchronized (DownloadQueue.this) {
+                int running = Math.max(1, active);
+                int fromPeer = Math.max(1, perPeer.getOrDefault(peer, 0));
+                return Math.max(1, Math.min(maxConnections / running, maxConnectionsPerPeer / fromPeer));
+            }
+        }
+
+        private boolean isFirst() {
+            for (Ticket t : waiting) {
+                if (t != this && ORDER.compare(t, this) < 0) return false;
+            }
+            return true;
+        }
+    }
+
+    // Highest priority first, then first come
+    private static final Comparator<Ticket> ORDER = Comparator.<Ticket>comparingInt(t -> -t.priority)
+            .thenComparingLong(t -> t.seq);
+
+    private final Executor executor;
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final Map<String, Integer> perPeer = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private int active;
+    private int maxActive;
+    private int maxPerPeer;
+    private int maxConnections;
+    private int maxConnectionsPerPeer;
+
+    /** Admitted downloads run on {@code executor}, which should not bound them below {@code maxActive}. */
+    public DownloadQueue(Executor executor, int maxActive, int maxPerPeer, int maxConnections,
+                         int maxConnectionsPerPeer) {
+        this.executor = executor;
+        setLimits(maxActive, maxPerPeer, maxConnections, maxConnectionsPerPeer);
+    }
+
+    /**
+     * Queues {@code job}, which runs on a queue thread once admitted and holds its slot until it
+     * returns. {@code onCancel} runs instead if the ticket is cancelled while waiting.
+     */
+    public Ticket submit(String peerIp, int priority, BandwidthShaper.Transfer shaping, Consumer<Ticket> job,
+                         Runnable onCancel) {
+        Ticket ticket = new Ticket(peerIp, priority, sequence.incrementAndGet(), shaping, job, onCancel);
+        synchronized (this) {
+            waiting.add(ticket);
+        }
+        admit();
+        return ticket;
+    }
+
+    /** Changes the limits; running downloads keep going, new ones are admitted against the new caps. */
+    public void setLimits(int maxActive, int maxPerPeer, int maxConnections, int maxConnectionsPerPeer) {
+        synchronized (this) {
+            this.maxActive = Math.max(1, maxActive);
+            this.maxPerPeer = Math.max(1, maxPerPeer);
+            this.maxConnections = Math.max(1, maxConnections);
+            this.maxConnectionsPerPeer = Math.max(1, maxConnectionsPerPeer);
+        }
+        admit();
+    }
+
+    /** Waiting downloads in the order they will run. */
+    public synchronized List<Ticket> queued() {
+        List<Ticket> sorted = new ArrayList<>(waiting);
+        sorted.sort(ORDER);
+        return sorted;
+    }
+
+    /** Cancels every waiting download, as {@link Ticket#cancel()} does; returns how many there were. */
+    public int cancelAll() {
+        int cancelled = 0;
+        for (Ticket t : queued()) {
+            if (t.cancel()) cancelled++;
+        }
+        return cancelled;
+    }
+
+    public synchronized int activeCount() {
+        return active;
+    }
+
+    // Starts waiting downloads while there is room for them
+    private void admit() {
+        List<Ticket> started = new ArrayList<>();
+        synchronized (this) {
+            while (active < maxActive) {
+                Ticket next = null;
+                for (Ticket t : waiting) {
+                    if (perPeer.getOrDefault(t.peer, 0) >= maxPerPeer) continue;
+                    if (next == null || ORDER.compare(t, next) < 0) next = t;
+                }
+                if (next == null) break;
+                waiting.remove(next);
+                next.state = State.RUNNING;
+                active++;
+                perPeer.merge(next.peer, 1, Integer::sum);
+                started.add(next);
+            }
+        }
+        boolean rejected = false;
+        for (Ticket t : started) {
+            try {
+                executor.execute(() -> run(t));
+            } catch (RejectedExecutionException e) {
+                // The runtime is shutting down: the download gives its slot back and ends as cancelled
+                logger.log(Level.WARNING, "[Queue] Download from " + t.peer + " could not start", e);
+                synchronized (this) {
+                    t.state = State.CANCELLED;
+                    release(t);
+                }
+                if (t.onCancel != null) t.onCancel.run();
+                rejected = true;
+            }
+        }
+        // Those still waiting cannot run either; each is admitted and turned away in turn
+        if (rejected) admit();
+    }
+
+    private void run(Ticket ticket) {
+        try {
+            ticket.job.accept(ticket);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "[Queue] Download from " + ticket.peer + " failed", e);
+        } finally {
+            synchronized (this) {
+                ticket.state = State.FINISHED;
+                release(ticket);
+            }
+            admit();
+        }
+    }
+
+    // Frees a running download's slot; caller holds the lock
+    private void release(Ticket ticket) {
+        active--;
+        perPeer.computeIfPresent(ticket.peer, (k, n) -> n > 1 ? n - 1 : null);
+    }
+}
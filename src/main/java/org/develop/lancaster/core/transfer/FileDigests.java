@@ -0,0 +1,116 @@
+package org.develop.lancaster.core.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Merkle tree over a file: one CRC32C leaf per {@link #BLOCK_SIZE} block, inner nodes are the CRC32C
+ * of their two children. Only the leaves and the root travel on the wire; the receiver rebuilds the
+ * tree from the leaves and checks it against the root before trusting them.
+ *
+ * Blocks line up with {@link ChunkScheduler#MIN_CHUNK_SIZE}, so every range of a download covers
+ * whole blocks (the last block of a file may be shorter).
+ */
+public final class FileDigests {
+
+    public static final int BLOCK_SIZE = (int) ChunkScheduler.MIN_CHUNK_SIZE;
+
+    private final long size;
+    private final int[] leaves;
+    private final int root;
+
+    public FileDigests(long size, int[] leaves) {
+        if (leaves.length != blockCount(size)) {
+            throw new IllegalArgumentException(leaves.length + " leaves for " + size + " bytes");
+        }
+        this.size = size;
+        this.leaves = leaves;
+        this.root = merkleRoot(leaves);
+    }
+
+    public static int blockCount(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /** Reads the whole file once and hashes it block by block. */
+    public static FileDigests compute(File file, long size) throws IOException {
+        int[] leaves = new int[blockCount(size)];
+        ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int b = 0; b < leaves.length; b++) {
+                leaves[b] = hashBlock(fc, b, size, buf);
+            }
+        }
+        return new FileDigests(size, leaves);
+    }
+
+    /** CRC32C of block {@code block} of a file of {@code size} bytes, read through {@code buf}. */
+    static int hashBlock(FileChannel fc, int block, long size, ByteBuffer buf) throws IOException {
+        long pos = (long) block * BLOCK_SIZE;
+        buf.clear();
+        buf.limit((int) Math.min(BLOCK_SIZE, size - pos));
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, pos + buf.position()) < 0) throw new EOFException("File shorter than " + size + " bytes");
+        }
+        buf.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(buf);
+        return (int) crc.getValue();
+    }
+
+    private static int merkleRoot(int[] leaves) {
+        if (leaves.length == 0) return 0;
+        int[] level = leaves;
+        ByteBuffer pair = ByteBuffer.allocate(8);
+        CRC32C crc = new CRC32C();
+        while (level.length > 1) {
+            int[] up = new int[(level.length + 1) / 2];
+            for (int i = 0; i < up.length; i++) {
+                pair.clear();
+                pair.putInt(level[2 * i]);
+                // An odd node at the end is hashed on its own
+                if (2 * i + 1 < level.length) pair.putInt(level[2 * i + 1]);
+                pair.flip();
+                crc.reset();
+                crc.update(pair);
+                up[i] = (int) crc.getValue();
+            }
+            level = up;
+        }
+        return level[0];
+    }
+
+    public long getSize() { return size; }
+    public int getBlockCount() { return leaves.length; }
+    public int getLeaf(int block) { return leaves[block]; }
+    public int getRoot() { return root; }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeLong(size);
+        dos.writeInt(BLOCK_SIZE);
+        dos.writeInt(leaves.length);
+        for (int leaf : leaves) dos.writeInt(leaf);
+        dos.writeInt(root);
+    }
+
+    public static FileDigests read(DataInputStream dis) throws IOException {
+        long size = dis.readLong();
+        int blockSize = dis.readInt();
+        int count = dis.readInt();
+        if (blockSize != BLOCK_SIZE || count != blockCount(size)) {
+            throw new IOException("Unsupported digest layout: " + count + " blocks of " + blockSize + " bytes");
+        }
+        int[] leaves = new int[count];
+        for (int i = 0; i < count; i++) leaves[i] = dis.readInt();
+        FileDigests digests = new FileDigests(size, leaves);
+        if (digests.root != dis.readInt()) throw new IOException("Digest leaves do not match their Merkle root");
+        return digests;
+    }
+}
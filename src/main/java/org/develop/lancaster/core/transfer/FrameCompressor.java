@@ -0,0 +1,170 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.protocol.WireProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Sender side of RANGE_Z: decides frame by frame whether compressing is worth it. A frame is sent
+ * compressed only if a sample of it shrinks and the measured deflate speed beats the measured link
+ * speed by more than the bytes saved; otherwise it goes out raw, straight from the file. Frames go
+ * out raw until the link speed is known, so it is measured before anything is deflated. After
+ * incompressible samples in a row (media, archives) the following frames are sent raw without
+ * sampling at all, for a stretch that doubles with every further miss.
+ *
+ * One instance per connection; encoding is synchronized because NIO encodes off the event loop.
+ * NIO asks {@link #wantsSample()} on the loop and runs only the frames that are worth trying through
+ * {@link #encodeSampled} on a pool; raw frames never leave the loop.
+ */
+public final class FrameCompressor {
+
+    public static final int FRAME_SIZE = 1024 * 1024;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // A sample must shrink to this fraction, a whole frame to FRAME_RATIO, to be sent compressed
+    private static final double SAMPLE_RATIO = 0.9;
+    private static final double FRAME_RATIO = 0.95;
+    // Most raw frames sent unsampled after incompressible samples
+    private static final int MAX_BACKOFF = 16;
+    // Sample anyway every so often while the link is faster, so the speeds stay current
+    private static final int PROBE_INTERVAL = 64;
+    private static final double EWMA_WEIGHT = 0.25;
+
+    private final boolean always;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    // Bytes per nanosecond; 0 = not measured yet. The link rate has a single writer (the thread
+    // sending on the connection) and is not locked, so measuring never waits for a frame being encoded
+    private volatile double linkRate;
+    private double deflateRate;
+    private double ratio = 1.0;
+    private int backoff;
+    private int misses;
+    private int sinceProbe;
+
+    private long framesCompressed;
+    private long bytesSaved;
+
+    public FrameCompressor(byte mode) {
+        this.always = mode == WireProtocol.COMPRESS_ALWAYS;
+    }
+
+    /** Records {@code bytes} put on the wire in {@code nanos}; only called by the sending thread. */
+    public void recordLink(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+        linkRate = ewma(linkRate, (double) bytes / nanos);
+    }
+
+    /** Header of a raw frame; its {@code length} bytes follow straight from the file. */
+    public static ByteBuffer rawHeader(int length) {
+        ByteBuffer buf = ByteBuffer.allocate(WireProtocol.FRAME_HEADER_SIZE);
+        buf.put(WireProtocol.CODEC_RAW).putInt(length).putInt(length);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * A complete compressed frame (header included) for file bytes [pos, pos + length), or null if the
+     * frame should go out raw.
+     */
+    public synchronized ByteBuffer encode(FileChannel fc, long pos, int length) throws IOException {
+        return worthSampling() ? encodeSampled(fc, pos, length) : null;
+    }
+
+    /**
+     * Whether the next frame is worth a sample. Cheap (no I/O); false means send it raw. Counts as
+     * that frame's decision, so call it once per frame.
+     */
+    public synchronized boolean wantsSample() {
+        return worthSampling();
+    }
+
+    /** {@link #encode} for a frame {@link #wantsSample()} already picked; null if it should go out raw. */
+    public synchronized ByteBuffer encodeSampled(FileChannel fc, long pos, int length) throws IOException {
+        sample.clear().limit(Math.min(SAMPLE_SIZE, length));
+        readFully(fc, sample, pos);
+        int sampled = sample.position();
+        // The backoff covers a miss; the ratio stays that of the last compressible frame
+        if (deflate(sample.array(), sampled) > sampled * SAMPLE_RATIO) {
+            backoff = Math.min(MAX_BACKOFF, (1 << Math.min(misses, 5)) - 1);
+            misses++;
+            return null;
+        }
+        misses = 0;
+
+        if (input.length < length) input = new byte[length];
+        ByteBuffer in = ByteBuffer.wrap(input, 0, length);
+        readFully(fc, in, pos);
+
+        long started = System.nanoTime();
+        int compressed = deflate(input, length);
+        deflateRate = ewma(deflateRate, (double) length / Math.max(1, System.nanoTime() - started));
+        ratio = (double) compressed / length;
+        if (compressed > length * FRAME_RATIO) return null;
+
+        framesCompressed++;
+        bytesSaved += length - compressed - WireProtocol.FRAME_HEADER_SIZE;
+        ByteBuffer frame = ByteBuffer.allocate(WireProtocol.FRAME_HEADER_SIZE + compressed);
+        frame.put(WireProtocol.CODEC_DEFLATE).putInt(length).putInt(compressed);
+        frame.put(output, 0, compressed);
+        frame.flip();
+        return frame;
+    }
+
+    private boolean worthSampling() {
+        if (backoff > 0) {
+            backoff--;
+            return false;
+        }
+        if (always) return true;
+        // Raw until the link has been measured: a link that never fills is not worth compressing for
+        if (linkRate == 0) return false;
+        if (deflateRate == 0) return true;
+        // Serial cost: raw/link vs raw/deflate + raw*ratio/link  =>  compress while link < deflate * (1 - ratio)
+        if (linkRate < deflateRate * (1 - ratio)) return true;
+        if (++sinceProbe >= PROBE_INTERVAL) {
+            sinceProbe = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private int deflate(byte[] data, int length) {
+        // deflateBound is not exposed; stored blocks add a few bytes per 16 KB
+        int bound = length + (length >> 12) + 64;
+        if (output.length < bound) output = new byte[bound];
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < output.length) {
+            n += deflater.deflate(output, n, output.length - n);
+        }
+        return deflater.finished() ? n : Integer.MAX_VALUE;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long pos) throws IOException {
+        long start = pos - buf.position();
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, start + buf.position()) < 0) throw new IOException("File shrank while reading");
+        }
+    }
+
+    private static double ewma(double current, double sample) {
+        return current == 0 ? sample : current + EWMA_WEIGHT * (sample - current);
+    }
+
+    public synchronized long getFramesCompressed() { return framesCompressed; }
+    public synchronized long getBytesSaved() { return bytesSaved; }
+
+    /** Frees the native deflater. */
+    public synchronized void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,263 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.util.Config;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of file hashes on the sending side, stored as one small file per source under
+ * {@code ~/.lancaster/hashes}. An entry holds the block CRC32Cs ({@link FileDigests}) and a SHA-256
+ * content digest, and is keyed by absolute path, size, mtime and inode. Lookups only compare those
+ * attributes with a fresh stat, so an unchanged file is never read again; a changed one is rehashed.
+ *
+ * Hashing splits the file into block runs on a fork-join pool, so a large file is hashed on all
+ * cores at once. The content digest is the SHA-256 over the SHA-256 of each block, which lets the
+ * blocks be hashed in any order.
+ */
+public final class HashIndex {
+
+    /** Hashes of one file as it was when indexed. */
+    public static final class Record {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String fileKey;
+        private final FileDigests digests;
+        private final byte[] contentDigest;
+
+        Record(String path, long size, long lastModified, String fileKey, FileDigests digests, byte[] contentDigest) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.digests = digests;
+            this.contentDigest = contentDigest;
+        }
+
+        public long getSize() { return size; }
+        public FileDigests getDigests() { return digests; }
+        public byte[] getContentDigest() { return contentDigest.clone(); }
+
+        boolean matches(String path, BasicFileAttributes attrs) {
+            return this.path.equals(path) && size == attrs.size()
+                    && lastModified == attrs.lastModifiedTime().toMillis()
+                    && fileKey.equals(fileKeyOf(attrs));
+        }
+    }
+
+    private static final int MAGIC = 0x4C434831; // "LCH1"
+    private static final String SUFFIX = ".lch";
+
+    // Blocks hashed by one fork-join leaf task
+    private static final int BLOCKS_PER_TASK = 8;
+
+    private static final Logger logger = Logger.getLogger(HashIndex.class.getName());
+
+    private static volatile HashIndex shared;
+
+    private final Path dir;
+    private final Map<String, Record> loaded = new ConcurrentHashMap<>();
+    private final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    public HashIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    /** The index in the user's LAN-Caster folder. */
+    public static HashIndex shared() {
+        if (shared == null) {
+            synchronized (HashIndex.class) {
+                if (shared == null) shared = new HashIndex(Config.getDataDir().resolve("hashes"));
+            }
+        }
+        return shared;
+    }
+
+    /** Returns the indexed hashes if they still describe the file, or null. Never reads the file itself. */
+    public Record lookup(File file) throws IOException {
+        Path p = file.toPath().toAbsolutePath();
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        String key = p.toString();
+
+        Record r = loaded.get(key);
+        if (r == null) {
+            r = load(entryFile(key));
+            if (r == null) return null;
+            loaded.put(key, r);
+        }
+        return r.matches(key, attrs) ? r : null;
+    }
+
+    /** Indexed hashes of the file, hashing (and storing) it first if it is new or has changed. */
+    public Record get(File file) throws IOException {
+        Record r = lookup(file);
+        return r != null ? r : compute(file);
+    }
+
+    private Record compute(File file) throws IOException {
+        Path p = file.toPath().toAbsolutePath();
+        BasicFileAttributes before = Files.readAttributes(p, BasicFileAttributes.class);
+        long size = before.size();
+        int blocks = FileDigests.blockCount(size);
+        int[] crcs = new int[blocks];
+        byte[][] shas = new byte[blocks][];
+
+        long started = System.nanoTime();
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+            pool.invoke(new HashTask(fc, size, 0, blocks, crcs, shas));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        MessageDigest whole = sha256();
+        for (byte[] sha : shas) whole.update(sha);
+
+        Record r = new Record(p.toString(), size, before.lastModifiedTime().toMillis(), fileKeyOf(before),
+                new FileDigests(size, crcs), whole.digest());
+
+        // Modified while being hashed: hand out the result but do not remember it
+        BasicFileAttributes after = Files.readAttributes(p, BasicFileAttributes.class);
+        if (!r.matches(p.toString(), after)) {
+            logger.info(() -> "[Index] " + p + " changed while hashing, not indexed");
+            return r;
+        }
+        loaded.put(r.path, r);
+        try {
+            store(r);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to write hash index entry for " + p, e);
+        }
+        long ms = (System.nanoTime() - started) / 1_000_000;
+        logger.info(() -> "[Index] Hashed " + p.getFileName() + " (" + size + " bytes) in " + ms + " ms");
+        return r;
+    }
+
+    /** Hashes blocks [from, to): splits in halves until a run is small enough to read directly. */
+    private static final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // One block buffer per pool thread, kept across tasks and files
+        private static final ThreadLocal<ByteBuffer> BLOCK_BUFFER =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(FileDigests.BLOCK_SIZE));
+
+        private final transient FileChannel fc;
+        private final long size;
+        private final int from;
+        private final int to;
+        private final int[] crcs;
+        private final byte[][] shas;
+
+        HashTask(FileChannel fc, long size, int from, int to, int[] crcs, byte[][] shas) {
+            this.fc = fc;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+            this.crcs = crcs;
+            this.shas = shas;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BLOCKS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(fc, size, from, mid, crcs, shas), new HashTask(fc, size, mid, to, crcs, shas));
+                return;
+            }
+            ByteBuffer buf = BLOCK_BUFFER.get();
+            buf.clear();
+            MessageDigest sha = sha256();
+            try {
+                for (int b = from; b < to; b++) {
+                    // hashBlock leaves the block between position 0 and the limit
+                    crcs[b] = FileDigests.hashBlock(fc, b, size, buf);
+                    buf.rewind();
+                    sha.update(buf);
+                    shas[b] = sha.digest();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // --- Storage ---
+
+    private Path entryFile(String path) {
+        return dir.resolve(UUID.nameUUIDFromBytes(path.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+
+    private Record load(Path entry) {
+        if (Files.notExists(entry)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC) return null;
+            String path = in.readUTF();
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            String fileKey = in.readUTF();
+            byte[] contentDigest = new byte[in.readUnsignedByte()];
+            in.readFully(contentDigest);
+            FileDigests digests = FileDigests.read(in);
+            return new Record(path, size, lastModified, fileKey, digests, contentDigest);
+        } catch (IOException e) {
+            // Torn or foreign file: it is simply rebuilt
+            logger.log(Level.FINE, "Ignoring unreadable hash index entry " + entry, e);
+            return null;
+        }
+    }
+
+    private void store(Record r) throws IOException {
+        Files.createDirectories(dir);
+        Path target = entryFile(r.path);
+        Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(r.path);
+                out.writeLong(r.size);
+                out.writeLong(r.lastModified);
+                out.writeUTF(r.fileKey);
+                out.writeByte(r.contentDigest.length);
+                out.write(r.contentDigest);
+                r.digests.write(out);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Inode (and device) where the platform has one, so a replaced file with the same size and mtime is noticed
+    private static String fileKeyOf(BasicFileAttributes attrs) {
+        return Objects.toString(attrs.fileKey(), "");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /** Hex form of a content digest, for logs and the UI. */
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.util.Config;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The "mmap" receive backend: a sliding {@link MappedByteBuffer} window over the destination file
+ * that socket reads land in directly, without the copy through a receive buffer and the write
+ * call. Windows are {@code transfer.receive.mmap.window.mb} large and aligned to their size, so
+ * neighbouring ranges of one worker mostly reuse the same mapping.
+ *
+ * A window that is done with is either left to the garbage collector ("gc", the JDK default; the
+ * mapping stays until the buffer is collected) or unmapped at once ("eager", through
+ * {@code Unsafe.invokeCleaner}, falling back to "gc" where that is not available). Not thread-safe:
+ * each worker has its own.
+ */
+final class MappedWindow implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(MappedWindow.class.getName());
+
+    // sun.misc.Unsafe#invokeCleaner bound to the instance, or null
+    private static final MethodHandle INVOKE_CLEANER = lookupCleaner();
+
+    private final long windowSize = Math.max(1, Config.getMmapWindowMegabytes()) * 1024L * 1024L;
+    private final boolean eager = "eager".equals(Config.getMmapUnmapPolicy()) && INVOKE_CLEANER != null;
+
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /**
+     * A writable view of the file from {@code position} on, at most {@code max} bytes long and never
+     * past the end of the current window; the caller reads into it.
+     */
+    ByteBuffer at(FileChannel fileChannel, long position, long max) throws IOException {
+        if (fileChannel != channel || window == null
+                || position < windowStart || position >= windowStart + window.capacity()) {
+            release();
+            long start = position - position % windowSize;
+            long length = Math.min(windowSize, fileChannel.size() - start);
+            if (length <= 0) throw new IOException("Position " + position + " is past the end of the file");
+            window = fileChannel.map(FileChannel.MapMode.READ_WRITE, start, length);
+            windowStart = start;
+            channel = fileChannel;
+        }
+        int offset = (int) (position - windowStart);
+        ByteBuffer view = window.duplicate();
+        view.position(offset);
+        view.limit((int) Math.min(window.capacity(), offset + max));
+        return view;
+    }
+
+    /** Drops the current window; call before the file channel it maps is closed. */
+    void release() {
+        MappedByteBuffer done = window;
+        window = null;
+        channel = null;
+        if (done != null && eager) {
+            try {
+                INVOKE_CLEANER.invoke(done);
+            } catch (Throwable e) {
+                logger.log(Level.FINE, "Failed to unmap receive window", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    private static MethodHandle lookupCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            MethodHandle cleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+            return cleaner.bindTo(field.get(null));
+        } catch (Throwable e) {
+            logger.log(Level.FINE, "Eager unmapping not available; receive windows are left to the GC", e);
+            return null;
+        }
+    }
+}
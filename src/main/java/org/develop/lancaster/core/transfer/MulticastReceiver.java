@@ -0,0 +1,186 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.util.NetworkUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+/**
+ * Receiver side of a multicast session (see the sender's MulticastSession). Joins the group, writes
+ * packets where they belong and answers every END marker with NAKs for the packets still missing.
+ * Each 1 MB block that is complete goes into the transfer journal, so the unicast download that
+ * follows only fetches what the session did not deliver. Nothing is hashed here; the blocks are
+ * verified from disk afterwards like any other unhashed block.
+ */
+final class MulticastReceiver {
+
+    // Sender gone, or the session ended without us
+    private static final long IDLE_TIMEOUT_MS = 5000;
+    // Ranges per NAK datagram and NAK datagrams per round
+    private static final int NAK_RANGES = 1000;
+    private static final int MAX_NAKS = 16;
+
+    private static final Logger logger = Logger.getLogger(MulticastReceiver.class.getName());
+
+    private MulticastReceiver() {}
+
+    /**
+     * Receives what the session delivers into {@code dest} (already sized). Returns the bytes received,
+     * or -1 if the sender has no multicast session to offer.
+     */
+    static long receive(String ip, int port, File dest, long size, TransferJournal journal, ProgressListener listener)
+            throws IOException {
+        String group;
+        int groupPort;
+        int session;
+        int packetSize;
+        try (PeerConnection conn = PeerConnection.connect(ip, port)) {
+            if (conn == null || !conn.supportsMulticast()) return -1;
+            conn.requestMulticast(-1);
+            DataInputStream reply = new DataInputStream(new ByteArrayInputStream(conn.readPayload(conn.awaitReply())));
+            group = reply.readUTF();
+            groupPort = reply.readInt();
+            session = reply.readInt();
+            packetSize = reply.readInt();
+            if (reply.readLong() != size) throw new IOException("Multicast session is for a different file size");
+        }
+        if (packetSize <= 0 || FileDigests.BLOCK_SIZE % packetSize != 0) {
+            throw new IOException("Unsupported multicast packet size " + packetSize);
+        }
+
+        NetworkInterface netIf = NetworkUtils.findInterface();
+        try (DatagramChannel dc = DatagramChannel.open(StandardProtocolFamily.INET);
+             Selector selector = Selector.open();
+             RandomAccessFile raf = new RandomAccessFile(dest, "rw")) {
+            dc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            dc.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+            dc.bind(new InetSocketAddress(groupPort));
+            MembershipKey membership = dc.join(InetAddress.getByName(group), netIf);
+            dc.configureBlocking(false);
+            dc.register(selector, SelectionKey.OP_READ);
+            try {
+                return run(dc, selector, session, packetSize, raf.getChannel(), size, journal, listener);
+            } finally {
+                membership.drop();
+            }
+        }
+    }
+
+    private static long run(DatagramChannel dc, Selector selector, int session, int packetSize, FileChannel out,
+                            long size, TransferJournal journal, ProgressListener listener) throws IOException {
+        int packets = (int) ((size + packetSize - 1) / packetSize);
+        int perBlock = FileDigests.BLOCK_SIZE / packetSize;
+        int blocks = FileDigests.blockCount(size);
+
+        // Blocks the journal already has count as received
+        BitSet have = new BitSet(packets);
+        have.set(0, packets);
+        for (ChunkRange r : journal.missingRanges(Math.max(1, size))) {
+            have.clear((int) (r.getStart() / packetSize), (int) ((r.getEnd() + packetSize - 1) / packetSize));
+        }
+        int[] blockCounts = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            int first = b * perBlock;
+            blockCounts[b] = have.get(first, Math.min(packets, first + perBlock)).cardinality();
+        }
+
+        long base = journal.completedBytes();
+        long received = 0;
+        int lastNakRound = -1;
+        ByteBuffer buf = ByteBuffer.allocateDirect(WireProtocol.MCAST_HEADER_SIZE + packetSize);
+
+        while (have.cardinality() < packets) {
+            if (selector.select(IDLE_TIMEOUT_MS) == 0) {
+                logger.info("[Multicast] No data for " + IDLE_TIMEOUT_MS + " ms, leaving the session");
+                break;
+            }
+            selector.selectedKeys().clear();
+
+            SocketAddress from;
+            boolean finished = false;
+            while (!finished && (from = receiveOne(dc, buf)) != null) {
+                if (buf.remaining() < WireProtocol.MCAST_HEADER_SIZE) continue;
+                if (buf.getInt() != WireProtocol.MCAST_MAGIC || buf.getInt() != session) continue;
+                byte type = buf.get();
+                int seq = buf.getInt();
+
+                if (type == WireProtocol.MCAST_DATA) {
+                    if (seq < 0 || seq >= packets || have.get(seq)) continue;
+                    long pos = (long) seq * packetSize;
+                    if (buf.remaining() != Math.min(packetSize, size - pos)) continue;
+                    while (buf.hasRemaining()) out.write(buf, pos + buf.position() - WireProtocol.MCAST_HEADER_SIZE);
+                    have.set(seq);
+                    received += Math.min(packetSize, size - pos);
+
+                    int block = seq / perBlock;
+                    int inBlock = Math.min(perBlock, packets - block * perBlock);
+                    if (++blockCounts[block] == inBlock) {
+                        long start = (long) block * FileDigests.BLOCK_SIZE;
+                        journal.markComplete(new ChunkRange(start, Math.min(size, start + FileDigests.BLOCK_SIZE)));
+                    }
+                    if (listener != null) listener.onProgress(base + received, size);
+                } else if (type == WireProtocol.MCAST_END) {
+                    // END is repeated; answer each round once
+                    if (seq != lastNakRound) {
+                        lastNakRound = seq;
+                        sendNaks(dc, from, session, seq, have, packets);
+                    }
+                } else if (type == WireProtocol.MCAST_FINISH) {
+                    finished = true;
+                }
+            }
+            if (finished) break;
+        }
+        return received;
+    }
+
+    // Leaves buf holding one datagram; null when none is waiting
+    private static SocketAddress receiveOne(DatagramChannel dc, ByteBuffer buf) throws IOException {
+        buf.clear();
+        SocketAddress from = dc.receive(buf);
+        buf.flip();
+        return from;
+    }
+
+    private static void sendNaks(DatagramChannel dc, SocketAddress sender, int session, int round, BitSet have, int packets)
+            throws IOException {
+        ByteBuffer nak = ByteBuffer.allocate(WireProtocol.MCAST_HEADER_SIZE + 2 + NAK_RANGES * 8);
+        int p = have.nextClearBit(0);
+        for (int sent = 0; p < packets && sent < MAX_NAKS; sent++) {
+            nak.clear();
+            nak.putInt(WireProtocol.MCAST_MAGIC).putInt(session).put(WireProtocol.MCAST_NAK).putInt(round);
+            int countAt = nak.position();
+            nak.putShort((short) 0);
+            int count = 0;
+            while (p < packets && count < NAK_RANGES) {
+                int next = have.nextSetBit(p);
+                int end = next < 0 ? packets : Math.min(packets, next);
+                nak.putInt(p).putInt(end - p);
+                count++;
+                p = end < packets ? have.nextClearBit(end) : packets;
+            }
+            nak.putShort(countAt, (short) count);
+            nak.flip();
+            dc.send(nak, sender);
+        }
+    }
+
+}
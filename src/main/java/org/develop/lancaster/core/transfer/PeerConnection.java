@@ -0,0 +1,247 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.metrics.Metrics;
+import org.develop.lancaster.core.protocol.WireProtocol;
+import org.develop.lancaster.core.util.NetworkUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Client side of a persistent, upgraded connection (see {@link WireProtocol}).
+ * Requests are buffered and only flushed when a reply is awaited, so several of them can be
+ * in flight on the same socket.
+ */
+public final class PeerConnection implements Closeable {
+
+    private final SocketChannel channel;
+    private final DataOutputStream out;
+    private final ByteBuffer replyHeader = ByteBuffer.allocate(WireProtocol.REPLY_HEADER_SIZE);
+    private final int version;
+    private final Deque<Integer> outstanding = new ArrayDeque<>();
+    private int nextRequestId = 1;
+    private boolean closed;
+
+    private PeerConnection(SocketChannel channel, int version) {
+        this.channel = channel;
+        this.version = version;
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 8 * 1024));
+        Metrics.shared().downloadOpened();
+    }
+
+    /**
+     * Opens and upgrades a connection. Returns null if the peer only speaks the legacy protocol
+     * (it closed the socket instead of acknowledging).
+     */
+    public static PeerConnection connect(String ip, int port) throws IOException {
+        SocketChannel sc = SocketChannel.open();
+        try {
+            try {
+                // Before connecting, so the window can grow past 64 KB
+                NetworkUtils.tuneReceiveBuffer(sc.socket()); // 2MB unless configured
+            } catch (IOException ignored) {}
+            sc.connect(new InetSocketAddress(ip, port));
+            sc.configureBlocking(true);
+            try {
+                sc.socket().setTcpNoDelay(true);
+            } catch (IOException ignored) {}
+
+            DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(sc));
+            dos.writeUTF(WireProtocol.hello());
+            dos.flush();
+
+            // Unbuffered on purpose: nothing past the acknowledgement may be consumed here
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(sc));
+            int version;
+            try {
+                version = WireProtocol.parseVersion(dis.readUTF(), WireProtocol.ACK_PREFIX);
+            } catch (EOFException legacyPeer) {
+                sc.close();
+                return null;
+            }
+            if (version < 2) {
+                sc.close();
+                return null;
+            }
+            return new PeerConnection(sc, version);
+        } catch (IOException e) {
+            sc.close();
+            throw e;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public int requestMetadata() throws IOException {
+        return writeHeader(WireProtocol.OP_METADATA);
+    }
+
+    public int requestManifest() throws IOException {
+        return writeHeader(WireProtocol.OP_MANIFEST);
+    }
+
+    public int requestRange(ChunkRange range) throws IOException {
+        int id = writeHeader(WireProtocol.OP_RANGE);
+        out.writeInt(Math.max(0, range.getFileIndex()));
+        out.writeLong(range.getStart());
+        out.writeLong(range.getEnd());
+        return id;
+    }
+
+    /** Like {@link #requestRange} but lets the sender compress frames; only valid if {@link #supportsCompression()}. */
+    public int requestCompressedRange(ChunkRange range, byte compression) throws IOException {
+        int id = writeHeader(WireProtocol.OP_RANGE_Z);
+        out.writeInt(Math.max(0, range.getFileIndex()));
+        out.writeLong(range.getStart());
+        out.writeLong(range.getEnd());
+        out.writeByte(compression);
+        return id;
+    }
+
+    /** Joins the sender's multicast session for the file; only valid if {@link #supportsMulticast()}. */
+    public int requestMulticast(int fileIndex) throws IOException {
+        int id = writeHeader(WireProtocol.OP_MULTICAST);
+        out.writeInt(fileIndex);
+        return id;
+    }
+
+    /** Registers with the host's swarm and asks for the other peers; only valid if {@link #supportsSwarm()}. */
+    public int requestSwarm(int servePort) throws IOException {
+        int id = writeHeader(WireProtocol.OP_SWARM);
+        out.writeInt(servePort);
+        return id;
+    }
+
+    /** Asks which blocks of the file the peer can serve; only valid if {@link #supportsSwarm()}. */
+    public int requestHave(int fileIndex) throws IOException {
+        int id = writeHeader(WireProtocol.OP_HAVE);
+        out.writeInt(fileIndex);
+        return id;
+    }
+
+    public int requestBatch(int from, int to) throws IOException {
+        int id = writeHeader(WireProtocol.OP_BATCH);
+        out.writeInt(from);
+        out.writeInt(to);
+        return id;
+    }
+
+    /** Asks for the Merkle digests of one file; only valid if {@link #supportsDigests()}. */
+    public int requestDigests(int fileIndex) throws IOException {
+        int id = writeHeader(WireProtocol.OP_DIGESTS);
+        out.writeInt(Math.max(0, fileIndex));
+        return id;
+    }
+
+    /** Sends the signature of the local copy of a file; only valid if {@link #supportsDelta()}. */
+    public int requestDelta(int fileIndex, DeltaSignature signature) throws IOException {
+        int id = writeHeader(WireProtocol.OP_DELTA);
+        out.writeInt(Math.max(0, fileIndex));
+        signature.write(out);
+        return id;
+    }
+
+    public boolean supportsDelta() {
+        return version >= WireProtocol.VERSION_DELTA;
+    }
+
+    public boolean supportsContentDigest() {
+        return version >= WireProtocol.VERSION_CONTENT_DIGEST;
+    }
+
+    public boolean supportsSwarm() {
+        return version >= WireProtocol.VERSION_SWARM;
+    }
+
+    public boolean supportsMulticast() {
+        return version >= WireProtocol.VERSION_MULTICAST;
+    }
+
+    public boolean supportsCompression() {
+        return version >= WireProtocol.VERSION_COMPRESSION;
+    }
+
+    public boolean supportsDigests() {
+        return version >= WireProtocol.VERSION_DIGESTS;
+    }
+
+    private int writeHeader(byte op) throws IOException {
+        int id = nextRequestId++;
+        out.writeByte(op);
+        out.writeInt(id);
+        outstanding.add(id);
+        return id;
+    }
+
+    public int outstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Flushes pending requests and reads the reply to the oldest outstanding one. Returns the
+     * payload length, which the caller must consume from {@link #channel()} before the next reply.
+     */
+    public long awaitReply() throws IOException {
+        Integer expectedId = outstanding.poll();
+        if (expectedId == null) throw new IllegalStateException("No request outstanding");
+        out.flush();
+        replyHeader.clear();
+        readFully(replyHeader);
+        replyHeader.flip();
+        int id = replyHeader.getInt();
+        byte status = replyHeader.get();
+        long length = replyHeader.getLong();
+
+        if (id != expectedId) throw new IOException("Out-of-order reply " + id + ", expected " + expectedId);
+        if (length < 0) throw new IOException("Invalid reply length " + length);
+        if (status != WireProtocol.STATUS_OK) {
+            String message = new String(readPayload(length), StandardCharsets.UTF_8);
+            throw new IOException("Peer rejected request " + id + ": " + message);
+        }
+        return length;
+    }
+
+    /** Reads a small payload (metadata, manifest) fully into memory. */
+    public byte[] readPayload(long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) throw new IOException("Payload too large: " + length);
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        readFully(buf);
+        return buf.array();
+    }
+
+    public void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) throw new EOFException("Peer closed connection");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                out.writeByte(WireProtocol.OP_CLOSE);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // Peer already gone
+        } finally {
+            channel.close();
+            if (!closed) {
+                closed = true;
+                Metrics.shared().downloadClosed();
+            }
+        }
+    }
+}
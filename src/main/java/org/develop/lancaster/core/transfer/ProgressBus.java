@@ -0,0 +1,202 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.metrics.RateMeter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects progress from any number of transfer threads and publishes it at a fixed rate.
+ * Transfer threads only add to a striped counter ({@link RateMeter}) per transfer; one ticker
+ * thread samples them every period, which also gives each transfer and the total a current rate,
+ * and hands a {@link Snapshot} to the sink on {@code publisher}
+ * (e.g. Platform::runLater). At most one snapshot is queued on the publisher at a time: while the
+ * last one is still waiting, ticks are skipped. The publisher's queue and the ticker's work stay
+ * the same however many transfers run or how often they report.
+ *
+ * @param <T> what the sink needs to show a transfer (name, peer, ...)
+ */
+public final class ProgressBus<T> {
+
+    private static final Logger logger = Logger.getLogger(ProgressBus.class.getName());
+
+    public enum State { RUNNING, DONE, FAILED }
+
+    /** One transfer. Also a listener for a single cumulative source, e.g. a download's uiListener. */
+    public static final class Channel<T> implements ProgressListener {
+        private final T info;
+        private final RateMeter meter = new RateMeter();
+        private final AtomicLong reported = new AtomicLong();
+        private volatile long total;
+        private volatile State state = State.RUNNING;
+        private volatile boolean completeAtTotal;
+
+        private Channel(T info, long total) {
+            this.info = info;
+            this.total = total;
+        }
+
+        public T info() {
+            return info;
+        }
+
+        /** Counts {@code delta} more bytes. */
+        public void add(long delta) {
+            meter.add(delta);
+        }
+
+        public void setTotal(long totalBytes) {
+            if (totalBytes > 0) total = totalBytes;
+        }
+
+        /** Cumulative progress; a value lower than one seen before is ignored. */
+        @Override
+        public void onProgress(long currentBytes, long totalBytes) {
+            setTotal(totalBytes);
+            add(currentBytes - reported.getAndAccumulate(currentBytes, Math::max));
+        }
+
+        @Override
+        public void onFinished(boolean success) {
+            if (state == State.RUNNING) state = success ? State.DONE : State.FAILED;
+        }
+
+        /**
+         * A listener for one more cumulative source, e.g. one connection of several feeding this
+         * transfer: its counts are turned into deltas here.
+         */
+        public ProgressListener source() {
+            AtomicLong last = new AtomicLong();
+            return (currentBytes, ignored) -> add(currentBytes - last.getAndAccumulate(currentBytes, Math::max));
+        }
+
+        /** The transfer is over once its total is in, without a call to onFinished (sending side). */
+        public Channel<T> completeAtTotal() {
+            this.completeAtTotal = true;
+            return this;
+        }
+    }
+
+    /** A transfer as of the snapshot; the channel identifies it across snapshots. Rates in bytes per second. */
+    public record Progress<T>(Channel<T> channel, long bytes, long total, State state, double rate, double peak) {
+        public T info() {
+            return channel.info;
+        }
+
+        /** Seconds left at the current rate; -1 while stopped or the total is unknown. */
+        public long etaSeconds() {
+            return total > 0 ? RateMeter.eta(total - bytes, rate) : -1;
+        }
+    }
+
+    /**
+     * Every open transfer, and each finished one in exactly one snapshot (then it is dropped).
+     * {@code totalBytes} counts all transfers since the bus was created.
+     */
+    public record Snapshot<T>(List<Progress<T>> transfers, long totalBytes, int active, long completed,
+                              double rate, double peak, long nanoTime) {}
+
+    private final Map<Channel<T>, Boolean> channels = new ConcurrentHashMap<>();
+    private final long periodMillis;
+    private final Executor publisher;
+    private final Consumer<Snapshot<T>> sink;
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private final RateMeter overall = new RateMeter();
+
+    // Only touched by the ticker
+    private long retiredBytes;
+    private long completed;
+    private long lastBytes = -1;
+    private int lastCount = -1;
+
+    private ScheduledExecutorService ticker;
+
+    public ProgressBus(long periodMillis, Executor publisher, Consumer<Snapshot<T>> sink) {
+        this.periodMillis = Math.max(1, periodMillis);
+        this.publisher = publisher;
+        this.sink = sink;
+    }
+
+    /** Starts tracking a transfer; {@code totalBytes} may be 0 until it is known. */
+    public Channel<T> open(T info, long totalBytes) {
+        Channel<T> channel = new Channel<>(info, totalBytes);
+        channels.put(channel, Boolean.TRUE);
+        return channel;
+    }
+
+    public synchronized void start() {
+        if (ticker != null) return;
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lancaster-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (ticker != null) ticker.shutdownNow();
+        ticker = null;
+    }
+
+    private void tick() {
+        // The sink has not run the last snapshot yet: skip rather than queue another behind it
+        if (queued.get()) return;
+        try {
+            Snapshot<T> snapshot = snapshot();
+            if (snapshot == null) return;
+            queued.set(true);
+            publisher.execute(() -> {
+                try {
+                    sink.accept(snapshot);
+                } finally {
+                    queued.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // A failing tick must not cancel the schedule
+            queued.set(false);
+            logger.log(Level.WARNING, "[Progress] Publishing failed", e);
+        }
+    }
+
+    // Null when nothing moved since the last published snapshot and no rate is left to wind down
+    private Snapshot<T> snapshot() {
+        long now = System.nanoTime();
+        List<Progress<T>> transfers = new ArrayList<>(channels.size());
+        long sum = retiredBytes;
+        boolean changed = false;
+        for (Channel<T> c : channels.keySet()) {
+            long bytes = c.meter.total();
+            c.meter.sample(bytes, now);
+            long total = c.total;
+            State state = c.state;
+            if (state == State.RUNNING && c.completeAtTotal && total > 0 && bytes >= total) state = State.DONE;
+            transfers.add(new Progress<>(c, bytes, total, state, c.meter.rate(), c.meter.peak()));
+            sum += bytes;
+            if (state != State.RUNNING) {
+                channels.remove(c);
+                retiredBytes += bytes;
+                if (state == State.DONE) completed++;
+                changed = true;
+            }
+        }
+        overall.sample(sum, now);
+        changed |= sum != lastBytes || transfers.size() != lastCount || overall.rate() > 0;
+        if (!changed) return null;
+        lastBytes = sum;
+        lastCount = transfers.size();
+        return new Snapshot<>(transfers, sum, channels.size(), completed, overall.rate(), overall.peak(), now);
+    }
+}
@@ -2,4 +2,7 @@ package org.develop.lancaster.core.transfer;
 
 public interface ProgressListener {
     void onProgress(long currentBytes, long totalBytes);
-}
\ No newline at end of file
+
+    // Called once per download when it is over, verified (true) or given up on (false)
+    default void onFinished(boolean success) {}
+}
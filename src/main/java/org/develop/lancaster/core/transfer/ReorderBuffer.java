@@ -0,0 +1,241 @@
+package org.develop.lancaster.core.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Turns the writes of parallel range streams into one sequential write for a spinning disk.
+ * Workers hand in what they receive; data is written once nothing still arriving lies before it,
+ * so the lowest open range streams straight to disk while the ranges after it wait in memory and
+ * follow in file order when it is done. Since ranges are handed out in file order, only the few
+ * ranges in flight are ever held. Past {@code limit} bytes held, the lowest data is written anyway.
+ *
+ * A range is committed (its {@link #whenWritten} action runs) only once all of it is on disk, so
+ * the journal never records data that is still in memory. Ranges given up on are dropped from the
+ * buffer and come again from the start.
+ *
+ * Held data lives in slabs of {@link #SLAB_SIZE}; consecutive bytes of a range fill the same slab,
+ * and written slabs go back to a free list. The buffer thus allocates about {@code limit} once and
+ * reuses it, instead of a new array for every piece a worker hands in.
+ */
+final class ReorderBuffer implements AutoCloseable {
+
+    private static final class Open {
+        final ChunkRange range;
+        long received; // bytes handed in, counted from the range start
+        long written;
+        Runnable onWritten;
+        Piece tail; // last piece of this range still held, filled further while it has room
+
+        Open(ChunkRange range) {
+            this.range = range;
+        }
+    }
+
+    private static final class Piece {
+        final Open owner;
+        final long position;
+        final byte[] data; // a slab, the first length bytes used
+        int length;
+
+        Piece(Open owner, long position, byte[] data) {
+            this.owner = owner;
+            this.position = position;
+            this.data = data;
+        }
+    }
+
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    private static final Comparator<Piece> FILE_ORDER = Comparator
+            .<Piece>comparingInt(p -> p.owner.range.getFileIndex())
+            .thenComparingLong(p -> p.position)
+            .thenComparingInt(System::identityHashCode);
+
+    private final List<File> destinations;
+    private final long limit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<ChunkRange, Open> open = new IdentityHashMap<>();
+    private final TreeSet<Piece> held = new TreeSet<>(FILE_ORDER);
+    private final Map<Integer, RandomAccessFile> files = new HashMap<>();
+    private final ArrayDeque<byte[]> freeSlabs = new ArrayDeque<>();
+    private long heldBytes;
+    private IOException failure;
+
+    ReorderBuffer(List<File> destinations, long limit) {
+        this.destinations = destinations;
+        this.limit = limit;
+    }
+
+    /** A worker took {@code range}: nothing after its first byte is written before that byte arrives. */
+    void begin(ChunkRange range) {
+        lock.lock();
+        try {
+            open.computeIfAbsent(range, Open::new);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Takes received bytes of {@code range} at file position {@code position}; copies them. */
+    void put(ChunkRange range, long position, ByteBuffer data) throws IOException {
+        List<Runnable> committed;
+        ByteBuffer src = data.duplicate();
+        lock.lock();
+        try {
+            if (failure != null) throw failure;
+            Open o = open.computeIfAbsent(range, Open::new);
+            o.received = Math.max(o.received, position + src.remaining() - range.getStart());
+            while (src.hasRemaining()) {
+                Piece p = o.tail;
+                if (p == null || p.position + p.length != position || p.length == SLAB_SIZE) {
+                    p = new Piece(o, position, takeSlab());
+                    held.add(p);
+                    o.tail = p;
+                }
+                int n = Math.min(src.remaining(), SLAB_SIZE - p.length);
+                src.get(p.data, p.length, n);
+                p.length += n;
+                position += n;
+                heldBytes += n;
+            }
+            committed = drain();
+        } finally {
+            lock.unlock();
+        }
+        committed.forEach(Runnable::run);
+    }
+
+    /** Runs {@code action} once all of {@code range} is written; the worker has received all of it. */
+    void whenWritten(ChunkRange range, Runnable action) throws IOException {
+        List<Runnable> committed;
+        lock.lock();
+        try {
+            Open o = open.get(range);
+            if (o == null || o.written >= range.length()) {
+                open.remove(range);
+                committed = new ArrayList<>(List.of(action));
+            } else {
+                o.received = range.length();
+                o.onWritten = action;
+                committed = drain();
+            }
+        } finally {
+            lock.unlock();
+        }
+        committed.forEach(Runnable::run);
+    }
+
+    /** Forgets {@code range} and whatever of it is still in memory; it will be fetched again. */
+    void abandon(ChunkRange range) {
+        List<Runnable> committed = List.of();
+        lock.lock();
+        try {
+            Open o = open.remove(range);
+            if (o == null) return;
+            for (Iterator<Piece> it = held.iterator(); it.hasNext(); ) {
+                Piece p = it.next();
+                if (p.owner == o) {
+                    it.remove();
+                    release(p);
+                }
+            }
+            committed = drain();
+        } catch (IOException e) {
+            // recorded in failure; the next put reports it
+        } finally {
+            lock.unlock();
+        }
+        committed.forEach(Runnable::run);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for (RandomAccessFile raf : files.values()) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                    // nothing left to write through it
+                }
+            }
+            files.clear();
+            freeSlabs.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock. Writes what may go to disk now; returns the commits to run after unlocking
+    private List<Runnable> drain() throws IOException {
+        List<Runnable> committed = new ArrayList<>();
+        while (!held.isEmpty()) {
+            Piece first = held.first();
+            if (heldBytes <= limit && !beforeAllOpen(first)) break;
+            held.pollFirst();
+            write(first);
+            release(first);
+            Open o = first.owner;
+            o.written += first.length;
+            if (o.onWritten != null && o.written >= o.range.length() && open.remove(o.range) != null) {
+                committed.add(o.onWritten);
+            }
+        }
+        return committed;
+    }
+
+    // Caller holds the lock
+    private byte[] takeSlab() {
+        byte[] slab = freeSlabs.poll();
+        return slab != null ? slab : new byte[SLAB_SIZE];
+    }
+
+    // Caller holds the lock. The piece is no longer held; its slab is kept for reuse up to the limit
+    private void release(Piece piece) {
+        heldBytes -= piece.length;
+        if (piece.owner.tail == piece) piece.owner.tail = null;
+        if ((long) freeSlabs.size() * SLAB_SIZE < limit) freeSlabs.push(piece.data);
+    }
+
+    // Whether no open range still has bytes to receive before this piece
+    private boolean beforeAllOpen(Piece piece) {
+        for (Open o : open.values()) {
+            if (o.received >= o.range.length()) continue;
+            int file = o.range.getFileIndex();
+            int ownFile = piece.owner.range.getFileIndex();
+            if (file < ownFile || (file == ownFile && o.range.getStart() + o.received <= piece.position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(Piece piece) throws IOException {
+        try {
+            int index = piece.owner.range.getFileIndex();
+            RandomAccessFile raf = files.get(index);
+            if (raf == null) {
+                raf = new RandomAccessFile(destinations.get(Math.max(0, index)), "rw");
+                files.put(index, raf);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(piece.data, 0, piece.length);
+            while (buf.hasRemaining()) raf.getChannel().write(buf, piece.position + buf.position());
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.util.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the receiver knows about the disk it writes to. Spinning disks get their ranges through a
+ * {@link ReorderBuffer}, so parallel streams still reach the platter as one sequential write;
+ * solid-state disks take the parallel positional writes directly.
+ *
+ * The kind comes from {@code storage.kind} ("hdd", "ssd") or, with "auto", from
+ * {@code /sys/block/<dev>/queue/rotational} of the device holding the folder. Anything that cannot
+ * be found out (other systems, network mounts) counts as SSD, i.e. the old behaviour.
+ */
+final class Storage {
+
+    enum Kind { HDD, SSD }
+
+    // Zero-fill writes of "full" preallocation
+    private static final int FILL_BLOCK = 4 * 1024 * 1024;
+
+    private static final Logger logger = Logger.getLogger(Storage.class.getName());
+
+    // Device name -> kind, the sysfs lookup is done once per device
+    private static final Map<String, Kind> detected = new ConcurrentHashMap<>();
+
+    private Storage() {}
+
+    /** The kind of disk {@code dir} (or its nearest existing parent) lives on. */
+    static Kind kindOf(File dir) {
+        String configured = Config.getStorageKind();
+        if ("hdd".equals(configured)) return Kind.HDD;
+        if ("ssd".equals(configured)) return Kind.SSD;
+        try {
+            FileStore store = Files.getFileStore(existingParent(dir.toPath()));
+            return detected.computeIfAbsent(store.name(), Storage::detect);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot tell the disk type of " + dir, e);
+            return Kind.SSD;
+        }
+    }
+
+    /** Fails with a readable message if the folder's disk cannot take {@code bytes} more. */
+    static void ensureSpace(File dir, long bytes) throws IOException {
+        if (bytes <= 0) return;
+        Path existing = existingParent(dir.toPath());
+        long usable = Files.getFileStore(existing).getUsableSpace();
+        if (usable < bytes) {
+            throw new IOException("Not enough space in " + existing + ": " + bytes + " bytes needed, "
+                    + usable + " available");
+        }
+    }
+
+    /**
+     * Makes {@code file} {@code size} bytes long after checking there is room for it.
+     * {@code storage.preallocate=full} writes zeros over the new part, so the file system allocates
+     * every block now (in as few extents as it can) and the download cannot run out of space;
+     * "sparse" (the default) only sets the length.
+     */
+    static void preallocate(File file, long size) throws IOException {
+        long existing = file.isFile() ? file.length() : 0;
+        File dir = file.getAbsoluteFile().getParentFile();
+        ensureSpace(dir, size - existing);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if ("full".equals(Config.getPreallocation()) && size > existing) {
+                zeroFill(raf.getChannel(), existing, size);
+            }
+            raf.setLength(size);
+        }
+    }
+
+    private static void zeroFill(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(FILL_BLOCK);
+        for (long pos = from; pos < to; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(FILL_BLOCK, to - pos));
+            pos += channel.write(zeros, pos);
+        }
+    }
+
+    // /dev/sda1 -> /sys/class/block/sda1 -> .../block/sda/sda1; partitions have no queue of their own
+    private static Kind detect(String device) {
+        try {
+            Path dev = Paths.get(device);
+            if (Files.exists(dev)) dev = dev.toRealPath(); // /dev/mapper/x -> /dev/dm-0
+            Path sys = Paths.get("/sys/class/block", dev.getFileName().toString());
+            if (!Files.exists(sys)) return Kind.SSD;
+            sys = sys.toRealPath();
+            Path rotational = sys.resolve("queue/rotational");
+            if (!Files.exists(rotational)) rotational = sys.getParent().resolve("queue/rotational");
+            if (!Files.exists(rotational)) return Kind.SSD;
+            Kind kind = "1".equals(Files.readString(rotational).trim()) ? Kind.HDD : Kind.SSD;
+            logger.info(() -> "[Storage] " + device + " is " + (kind == Kind.HDD ? "a spinning disk" : "solid state"));
+            return kind;
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "Cannot read the disk type of " + device, e);
+            return Kind.SSD;
+        }
+    }
+
+    private static Path existingParent(Path path) {
+        Path p = path.toAbsolutePath();
+        while (p != null && !Files.exists(p)) p = p.getParent();
+        return p != null ? p : path.toAbsolutePath().getRoot();
+    }
+}
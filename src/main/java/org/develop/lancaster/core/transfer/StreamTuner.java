@@ -0,0 +1,198 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.metrics.RateMeter;
+import org.develop.lancaster.core.util.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses how many parallel range connections a download runs from the goodput it measures, since
+ * what fills a path (a long-RTT VPN wants many streams, a fragmented disk behind the sender few)
+ * has nothing to do with local cores. Hill climbing: starting from what worked last time for the
+ * peer, the count grows while each step adds at least {@link #GAIN}, otherwise fewer streams are
+ * tried and kept as long as they lose at most {@link #SLACK}. Once settled the count is probed
+ * again every {@link #REPROBE_SAMPLES} samples, and the best count is remembered per peer in
+ * {@code streams.properties} under the data folder. The count never exceeds the download's share
+ * of connections in the {@link DownloadQueue}; a count found under a reduced share is not remembered.
+ *
+ * Not thread-safe: one download's runner feeds it.
+ */
+final class StreamTuner {
+
+    private static final double GAIN = 0.10;
+    private static final double SLACK = 0.03;
+    private static final int REPROBE_SAMPLES = 20;
+    private static final String FILE = "streams.properties";
+
+    private static final Logger logger = Logger.getLogger(StreamTuner.class.getName());
+
+    private static Properties remembered;
+
+    private enum Phase { UP, DOWN, HOLD }
+
+    private final String peerIp;
+    private final int configuredMax = Config.getMaxStreams();
+    private final IntSupplier share;
+    private int max;
+    private boolean limited;
+    private final boolean enabled = Config.isStreamTuningEnabled();
+    private int streams;
+    private int bestStreams;
+    private double bestRate;
+    private Phase phase = Phase.UP;
+    private boolean grew;
+    private boolean settled;
+    private boolean tuned;
+    private int held;
+    // Goodput of each interval between samples; the tuner compares raw intervals, not the average
+    private final RateMeter goodput = new RateMeter();
+
+    StreamTuner(String peerIp, IntSupplier share) {
+        this.peerIp = peerIp;
+        this.share = share;
+        this.max = limit();
+        this.streams = Math.min(initialStreams(peerIp), max);
+        this.bestStreams = streams;
+    }
+
+    /** The count that did best for {@code peerIp} last time, or the configured start for a new peer. */
+    static int initialStreams(String peerIp) {
+        int max = Config.getMaxStreams();
+        String best = load().getProperty(peerIp);
+        if (best != null) {
+            try {
+                return Math.max(1, Math.min(max, Integer.parseInt(best)));
+            } catch (NumberFormatException ignored) {
+                // fall back to the default
+            }
+        }
+        return Math.min(max, Config.getInitialStreams());
+    }
+
+    int streams() {
+        return streams;
+    }
+
+    /**
+     * Takes the bytes moved so far and returns the stream count to run until the next sample.
+     * {@code enoughWork} is false near the end, when fewer ranges are left than streams: the rate
+     * falls for lack of work then, not because of the count.
+     */
+    int sample(long bytes, boolean enoughWork) {
+        double rate = goodput.sample(bytes, System.nanoTime());
+        if (rate < 0) return streams;
+
+        // The share shrinks and grows as other downloads start and finish
+        int limit = limit();
+        if (limit != max) {
+            max = limit;
+            bestStreams = Math.min(bestStreams, max);
+            if (streams > max) return change(max);
+        }
+
+        // The first interval after a change holds connection setup and slow start
+        if (!enabled || !enoughWork || !settled) {
+            settled = true;
+            return streams;
+        }
+        tuned = true;
+
+        switch (phase) {
+            case UP:
+                if (bestRate == 0 || rate > bestRate * (1 + GAIN)) {
+                    if (bestRate > 0) grew = true;
+                    bestRate = rate;
+                    bestStreams = streams;
+                    if (streams < max) return change(streams + Math.max(1, streams / 2));
+                    return hold();
+                }
+                // More did not help; if the start count was never beaten, see whether fewer do as well
+                if (!grew && bestStreams > 1) {
+                    phase = Phase.DOWN;
+                    return change(bestStreams - Math.max(1, bestStreams / 3));
+                }
+                return hold();
+            case DOWN:
+                if (rate >= bestRate * (1 - SLACK)) {
+                    bestRate = Math.max(bestRate, rate);
+                    bestStreams = streams;
+                    if (streams > 1) return change(streams - Math.max(1, streams / 3));
+                }
+                return hold();
+            default:
+                if (++held < REPROBE_SAMPLES) return streams;
+                // The path may have changed: measure afresh and try one step up
+                bestRate = rate;
+                grew = false;
+                held = 0;
+                phase = Phase.UP;
+                return streams < max ? change(streams + Math.max(1, streams / 2)) : streams;
+        }
+    }
+
+    /** Remembers the best count for the peer if the download ran long enough to measure it. */
+    void finish() {
+        if (!tuned || limited) return;
+        logger.info(() -> String.format("[Tuner] %s: %d streams (%.1f MB/s)", peerIp, bestStreams,
+                bestRate / (1024 * 1024)));
+        remember(peerIp, bestStreams);
+    }
+
+    private int limit() {
+        int limit = Math.max(1, Math.min(configuredMax, share.getAsInt()));
+        if (limit < configuredMax) limited = true;
+        return limit;
+    }
+
+    private int change(int count) {
+        int next = Math.max(1, Math.min(max, count));
+        if (next != streams) logger.fine(() -> "[Tuner] " + peerIp + ": " + streams + " -> " + next + " streams");
+        streams = next;
+        settled = false;
+        return streams;
+    }
+
+    private int hold() {
+        phase = Phase.HOLD;
+        held = 0;
+        return change(bestStreams);
+    }
+
+    private static synchronized Properties load() {
+        if (remembered == null) {
+            remembered = new Properties();
+            Path file = Config.getDataDir().resolve(FILE);
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    remembered.load(in);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Failed to read " + file, e);
+                }
+            }
+        }
+        return remembered;
+    }
+
+    private static synchronized void remember(String peerIp, int streams) {
+        Properties props = load();
+        if (String.valueOf(streams).equals(props.getProperty(peerIp))) return;
+        props.setProperty(peerIp, String.valueOf(streams));
+        Path file = Config.getDataDir().resolve(FILE);
+        try {
+            Files.createDirectories(file.getParent());
+            try (OutputStream out = Files.newOutputStream(file)) {
+                props.store(out, "LAN-Caster parallel streams per peer");
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.TaskExecutors;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Swarm mode for a single file: while it downloads, the file is also served (only the parts the
+ * journal has committed) to the host's other downloaders, and ranges are pulled from whichever of
+ * them already has them. The host then sends most ranges once per swarm instead of once per
+ * receiver, so N receivers cost it little more than one.
+ *
+ * Peers are found through the host (SWARM) and say what they hold as bitmaps of {@link FileDigests}
+ * blocks (HAVE), both refreshed every {@link #REFRESH_MS}. Each receiver fetches the file in random
+ * order so peers hold different parts early, and host workers take ranges no peer has first.
+ */
+final class SwarmDownload {
+
+    private static final long REFRESH_MS = 2000;
+    private static final int WORKERS_PER_PEER = 2;
+    private static final long SEEDER_START_MS = 5000;
+
+    private static final Logger logger = Logger.getLogger(SwarmDownload.class.getName());
+
+    private static final class Peer {
+        final String ip;
+        final int port;
+        volatile BitSet have = new BitSet();
+        final AtomicInteger workers = new AtomicInteger();
+
+        Peer(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+    private final String hostIp;
+    private final int hostPort;
+    private final String name;
+    private final TransferJournal journal;
+    private final long fileSize;
+    private final Sender seeder;
+    private final int servePort;
+    // Swarm workers wait on each other's ranges, so they run on the unbounded control pool
+    private final ExecutorService executor = TransferRuntime.shared().control();
+    private final Queue<Future<Boolean>> tasks = new ConcurrentLinkedQueue<>();
+
+    // "ip:port" -> peer, as last listed by the host
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // Blocks any known peer holds; host workers leave those ranges for the peers
+    private volatile BitSet peerHeld = new BitSet();
+    private final AtomicInteger nextTaskId = new AtomicInteger(1000);
+    private final AtomicLong peerBytes = new AtomicLong();
+
+    private SwarmDownload(String hostIp, int hostPort, File saveFile, long fileSize, TransferJournal journal,
+                          Sender seeder, int servePort) {
+        this.hostIp = hostIp;
+        this.hostPort = hostPort;
+        this.name = saveFile.getName();
+        this.fileSize = fileSize;
+        this.journal = journal;
+        this.seeder = seeder;
+        this.servePort = servePort;
+    }
+
+    /** Starts serving {@code saveFile} to the swarm. Returns null if no port could be opened. */
+    static SwarmDownload start(String hostIp, int hostPort, File saveFile, long fileSize, long mtime,
+                               TransferJournal journal) {
+        Sender seeder = new Sender(null, 0);
+        TaskExecutors.start("lancaster-swarm-seed", true, () -> seeder.startSeeding(saveFile, fileSize, mtime, journal));
+        int port;
+        try {
+            port = seeder.awaitPort(SEEDER_START_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            port = -1;
+        }
+        if (port <= 0) {
+            seeder.stop();
+            return null;
+        }
+        logger.info("[Swarm] Serving " + saveFile.getName() + " to other receivers on port " + port);
+        return new SwarmDownload(hostIp, hostPort, saveFile, fileSize, journal, seeder, port);
+    }
+
+    /**
+     * Runs {@code hostWorkers} workers against the host plus workers for every useful peer until the
+     * scheduler is done. {@code listeners} hands out one progress listener per worker.
+     */
+    void download(ChunkScheduler scheduler, List<File> destinations, BlockChecksums checksums, int hostWorkers,
+                  BandwidthShaper.Transfer shaping, Supplier<ProgressListener> listeners) {
+        List<Future<Boolean>> hostTasks = new ArrayList<>();
+        List<Future<Boolean>> peerTasks = new ArrayList<>();
+        for (int i = 0; i < hostWorkers; i++) {
+            ChunkTransferTask task = new ChunkTransferTask(hostIp, hostPort, destinations, scheduler, checksums, i,
+                    listeners.get()).preferring(r -> !anyHeld(peerHeld, r)).shapedBy(shaping.flow(hostIp));
+            hostTasks.add(track(executor.submit(task)));
+        }
+
+        try {
+            for (Future<Boolean> f : hostTasks) {
+                while (true) {
+                    refresh();
+                    for (Peer peer : peers.values()) {
+                        launchWorkers(peer, scheduler, destinations, checksums, shaping, listeners, peerTasks);
+                    }
+                    try {
+                        f.get(REFRESH_MS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        // keep the peer list current while the host workers run
+                    }
+                }
+            }
+            // Host workers finish last: they wait for ranges peers still hold
+            for (Future<Boolean> f : peerTasks) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            scheduler.fail(e);
+        } catch (Exception e) {
+            scheduler.fail(e);
+            logger.log(Level.WARNING, "[Swarm] Error while downloading " + name, e);
+        }
+        long fromPeers = peerBytes.get();
+        logger.info(() -> "[Swarm] " + name + ": " + fromPeers + " of " + fileSize + " bytes came from "
+                + peers.size() + " other receivers");
+    }
+
+    /** Keeps serving the finished file to the swarm for a while, then stops. */
+    void linger() {
+        long until = System.currentTimeMillis() + Config.getSwarmLingerMillis();
+        try {
+            while (System.currentTimeMillis() < until) {
+                register();
+                Thread.sleep(Math.min(REFRESH_MS, Math.max(1, until - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stop();
+        }
+    }
+
+    void stop() {
+        seeder.stop();
+        // The pool is shared: stop only this download's workers
+        for (Future<Boolean> f : tasks) f.cancel(true);
+    }
+
+    private Future<Boolean> track(Future<Boolean> task) {
+        tasks.add(task);
+        return task;
+    }
+
+    // Updates the peer list and what every peer holds
+    private void refresh() {
+        if (!register()) return;
+
+        BitSet union = new BitSet();
+        for (Peer peer : peers.values()) {
+            try (PeerConnection conn = PeerConnection.connect(peer.ip, peer.port)) {
+                if (conn == null || !conn.supportsSwarm()) continue;
+                conn.requestHave(-1);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(conn.readPayload(conn.awaitReply())));
+                int blocks = in.readInt();
+                byte[] bits = new byte[(blocks + 7) / 8];
+                in.readFully(bits);
+                peer.have = BitSet.valueOf(bits);
+            } catch (IOException e) {
+                // Gone or not serving yet; its ranges stay with the others
+                peer.have = new BitSet();
+            }
+            union.or(peer.have);
+        }
+        peerHeld = union;
+    }
+
+    // Registers with the host, which keeps us listed, and takes its current list of peers
+    private boolean register() {
+        List<String> listed = new ArrayList<>();
+        try (PeerConnection conn = PeerConnection.connect(hostIp, hostPort)) {
+            if (conn == null || !conn.supportsSwarm()) return false;
+            conn.requestSwarm(servePort);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(conn.readPayload(conn.awaitReply())));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String ip = in.readUTF();
+                int port = in.readInt();
+                listed.add(ip + ":" + port);
+                peers.computeIfAbsent(ip + ":" + port, k -> new Peer(ip, port));
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "[Swarm] Failed to refresh the peer list of " + name, e);
+            return false;
+        }
+        peers.keySet().retainAll(listed);
+        return true;
+    }
+
+    private void launchWorkers(Peer peer, ChunkScheduler scheduler, List<File> destinations, BlockChecksums checksums,
+                               BandwidthShaper.Transfer shaping, Supplier<ProgressListener> listeners,
+                               List<Future<Boolean>> peerTasks) {
+        if (!hasWanted(peer.have)) return;
+        while (peer.workers.get() < WORKERS_PER_PEER) {
+            peer.workers.incrementAndGet();
+            ProgressListener listener = listeners.get();
+            AtomicLong reported = new AtomicLong();
+            ChunkTransferTask task = new ChunkTransferTask(peer.ip, peer.port, destinations, scheduler, checksums,
+                    nextTaskId.getAndIncrement(), (current, total) -> {
+                        listener.onProgress(current, total);
+                        long prev = reported.getAndAccumulate(current, Math::max);
+                        if (current > prev) peerBytes.addAndGet(current - prev);
+                    }).onlyFrom(r -> allHeld(peer.have, r)).shapedBy(shaping.flow(peer.ip));
+            Callable<Boolean> counted = () -> {
+                try {
+                    return task.call();
+                } finally {
+                    peer.workers.decrementAndGet();
+                }
+            };
+            peerTasks.add(track(executor.submit(counted)));
+        }
+    }
+
+    // Whether the peer holds a block that is still missing here
+    private boolean hasWanted(BitSet have) {
+        for (int b = have.nextSetBit(0); b >= 0; b = have.nextSetBit(b + 1)) {
+            long start = (long) b * FileDigests.BLOCK_SIZE;
+            if (!journal.covers(start, Math.min(fileSize, start + FileDigests.BLOCK_SIZE))) return true;
+        }
+        return false;
+    }
+
+    private static boolean allHeld(BitSet blocks, ChunkRange r) {
+        int first = (int) (r.getStart() / FileDigests.BLOCK_SIZE);
+        int last = (int) ((r.getEnd() - 1) / FileDigests.BLOCK_SIZE);
+        int gap = blocks.nextClearBit(first);
+        return gap > last;
+    }
+
+    private static boolean anyHeld(BitSet blocks, ChunkRange r) {
+        int first = (int) (r.getStart() / FileDigests.BLOCK_SIZE);
+        int last = (int) ((r.getEnd() - 1) / FileDigests.BLOCK_SIZE);
+        int held = blocks.nextSetBit(first);
+        return held >= 0 && held <= last;
+    }
+}
@@ -0,0 +1,88 @@
+package org.develop.lancaster.core.transfer;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One rate limit of {@link BandwidthShaper}. Bytes are charged after they moved and may drive the
+ * bucket into debt; whoever charges next waits until the debt is paid off at the configured rate.
+ * Charging in large quanta therefore costs nothing in accuracy over a few seconds, and several
+ * transfers sharing a bucket take turns in the order they charged. An idle bucket fills up to
+ * {@link #BURST_SECONDS} worth of bytes, so short pauses are not lost.
+ *
+ * Rate 0 means unlimited. Uses a {@link ReentrantLock} so virtual threads do not pin their carrier.
+ */
+final class TokenBucket {
+
+    private static final double BURST_SECONDS = 0.05;
+    // Smallest burst, so a low rate still lets one quantum through without waiting
+    private static final long MIN_BURST = BandwidthShaper.QUANTUM;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long rate; // bytes per second
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        this.rate = Math.max(0, bytesPerSecond);
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    boolean isLimited() {
+        return rate > 0;
+    }
+
+    void setRate(long bytesPerSecond) {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            rate = Math.max(0, bytesPerSecond);
+            // Old debt is paid at the old rate's scale; start the new rate from a clean slate
+            tokens = Math.max(0, tokens);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Takes {@code bytes} from the bucket; returns how long the caller has to wait, in nanoseconds. */
+    long charge(long bytes) {
+        if (rate == 0) return 0;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= bytes;
+            return debtNanos();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** How long until the bucket is out of debt, in nanoseconds; 0 if it is not in debt. */
+    long delayNanos() {
+        if (rate == 0) return 0;
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            return debtNanos();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long debtNanos() {
+        long r = rate;
+        return tokens >= 0 || r == 0 ? 0 : (long) (-tokens * 1e9 / r);
+    }
+
+    private void refill(long now) {
+        long r = rate;
+        if (r > 0) {
+            double burst = Math.max(MIN_BURST, r * BURST_SECONDS);
+            tokens = Math.min(burst, tokens + (now - refilledAt) * (r / 1e9));
+        }
+        refilledAt = now;
+    }
+}
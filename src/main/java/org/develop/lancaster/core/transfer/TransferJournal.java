@@ -0,0 +1,289 @@
+package org.develop.lancaster.core.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar journal ("name.lcpart") recording which byte ranges of a download are safely on disk.
+ *
+ * Layout: a header (magic, source size, source mtime) followed by append-only (start, end) records.
+ * Records are buffered and written in batches; before a batch is appended the destination file is
+ * fsynced, so the journal never claims bytes that could still be lost from the page cache.
+ * Batches are flushed on a background thread, so range workers never wait for the fsync.
+ * A torn record at the tail (crash mid-append) is simply ignored on load.
+ * Guarded by {@link ReentrantLock}s because the fsync may run on a virtual thread.
+ */
+public class TransferJournal implements AutoCloseable {
+
+    public static final String SUFFIX = ".lcpart";
+
+    private static final int MAGIC = 0x4C434A31; // "LCJ1"
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final int RECORD_SIZE = 16;
+
+    private static final long SYNC_INTERVAL_MS = 2000;
+    private static final int SYNC_BATCH = 64;
+
+    private static final Logger logger = Logger.getLogger(TransferJournal.class.getName());
+
+    // Flushes every journal's due batches, one at a time, off the range workers
+    private static final ExecutorService FLUSHER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "lancaster-journal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File journalFile;
+    private final long fileSize;
+    private final FileChannel journalChannel;
+    private final FileChannel dataChannel;
+    private final boolean resumed;
+
+    // start -> end of committed ranges, kept merged
+    private final TreeMap<Long, Long> completed = new TreeMap<>();
+    private List<ChunkRange> unsynced = new ArrayList<>();
+    private long lastSync = System.currentTimeMillis();
+    private boolean flushQueued;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Held for a whole sync, so batches reach the journal in order; never taken while holding lock
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private TransferJournal(File journalFile, long fileSize, FileChannel journalChannel, FileChannel dataChannel, boolean resumed) {
+        this.journalFile = journalFile;
+        this.fileSize = fileSize;
+        this.journalChannel = journalChannel;
+        this.dataChannel = dataChannel;
+        this.resumed = resumed;
+    }
+
+    public static File journalFileFor(File destination) {
+        return new File(destination.getParentFile(), destination.getName() + SUFFIX);
+    }
+
+    /**
+     * Opens the journal for {@code destination}. An existing journal is reused only if it was written
+     * for the same source size and mtime and the partial file is still there; otherwise it is reset.
+     */
+    public static TransferJournal open(File destination, long sourceSize, long sourceMtime) throws IOException {
+        File jf = journalFileFor(destination);
+        TreeMap<Long, Long> loaded = null;
+
+        if (jf.isFile() && destination.isFile() && destination.length() == sourceSize) {
+            loaded = load(jf, sourceSize, sourceMtime);
+        }
+
+        FileChannel jc = FileChannel.open(jf.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel dc = null;
+        try {
+            if (loaded == null) {
+                jc.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putLong(sourceSize).putLong(sourceMtime).flip();
+                while (header.hasRemaining()) jc.write(header, header.position());
+                jc.force(false);
+            } else {
+                // Drop a torn tail record so new records stay aligned
+                long valid = HEADER_SIZE + ((jc.size() - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE;
+                jc.truncate(valid);
+            }
+            jc.position(jc.size());
+
+            dc = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            TransferJournal journal = new TransferJournal(jf, sourceSize, jc, dc, loaded != null);
+            if (loaded != null) journal.completed.putAll(loaded);
+            return journal;
+        } catch (IOException e) {
+            jc.close();
+            if (dc != null) dc.close();
+            throw e;
+        }
+    }
+
+    private static TreeMap<Long, Long> load(File jf, long sourceSize, long sourceMtime) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(jf.toPath()));
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) return null;
+            long size = buf.getLong();
+            long mtime = buf.getLong();
+            if (size != sourceSize || mtime != sourceMtime) {
+                logger.info(() -> "[Journal] Source changed since last attempt, starting over: " + jf.getName());
+                return null;
+            }
+            TreeMap<Long, Long> ranges = new TreeMap<>();
+            while (buf.remaining() >= RECORD_SIZE) {
+                long start = buf.getLong();
+                long end = buf.getLong();
+                if (start < 0 || end > sourceSize || end <= start) continue;
+                merge(ranges, start, end);
+            }
+            return ranges;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Unreadable journal " + jf, e);
+            return null;
+        }
+    }
+
+    private static void merge(TreeMap<Long, Long> ranges, long start, long end) {
+        var floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        var next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    /** True if this download continues an earlier attempt. */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public long completedBytes() {
+        lock.lock();
+        try {
+            long sum = 0;
+            for (var e : completed.entrySet()) sum += e.getValue() - e.getKey();
+            return sum;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Whether every byte of [start, end) has been committed. */
+    public boolean covers(long start, long end) {
+        lock.lock();
+        try {
+            if (start >= end) return true;
+            var e = completed.floorEntry(start);
+            return e != null && e.getValue() >= end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The ranges still missing, cut into pieces of at most {@code chunkSize} bytes. */
+    public List<ChunkRange> missingRanges(long chunkSize) {
+        lock.lock();
+        try {
+            List<ChunkRange> missing = new ArrayList<>();
+            long pos = 0;
+            for (var e : completed.entrySet()) {
+                addSplit(missing, pos, e.getKey(), chunkSize);
+                pos = Math.max(pos, e.getValue());
+            }
+            addSplit(missing, pos, fileSize, chunkSize);
+            return missing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void addSplit(List<ChunkRange> out, long from, long to, long chunkSize) {
+        for (long p = from; p < to; p += chunkSize) {
+            out.add(new ChunkRange(p, Math.min(to, p + chunkSize)));
+        }
+    }
+
+    /** Records a range whose bytes have been written to the destination file. */
+    public void markComplete(ChunkRange range) {
+        lock.lock();
+        try {
+            if (range.length() == 0) return;
+            merge(completed, range.getStart(), range.getEnd());
+            unsynced.add(range);
+            if (flushQueued || (unsynced.size() < SYNC_BATCH && System.currentTimeMillis() - lastSync < SYNC_INTERVAL_MS)) {
+                return;
+            }
+            flushQueued = true;
+        } finally {
+            lock.unlock();
+        }
+        FLUSHER.execute(() -> {
+            try {
+                sync();
+            } catch (IOException e) {
+                // Not fatal: the ranges stay in memory and are retried on the next sync
+                logger.log(Level.FINE, "Journal sync failed", e);
+            }
+        });
+    }
+
+    /** Flushes the data file, then appends and flushes the buffered records. */
+    public void sync() throws IOException {
+        syncLock.lock();
+        try {
+            List<ChunkRange> batch;
+            lock.lock();
+            try {
+                flushQueued = false;
+                lastSync = System.currentTimeMillis();
+                if (unsynced.isEmpty() || !journalChannel.isOpen()) return;
+                batch = unsynced;
+                unsynced = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+
+            // Workers keep recording ranges meanwhile; those go into the next batch
+            try {
+                dataChannel.force(false);
+                ByteBuffer buf = ByteBuffer.allocate(batch.size() * RECORD_SIZE);
+                for (ChunkRange r : batch) buf.putLong(r.getStart()).putLong(r.getEnd());
+                buf.flip();
+                while (buf.hasRemaining()) journalChannel.write(buf);
+                journalChannel.force(false);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    batch.addAll(unsynced);
+                    unsynced = batch;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /** Download finished: the journal is no longer needed. */
+    public void finish() throws IOException {
+        close();
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /** Keeps the journal on disk so a later attempt can resume. */
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        try {
+            if (!journalChannel.isOpen()) return;
+            try {
+                sync();
+            } finally {
+                journalChannel.close();
+                dataChannel.close();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+}
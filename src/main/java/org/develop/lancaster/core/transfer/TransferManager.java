@@ -1,94 +1,793 @@
 package org.develop.lancaster.core.transfer;
 
+import org.develop.lancaster.core.util.Config;
+
 import java.io.*;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class TransferManager {
 
-    private static final int PORT = 5000;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private static final int DEFAULT_PORT = 5000;
+
+    // Directory mode: files up to this size travel in BATCH runs instead of ranged CHUNKs
+    private static final long SMALL_FILE_LIMIT = ChunkScheduler.MIN_CHUNK_SIZE;
+    private static final long BATCH_MAX_BYTES = 16L * 1024L * 1024L;
+    private static final int BATCH_MAX_FILES = 4096;
+
+    // Rounds of re-fetching blocks that failed verification before the download is given up
+    private static final int MAX_REPAIR_ROUNDS = 3;
+
+    // Below this an existing copy is simply downloaded again instead of patched
+    private static final long DELTA_MIN_SIZE = 16L * 1024L * 1024L;
+
+    // Smaller files are not worth waiting for the other receivers of a multicast session
+    private static final long MULTICAST_MIN_SIZE = 64L * 1024L * 1024L;
+
+    // Smaller files are over before a swarm peer has anything to offer
+    private static final long SWARM_MIN_SIZE = 64L * 1024L * 1024L;
+
+    // Other hosts of the same file that do not answer METADATA by then are left out
+    private static final long SOURCE_PROBE_MS = 2000;
+
+    // Range size on spinning disks: keeps the ranges in flight, and so the reorder buffer, small
+    private static final long HDD_CHUNK_SIZE = 4L * 1024L * 1024L;
+
+    private final int port;
     private static final Logger logger = Logger.getLogger(TransferManager.class.getName());
 
-    public void downloadFile(String peerIp, String saveDir, ProgressListener uiListener) {
-        executor.submit(() -> {
-            long fileSize;
-            String filename;
+    public TransferManager() {
+        this(DEFAULT_PORT);
+    }
 
-            // 1. Request Metadata (single lightweight connection)
-            try (Socket socket = new Socket(peerIp, PORT);
-                 DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+    // Peers serving on another port (a Sender started with port 0, test harnesses)
+    public TransferManager(int port) {
+        this.port = port;
+    }
 
-                dos.writeUTF("METADATA");
-                dos.flush();
+    public BandwidthShaper.Transfer downloadFile(String peerIp, String saveDir, ProgressListener uiListener) {
+        return downloadFile(peerIp, List.of(), saveDir, uiListener);
+    }
 
-                filename = dis.readUTF();
-                fileSize = dis.readLong();
+    /**
+     * Downloads what {@code peerIp} hosts. A single file is also pulled from any of {@code otherPeers}
+     * that hosts identical content (same size and content digest), with every source feeding the
+     * same range queue. Returns the download's bandwidth cap, which can be changed while it runs.
+     */
+    public BandwidthShaper.Transfer downloadFile(String peerIp, List<String> otherPeers, String saveDir,
+                                                 ProgressListener uiListener) {
+        return enqueue(peerIp, otherPeers, saveDir, DownloadQueue.PRIORITY_NORMAL, uiListener).shaping();
+    }
 
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to request metadata from " + peerIp, e);
-                return;
+    /**
+     * Like {@link #downloadFile}, but returns the download's place in the {@link DownloadQueue}, for
+     * reordering or cancelling it while it waits. A download cancelled before it started reports
+     * {@code onFinished(false)}.
+     */
+    public DownloadQueue.Ticket enqueue(String peerIp, List<String> otherPeers, String saveDir, int priority,
+                                        ProgressListener uiListener) {
+        BandwidthShaper.Transfer shaping = BandwidthShaper.shared().openTransfer();
+        return TransferRuntime.shared().queue().submit(peerIp, priority, shaping, ticket -> {
+            boolean ok = false;
+            try {
+                ok = download(peerIp, otherPeers, saveDir, ticket, uiListener);
+            } finally {
+                uiListener.onFinished(ok);
             }
+        }, () -> uiListener.onFinished(false));
+    }
 
-            File saveFile = new File(saveDir, filename);
-            logger.info(() -> "[Manager] Downloading " + filename + " (" + fileSize + " bytes)");
+    // Download jobs run on the runtime's control pool; their probes and digest fetches go there too
+    private static ExecutorService control() {
+        return TransferRuntime.shared().control();
+    }
+
+    private boolean download(String peerIp, List<String> otherPeers, String saveDir, DownloadQueue.Ticket ticket,
+                             ProgressListener uiListener) {
+        BandwidthShaper.Transfer shaping = ticket.shaping();
+        // 1. Request Metadata (single lightweight connection)
+        RemoteMetadata meta;
+        try {
+            meta = requestMetadata(peerIp);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to request metadata from " + peerIp, e);
+            return false;
+        }
+
+        String filename = meta.name;
+        long fileSize = meta.size;
+        long sourceMtime = meta.mtime;
+        byte kind = meta.kind;
+
+        if (kind == TransferManifest.KIND_DIRECTORY) {
+            return downloadDirectory(peerIp, saveDir, filename, ticket, uiListener);
+        }
+
+        File saveFile = new File(saveDir, filename);
+
+        // Parallel connections: what worked for this peer last time, within the queue's share;
+        // the range phase tunes it further
+        int parts = Math.min(StreamTuner.initialStreams(peerIp), ticket.connections());
+
+        // An older copy that is not a half-finished download: only fetch what changed
+        if (meta.delta && saveFile.isFile() && saveFile.length() >= DELTA_MIN_SIZE
+                && !TransferJournal.journalFileFor(saveFile).exists()
+                && downloadDelta(peerIp, saveFile, meta, parts, uiListener)) {
+            return true;
+        }
+
+        logger.info(() -> "[Manager] Downloading " + filename + " (" + fileSize + " bytes)");
 
+        // Journal of committed ranges: lets an interrupted download pick up where it stopped
+        TransferJournal journal;
+        try {
+            journal = TransferJournal.open(saveFile, fileSize, sourceMtime);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to open transfer journal for " + saveFile.getAbsolutePath(), e);
+            return false;
+        }
+
+        if (journal.isResumed()) {
+            logger.info(() -> "[Manager] Resuming " + filename + ", " + journal.completedBytes() + " bytes already on disk");
+        } else {
             // Pre-allocate file to avoid fragmentation and allow RandomAccess writes safely
-            try (RandomAccessFile raf = new RandomAccessFile(saveFile, "rw")) {
-                raf.setLength(fileSize);
+            try {
+                Storage.preallocate(saveFile, fileSize);
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Failed to preallocate file: " + saveFile.getAbsolutePath(), e);
-                return;
+                closeQuietly(journal);
+                return false;
             }
+        }
 
-            // Decide parallelism: balance between HDD safety and throughput.
-            int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
-            int parts = Math.min(8, cores * 2); // up to 8 parallel connections
+        // Several receivers of one file: take what the sender multicasts, then pull the rest below
+        if (meta.multicast && fileSize >= MULTICAST_MIN_SIZE && Config.isMulticastEnabled()) {
+            receiveMulticast(peerIp, saveFile, fileSize, journal, uiListener);
+        }
 
-            long baseChunk = fileSize / parts;
+        // Further hosts of the identical file share the work
+        List<String> sources = new ArrayList<>();
+        sources.add(peerIp);
+        if (meta.contentDigest.length > 0 && !otherPeers.isEmpty()) {
+            sources.addAll(findSources(meta, otherPeers));
+        }
 
-            ExecutorService partsExecutor = Executors.newFixedThreadPool(parts);
-            List<Future<Boolean>> futures = new ArrayList<>();
+        // Many small ranges in a shared queue: fast connections keep pulling work
+        // instead of waiting on the slowest of a few large static ranges.
+        // Sized for the most streams the tuner may try, so added ones find work
+        long chunkSize = ChunkScheduler.chooseChunkSize(fileSize, Math.max(parts * sources.size(), Config.getMaxStreams()));
+        boolean spinning = Storage.kindOf(saveFile.getAbsoluteFile().getParentFile()) == Storage.Kind.HDD;
+        if (spinning) chunkSize = Math.min(chunkSize, HDD_CHUNK_SIZE);
+        List<ChunkRange> missing = journal.missingRanges(chunkSize);
 
-            AtomicLong globalDownloaded = new AtomicLong(0);
-            AtomicLong[] lastReported = new AtomicLong[parts];
-            for (int i = 0; i < parts; i++) lastReported[i] = new AtomicLong(0);
+        // Other receivers of the same file serve each other what they already have
+        SwarmDownload swarm = null;
+        if (sources.size() == 1 && meta.swarm && fileSize >= SWARM_MIN_SIZE && Config.isSwarmEnabled()) {
+            swarm = SwarmDownload.start(peerIp, port, saveFile, fileSize, sourceMtime, journal);
+            // Random order, so the receivers hold different ranges to trade; a spinning disk keeps file order
+            if (swarm != null && !spinning) Collections.shuffle(missing);
+        }
+        ChunkScheduler scheduler = new ChunkScheduler(missing, journal::markComplete);
+        int workers = Math.max(1, Math.min(parts, scheduler.pendingCount()));
 
-            for (int i = 0; i < parts; i++) {
-                final int idx = i;
-                long start = idx * baseChunk;
-                long end = (idx == parts - 1) ? fileSize : (start + baseChunk);
+        AtomicLong globalDownloaded = new AtomicLong(journal.completedBytes());
+        if (globalDownloaded.get() > 0) uiListener.onProgress(globalDownloaded.get(), fileSize);
 
-                ProgressListener partListener = (current, total) -> {
-                    long prev = lastReported[idx].getAndSet(current);
-                    long delta = current - prev;
-                    if (delta <= 0) return;
-                    long totalNow = globalDownloaded.addAndGet(delta);
-                    uiListener.onProgress(totalNow, fileSize);
-                };
+        // Blocks are hashed as they arrive; the sender hashes its copy meanwhile
+        List<File> destinations = List.of(saveFile);
+        // A spinning disk gets the parallel streams' data in file order
+        ReorderBuffer reorder = spinning && swarm == null ? newReorderBuffer(destinations) : null;
+        BlockChecksums checksums = meta.digests ? new BlockChecksums(new long[]{fileSize}) : null;
+        Future<Map<Integer, FileDigests>> expected = meta.digests
+                ? control().submit(() -> fetchDigests(peerIp, List.of(-1))) : null;
 
-                ChunkTransferTask task = new ChunkTransferTask(peerIp, PORT, saveFile, start, end, idx, partListener);
-                futures.add(partsExecutor.submit(task));
-            }
+        if (swarm != null) {
+            swarm.download(scheduler, destinations, checksums, workers, shaping,
+                    () -> deltaListener(globalDownloaded, fileSize, uiListener));
+        } else if (sources.size() > 1) {
+            downloadFromAll(sources, destinations, scheduler, checksums, workers, shaping, reorder,
+                    globalDownloaded, uiListener);
+        } else {
+            runTuned(peerIp, scheduler, List.of(), globalDownloaded, ticket::connections, slot ->
+                    new ChunkTransferTask(peerIp, port, destinations, scheduler, checksums, slot,
+                            deltaListener(globalDownloaded, fileSize, uiListener))
+                            .shapedBy(shaping.flow(peerIp)).writingThrough(reorder));
+        }
+        if (reorder != null) reorder.close();
+
+        if (scheduler.getFailure() != null) {
+            // Keep the journal so the next attempt only asks for what is missing
+            if (swarm != null) swarm.stop();
+            closeQuietly(journal);
+            logger.log(Level.WARNING, "Download of " + filename + " from " + peerIp + " failed", scheduler.getFailure());
+            return false;
+        }
+
+        if (checksums != null && !verifyAndRepair(peerIp, destinations, checksums, List.of(-1), expected, parts)) {
+            // Bad blocks are found again from disk on the next attempt
+            if (swarm != null) swarm.stop();
+            closeQuietly(journal);
+            logger.warning("[Manager] " + filename + " failed verification");
+            return false;
+        }
+
+        try {
+            journal.finish();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to remove transfer journal", e);
+        }
+
+        // Ensure UI shows completion
+        uiListener.onProgress(fileSize, fileSize);
+        logger.info(() -> "[Manager] Download complete: " + saveFile.getAbsolutePath());
+        // Receivers that are still downloading keep fetching from this copy for a while
+        if (swarm != null) control().submit(swarm::linger);
+        return true;
+    }
+
+    /** Those of {@code candidates} that host the same content as {@code meta}, probed in parallel. */
+    private List<String> findSources(RemoteMetadata meta, List<String> candidates) {
+        Map<String, Future<RemoteMetadata>> probes = new HashMap<>();
+        for (String ip : candidates) probes.put(ip, control().submit(() -> requestMetadata(ip)));
 
-            // wait for parts
+        List<String> found = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + SOURCE_PROBE_MS;
+        for (Map.Entry<String, Future<RemoteMetadata>> e : probes.entrySet()) {
             try {
-                for (Future<Boolean> f : futures) f.get();
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Error while downloading parts from " + peerIp, e);
-            } finally {
-                partsExecutor.shutdownNow();
+                RemoteMetadata other = e.getValue().get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (other.kind == TransferManifest.KIND_FILE && other.size == meta.size
+                        && Arrays.equals(other.contentDigest, meta.contentDigest)) {
+                    found.add(e.getKey());
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException ignored) {
+                // Not hosting anything, or too slow to be of use
+                e.getValue().cancel(true);
+            }
+        }
+        if (!found.isEmpty()) logger.info(() -> "[Manager] " + meta.name + " is also hosted by " + found);
+        return found;
+    }
+
+    /**
+     * Runs {@code workersPerSource} workers against every source. All of them pull from the one range
+     * queue, so each source ends up serving in proportion to the throughput it manages. Only the first
+     * source counts failed attempts; the others give their ranges back and drop out on error.
+     */
+    private void downloadFromAll(List<String> sources, List<File> destinations, ChunkScheduler scheduler,
+                                        BlockChecksums checksums, int workersPerSource, BandwidthShaper.Transfer shaping,
+                                        ReorderBuffer reorder, AtomicLong globalDownloaded, ProgressListener uiListener) {
+        long total = scheduler.getTotalBytes();
+        List<AtomicLong> perSource = new ArrayList<>();
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int s = 0; s < sources.size(); s++) {
+            AtomicLong sourceBytes = new AtomicLong();
+            perSource.add(sourceBytes);
+            // Tasks report their own totals; this one turns the source's total into global progress
+            ProgressListener toGlobal = deltaListener(globalDownloaded, total, uiListener);
+            for (int i = 0; i < workersPerSource; i++) {
+                ChunkTransferTask task = new ChunkTransferTask(sources.get(s), port, destinations, scheduler, checksums,
+                        s * workersPerSource + i, deltaListener(sourceBytes, total, toGlobal))
+                        .shapedBy(shaping.flow(sources.get(s))).writingThrough(reorder);
+                tasks.add(s == 0 ? task : task.onlyFrom(r -> true));
+            }
+        }
+
+        long started = System.nanoTime();
+        runAll(tasks, scheduler, sources.get(0));
+        double seconds = Math.max(1e-3, (System.nanoTime() - started) / 1e9);
+        for (int s = 0; s < sources.size(); s++) {
+            long bytes = perSource.get(s).get();
+            logger.info(String.format("[Manager] %s sent %d bytes (%.1f MB/s)", sources.get(s), bytes,
+                    bytes / seconds / (1024 * 1024)));
+        }
+    }
+
+    private void receiveMulticast(String peerIp, File saveFile, long fileSize, TransferJournal journal,
+                                         ProgressListener uiListener) {
+        try {
+            long received = MulticastReceiver.receive(peerIp, port, saveFile, fileSize, journal, uiListener);
+            if (received >= 0) {
+                logger.info(() -> "[Manager] Multicast delivered " + received + " bytes of " + saveFile.getName()
+                        + ", " + (fileSize - journal.completedBytes()) + " left for unicast");
+            }
+        } catch (IOException e) {
+            // Not offered for this transfer, no multicast route, ...: plain unicast download
+            logger.log(Level.FINE, "No multicast session for " + saveFile.getName(), e);
+        }
+    }
+
+    /**
+     * Patches an existing copy with a DELTA request. Returns false (leaving the full download to the
+     * caller) if the sender cannot do it or the result does not verify.
+     */
+    private boolean downloadDelta(String peerIp, File saveFile, RemoteMetadata meta, int parts, ProgressListener uiListener) {
+        logger.info(() -> "[Manager] " + saveFile.getName() + " exists, requesting changes only");
+        Future<Map<Integer, FileDigests>> expected = meta.digests
+                ? control().submit(() -> fetchDigests(peerIp, List.of(-1))) : null;
+
+        long literal;
+        try {
+            literal = DeltaReceiver.download(peerIp, port, saveFile, meta.size, uiListener);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Delta transfer of " + saveFile.getName() + " failed, downloading it in full", e);
+            return false;
+        }
+        if (literal < 0) return false;
+
+        // Nothing was hashed on the way in, so every block is read back from disk
+        if (expected != null && !verifyAndRepair(peerIp, List.of(saveFile),
+                new BlockChecksums(new long[]{meta.size}), List.of(-1), expected, parts)) {
+            logger.warning("[Manager] Delta result for " + saveFile.getName() + " failed verification, downloading it in full");
+            return false;
+        }
+
+        uiListener.onProgress(meta.size, meta.size);
+        logger.info(() -> "[Manager] Updated " + saveFile.getAbsolutePath() + " with " + literal + " changed bytes of " + meta.size);
+        return true;
+    }
+
+    /**
+     * Directory mode: fetch the manifest, then move small files in BATCH runs over one connection
+     * each while large files are split into ranges for the shared chunk scheduler.
+     * Files already present with the source size and mtime are skipped.
+     */
+    private boolean downloadDirectory(String peerIp, String saveDir, String dirName, DownloadQueue.Ticket ticket,
+                                      ProgressListener uiListener) {
+        BandwidthShaper.Transfer shaping = ticket.shaping();
+        File targetDir = new File(saveDir, dirName);
+        TransferManifest manifest;
+
+        try {
+            manifest = requestManifest(peerIp, dirName);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to request manifest from " + peerIp, e);
+            return false;
+        }
+
+        long totalSize = manifest.getTotalSize();
+        logger.info(() -> "[Manager] Downloading folder " + dirName + " (" + manifest.size() + " files, " + totalSize + " bytes)");
+
+        int parts = Math.min(StreamTuner.initialStreams(peerIp), ticket.connections());
+        long chunkSize = ChunkScheduler.chooseChunkSize(totalSize, Math.max(parts, Config.getMaxStreams()));
+        boolean spinning = Storage.kindOf(targetDir) == Storage.Kind.HDD;
+        if (spinning) chunkSize = Math.min(chunkSize, HDD_CHUNK_SIZE);
+
+        List<File> destinations = new ArrayList<>(manifest.size());
+        List<ChunkRange> ranges = new ArrayList<>();
+        List<int[]> batches = new ArrayList<>();
+        long alreadyDone = 0;
+
+        // Remaining bytes per large file, so its mtime can be set once the last range lands
+        Map<Integer, AtomicLong> largeRemaining = new ConcurrentHashMap<>();
+        long[] sizes = new long[manifest.size()];
+
+        try {
+            // Fail before creating anything if the folder cannot hold what is missing
+            long missingBytes = 0;
+            for (int i = 0; i < manifest.size(); i++) {
+                File dest = TransferManifest.resolveSafely(targetDir, manifest.get(i).getPath());
+                long size = manifest.get(i).getSize();
+                missingBytes += size - (dest.isFile() ? Math.min(size, dest.length()) : 0);
+            }
+            Storage.ensureSpace(targetDir, missingBytes);
+
+            int batchStart = -1;
+            long batchBytes = 0;
+
+            for (int i = 0; i < manifest.size(); i++) {
+                TransferManifest.Entry entry = manifest.get(i);
+                File dest = TransferManifest.resolveSafely(targetDir, entry.getPath());
+                destinations.add(dest);
+                sizes[i] = entry.getSize();
+
+                boolean upToDate = dest.isFile() && dest.length() == entry.getSize()
+                        && dest.lastModified() == entry.getLastModified();
+                boolean small = entry.getSize() <= SMALL_FILE_LIMIT;
+
+                // Close the current batch if this file cannot join it
+                if (batchStart >= 0 && (upToDate || !small || entry.getSize() == 0
+                        || batchBytes >= BATCH_MAX_BYTES || i - batchStart >= BATCH_MAX_FILES)) {
+                    batches.add(new int[]{batchStart, i});
+                    batchStart = -1;
+                }
+
+                if (upToDate) {
+                    alreadyDone += entry.getSize();
+                    continue;
+                }
+
+                File parent = dest.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Cannot create folder " + parent);
+                }
+
+                if (entry.getSize() == 0) {
+                    try (RandomAccessFile raf = new RandomAccessFile(dest, "rw")) {
+                        raf.setLength(0);
+                    }
+                    dest.setLastModified(entry.getLastModified());
+                } else if (small) {
+                    if (batchStart < 0) {
+                        batchStart = i;
+                        batchBytes = 0;
+                    }
+                    batchBytes += entry.getSize();
+                } else {
+                    Storage.preallocate(dest, entry.getSize());
+                    largeRemaining.put(i, new AtomicLong(entry.getSize()));
+                    for (long pos = 0; pos < entry.getSize(); pos += chunkSize) {
+                        ranges.add(new ChunkRange(i, pos, Math.min(entry.getSize(), pos + chunkSize)));
+                    }
+                }
             }
+            if (batchStart >= 0) batches.add(new int[]{batchStart, manifest.size()});
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to prepare folder " + targetDir.getAbsolutePath(), e);
+            return false;
+        }
 
-            // Ensure UI shows completion
-            uiListener.onProgress(fileSize, fileSize);
-            logger.info(() -> "[Manager] Download complete: " + saveFile.getAbsolutePath());
+        ChunkScheduler scheduler = new ChunkScheduler(ranges, range -> {
+            AtomicLong left = largeRemaining.get(range.getFileIndex());
+            if (left != null && left.addAndGet(-range.length()) == 0) {
+                destinations.get(range.getFileIndex()).setLastModified(manifest.get(range.getFileIndex()).getLastModified());
+            }
         });
+
+        AtomicLong globalDownloaded = new AtomicLong(alreadyDone);
+        if (alreadyDone > 0) uiListener.onProgress(alreadyDone, totalSize);
+
+        // Large files are verified block by block; batched small files are not
+        boolean verify = supportsDigests(peerIp) && !largeRemaining.isEmpty();
+        BlockChecksums checksums = verify ? new BlockChecksums(sizes) : null;
+        List<Integer> verified = new ArrayList<>(largeRemaining.keySet());
+        Future<Map<Integer, FileDigests>> expected = verify ? control().submit(() -> fetchDigests(peerIp, verified)) : null;
+
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int[] b : batches) {
+            tasks.add(new BatchTransferTask(peerIp, port, manifest, destinations, b[0], b[1],
+                    deltaListener(globalDownloaded, totalSize, uiListener)).shapedBy(shaping.flow(peerIp)));
+        }
+        ReorderBuffer reorder = spinning && !ranges.isEmpty() ? newReorderBuffer(destinations) : null;
+        runTuned(peerIp, scheduler, tasks, globalDownloaded, ticket::connections, slot ->
+                new ChunkTransferTask(peerIp, port, destinations, scheduler, checksums, slot,
+                        deltaListener(globalDownloaded, totalSize, uiListener))
+                        .shapedBy(shaping.flow(peerIp)).writingThrough(reorder));
+        if (reorder != null) reorder.close();
+
+        if (scheduler.getFailure() != null) {
+            logger.log(Level.WARNING, "Download of folder " + dirName + " from " + peerIp + " failed", scheduler.getFailure());
+            return false;
+        }
+        if (verify) {
+            if (!verifyAndRepair(peerIp, destinations, checksums, verified, expected, parts)) {
+                logger.warning("[Manager] Folder " + dirName + " failed verification");
+                return false;
+            }
+            // Repaired files were written after their mtime was set
+            for (int i : verified) destinations.get(i).setLastModified(manifest.get(i).getLastModified());
+        }
+
+        uiListener.onProgress(totalSize, totalSize);
+        logger.info(() -> "[Manager] Folder download complete: " + targetDir.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Runs the tasks on the runtime's worker pool and waits for all of them.
+     * Any task failure is recorded on the scheduler.
+     */
+    private static void runAll(List<Callable<Boolean>> tasks, ChunkScheduler scheduler, String peerIp) {
+        if (tasks.isEmpty()) return;
+        ExecutorService workers = TransferRuntime.shared().workers();
+        List<Future<Boolean>> futures = new ArrayList<>();
+        try {
+            for (Callable<Boolean> t : tasks) futures.add(workers.submit(t));
+            for (Future<Boolean> f : futures) f.get();
+        } catch (Exception e) {
+            scheduler.fail(e);
+            logger.log(Level.WARNING, "Error while downloading parts from " + peerIp, e);
+        } finally {
+            cancelAll(futures);
+        }
+    }
+
+    // The pools are shared: a download stops only its own tasks
+    private static void cancelAll(List<Future<Boolean>> futures) {
+        for (Future<Boolean> f : futures) f.cancel(true);
+    }
+
+    /**
+     * Runs {@code tasks} on {@code pool}, at most {@code concurrency} at a time, by submitting that
+     * many runners that take the next task until none are left. A failed task stops its runner
+     * and fails its future; the other runners go on.
+     */
+    private static List<Future<Boolean>> submitLimited(ExecutorService pool, List<Callable<Boolean>> tasks,
+                                                       int concurrency) {
+        Queue<Callable<Boolean>> pending = new ConcurrentLinkedQueue<>(tasks);
+        List<Future<Boolean>> runners = new ArrayList<>();
+        for (int i = 0; i < Math.min(concurrency, tasks.size()); i++) {
+            runners.add(pool.submit(() -> {
+                Callable<Boolean> next;
+                while ((next = pending.poll()) != null) {
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+                    next.call();
+                }
+                return true;
+            }));
+        }
+        return runners;
+    }
+
+    private static ReorderBuffer newReorderBuffer(List<File> destinations) {
+        return new ReorderBuffer(destinations, Math.max(1, Config.getReorderBufferMegabytes()) * 1024L * 1024L);
+    }
+
+    /**
+     * Runs range workers against {@code peerIp} until the scheduler is done, letting a
+     * {@link StreamTuner} decide how many run: workers beyond its count retire after their current
+     * ranges, new ones start in the free slots. {@code fixed} tasks (directory batches) run beside
+     * them, as many at a time as the starting count. All of them run on the runtime's worker pool. {@code progress} counts the bytes the tuner measures;
+     * {@code share} is the most connections the download queue allows this download right now.
+     */
+    private static void runTuned(String peerIp, ChunkScheduler scheduler, List<Callable<Boolean>> fixed,
+                                 AtomicLong progress, IntSupplier share, IntFunction<ChunkTransferTask> newWorker) {
+        StreamTuner tuner = new StreamTuner(peerIp, share);
+        long interval = Math.max(100, Config.getStreamTuningIntervalMillis());
+        int max = Config.getMaxStreams();
+        ExecutorService workers = TransferRuntime.shared().workers();
+        List<Future<Boolean>> futures = new ArrayList<>();
+        List<Future<Boolean>> slots = new ArrayList<>(Collections.nCopies(max, null));
+        AtomicInteger target = new AtomicInteger(tuner.streams());
+        try {
+            futures.addAll(submitLimited(workers, fixed, tuner.streams()));
+            tuner.sample(progress.get(), false);
+            while (true) {
+                // Fill free slots below the target; a slot still draining keeps going if it is wanted again
+                for (int slot = 0; slot < target.get(); slot++) {
+                    if ((slots.get(slot) == null || slots.get(slot).isDone()) && scheduler.pendingCount() > 0) {
+                        int s = slot;
+                        Future<Boolean> worker = workers.submit(newWorker.apply(slot).retireWhen(() -> s >= target.get()));
+                        slots.set(slot, worker);
+                        futures.add(worker);
+                    }
+                }
+                if (awaitAll(futures, interval) && (scheduler.pendingCount() == 0 || scheduler.getFailure() != null)) break;
+                target.set(tuner.sample(progress.get(), scheduler.pendingCount() >= target.get()));
+            }
+            for (Future<Boolean> f : futures) f.get();
+            tuner.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            scheduler.fail(e);
+        } catch (Exception e) {
+            scheduler.fail(e);
+            logger.log(Level.WARNING, "Error while downloading parts from " + peerIp, e);
+        } finally {
+            cancelAll(futures);
+        }
+    }
+
+    // Waits up to timeoutMillis for every future; true if all are done
+    private static boolean awaitAll(List<Future<Boolean>> futures, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Future<Boolean> f : futures) {
+            long left = deadline - System.nanoTime();
+            try {
+                f.get(Math.max(0, left), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                // reported when the results are collected
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks every verified file against the sender's digests and fetches blocks that differ again,
+     * up to {@link #MAX_REPAIR_ROUNDS} times. {@code expected} holds the digests of the range file
+     * indexes {@code fileIndexes} (-1 for a single file). Returns false if the files could not be
+     * made to match, or could not be checked because the digests did not arrive.
+     */
+    private boolean verifyAndRepair(String peerIp, List<File> destinations, BlockChecksums checksums,
+                                    List<Integer> fileIndexes, Future<Map<Integer, FileDigests>> expected, int parts) {
+        Map<Integer, FileDigests> digests;
+        try {
+            digests = expected.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // Unverified is not done: ask once more, then leave it to the next attempt
+            logger.log(Level.WARNING, "Failed to get digests from " + peerIp + ", asking again", e.getCause());
+            try {
+                digests = fetchDigests(peerIp, fileIndexes);
+            } catch (IOException again) {
+                logger.log(Level.WARNING, "Failed to get digests from " + peerIp + ", download is not verified", again);
+                return false;
+            }
+        }
+        if (!digests.keySet().containsAll(fileIndexes)) {
+            logger.warning("[Manager] " + peerIp + " sent no digests for some files, download is not verified");
+            return false;
+        }
+
+        for (int round = 0; ; round++) {
+            List<ChunkRange> bad = new ArrayList<>();
+            try {
+                for (Map.Entry<Integer, FileDigests> e : digests.entrySet()) {
+                    bad.addAll(checksums.verify(e.getKey(), destinations.get(Math.max(0, e.getKey())), e.getValue()));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to verify downloaded data", e);
+                return false;
+            }
+            if (bad.isEmpty()) return true;
+            if (round == MAX_REPAIR_ROUNDS) return false;
+
+            logger.warning("[Manager] " + bad.size() + " blocks failed verification, fetching them again");
+            ChunkScheduler repair = new ChunkScheduler(bad);
+            int workers = Math.max(1, Math.min(parts, bad.size()));
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                tasks.add(new ChunkTransferTask(peerIp, port, destinations, repair, checksums, i, null));
+            }
+            runAll(tasks, repair, peerIp);
+            if (repair.getFailure() != null) return false;
+        }
+    }
+
+    /** Digests for the given range file indexes, fetched over one pipelined connection. */
+    private Map<Integer, FileDigests> fetchDigests(String peerIp, List<Integer> fileIndexes) throws IOException {
+        Map<Integer, FileDigests> digests = new HashMap<>();
+        try (PeerConnection conn = PeerConnection.connect(peerIp, port)) {
+            if (conn == null || !conn.supportsDigests()) return digests;
+            for (int index : fileIndexes) conn.requestDigests(index);
+            for (int index : fileIndexes) {
+                byte[] payload = conn.readPayload(conn.awaitReply());
+                digests.put(index, FileDigests.read(new DataInputStream(new ByteArrayInputStream(payload))));
+            }
+        }
+        return digests;
+    }
+
+    private boolean supportsDigests(String peerIp) {
+        try (PeerConnection conn = PeerConnection.connect(peerIp, port)) {
+            return conn != null && conn.supportsDigests();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Turns one task's cumulative progress into deltas on the shared counter
+    private static ProgressListener deltaListener(AtomicLong global, long total, ProgressListener uiListener) {
+        AtomicLong lastReported = new AtomicLong(0);
+        return (current, ignored) -> {
+            // A task may report less after dropping a cut block; count those bytes only once
+            long prev = lastReported.getAndAccumulate(current, Math::max);
+            long delta = current - prev;
+            if (delta <= 0) return;
+            uiListener.onProgress(global.addAndGet(delta), total);
+        };
+    }
+
+    // What the METADATA reply describes: a single file, or a folder by total size
+    private static final class RemoteMetadata {
+        String name;
+        long size;
+        long mtime;
+        byte kind;
+        boolean digests; // sender answers DIGESTS requests
+        boolean delta;   // sender answers DELTA requests
+        boolean multicast; // sender may offer a multicast session
+        boolean swarm;     // sender tracks the other receivers of the file
+        byte[] contentDigest = new byte[0]; // SHA-256 of a single file, if the sender has indexed it
+    }
+
+    private RemoteMetadata requestMetadata(String peerIp) throws IOException {
+        try (PeerConnection conn = PeerConnection.connect(peerIp, port)) {
+            if (conn != null) {
+                conn.requestMetadata();
+                byte[] payload = conn.readPayload(conn.awaitReply());
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                RemoteMetadata meta = parseMetadata(in);
+                meta.digests = conn.supportsDigests();
+                meta.delta = conn.supportsDelta();
+                meta.multicast = conn.supportsMulticast();
+                meta.swarm = conn.supportsSwarm();
+                if (conn.supportsContentDigest()) meta.contentDigest = readOptionalDigest(in);
+                return meta;
+            }
+        }
+
+        // Pre-upgrade sender
+        try (Socket socket = new Socket(peerIp, port);
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+
+            dos.writeUTF("METADATA");
+            dos.flush();
+            return parseMetadata(dis);
+        }
+    }
+
+    private static RemoteMetadata parseMetadata(DataInputStream dis) throws IOException {
+        RemoteMetadata meta = new RemoteMetadata();
+        meta.name = dis.readUTF();
+        meta.size = dis.readLong();
+        meta.mtime = readOptionalLong(dis);
+        meta.kind = readOptionalByte(dis);
+        return meta;
+    }
+
+    private TransferManifest requestManifest(String peerIp, String dirName) throws IOException {
+        try (PeerConnection conn = PeerConnection.connect(peerIp, port)) {
+            if (conn != null) {
+                conn.requestManifest();
+                byte[] payload = conn.readPayload(conn.awaitReply());
+                return TransferManifest.read(dirName, new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+        }
+
+        try (Socket socket = new Socket(peerIp, port);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+
+            dos.writeUTF("MANIFEST");
+            dos.flush();
+            return TransferManifest.read(dirName, dis);
+        }
+    }
+
+    private static byte readOptionalByte(DataInputStream dis) {
+        try {
+            return dis.readByte();
+        } catch (IOException e) {
+            return TransferManifest.KIND_FILE;
+        }
+    }
+
+    // Only set once the sender has indexed the file
+    private static byte[] readOptionalDigest(DataInputStream dis) {
+        try {
+            byte[] digest = new byte[dis.readUnsignedShort()];
+            dis.readFully(digest);
+            return digest;
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    // Older senders end the METADATA reply after the size
+    private static long readOptionalLong(DataInputStream dis) {
+        try {
+            return dis.readLong();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static void closeQuietly(TransferJournal journal) {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close transfer journal", e);
+        }
     }
-}
\ No newline at end of file
+}
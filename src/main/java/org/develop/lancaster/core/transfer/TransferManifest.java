@@ -0,0 +1,161 @@
+package org.develop.lancaster.core.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * What a {@code Sender} is hosting: either one file or every regular file below a directory.
+ * Entries are addressed by index on the wire; paths use '/' and are relative to the shared root.
+ * A partial manifest describes a file that is still being downloaded (swarm mode): only the ranges
+ * its journal has committed can be served.
+ */
+public final class TransferManifest {
+
+    // Trailing "kind" byte of the METADATA reply
+    public static final byte KIND_FILE = 0;
+    public static final byte KIND_DIRECTORY = 1;
+
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final File source; // only set on the sending side
+
+        public Entry(String path, long size, long lastModified, File source) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.source = source;
+        }
+
+        public String getPath() { return path; }
+        public long getSize() { return size; }
+        public long getLastModified() { return lastModified; }
+        public File getSource() { return source; }
+    }
+
+    private final String rootName;
+    private final boolean directory;
+    private final List<Entry> entries;
+    private final long totalSize;
+    private final TransferJournal holdings; // null unless partial
+
+    private TransferManifest(String rootName, boolean directory, List<Entry> entries) {
+        this(rootName, directory, entries, null);
+    }
+
+    private TransferManifest(String rootName, boolean directory, List<Entry> entries, TransferJournal holdings) {
+        this.rootName = rootName;
+        this.directory = directory;
+        this.holdings = holdings;
+        this.entries = Collections.unmodifiableList(entries);
+        long sum = 0;
+        for (Entry e : entries) sum += e.size;
+        this.totalSize = sum;
+    }
+
+    /** Builds the manifest for a file or directory on the sending side. */
+    public static TransferManifest scan(File root) throws IOException {
+        if (!root.isDirectory()) {
+            List<Entry> single = new ArrayList<>();
+            single.add(new Entry(root.getName(), root.length(), root.lastModified(), root));
+            return new TransferManifest(root.getName(), false, single);
+        }
+
+        Path base = root.toPath();
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(base)) {
+            // Sorted so files of the same folder sit next to each other in batches
+            for (Path p : (Iterable<Path>) walk.sorted()::iterator) {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) continue;
+                String rel = base.relativize(p).toString().replace(File.separatorChar, '/');
+                entries.add(new Entry(rel, attrs.size(), attrs.lastModifiedTime().toMillis(), p.toFile()));
+            }
+        }
+        return new TransferManifest(root.getName(), true, entries);
+    }
+
+    /** A single file of {@code size} bytes that is still arriving; {@code journal} says which parts are there. */
+    public static TransferManifest partial(File file, long size, long lastModified, TransferJournal journal) {
+        List<Entry> single = new ArrayList<>();
+        single.add(new Entry(file.getName(), size, lastModified, file));
+        return new TransferManifest(file.getName(), false, single, journal);
+    }
+
+    public boolean isPartial() { return holdings != null; }
+
+    /** Whether bytes [start, end) of entry {@code index} can be served. */
+    public boolean holds(int index, long start, long end) {
+        return holdings == null || holdings.covers(start, end);
+    }
+
+    /** Which {@link FileDigests} blocks of entry {@code index} can be served in full. */
+    public BitSet heldBlocks(int index) {
+        long size = entries.get(index).size;
+        int blocks = FileDigests.blockCount(size);
+        BitSet held = new BitSet(blocks);
+        if (holdings == null) {
+            held.set(0, blocks);
+            return held;
+        }
+        for (int b = 0; b < blocks; b++) {
+            long start = (long) b * FileDigests.BLOCK_SIZE;
+            if (holdings.covers(start, Math.min(size, start + FileDigests.BLOCK_SIZE))) held.set(b);
+        }
+        return held;
+    }
+
+    public String getRootName() { return rootName; }
+    public boolean isDirectory() { return directory; }
+    public List<Entry> getEntries() { return entries; }
+    public Entry get(int index) { return entries.get(index); }
+    public int size() { return entries.size(); }
+    public long getTotalSize() { return totalSize; }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(entries.size());
+        for (Entry e : entries) {
+            dos.writeUTF(e.path);
+            dos.writeLong(e.size);
+            dos.writeLong(e.lastModified);
+        }
+    }
+
+    public static TransferManifest read(String rootName, DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count < 0) throw new IOException("Invalid manifest entry count: " + count);
+        List<Entry> entries = new ArrayList<>(Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            String path = dis.readUTF();
+            long size = dis.readLong();
+            long mtime = dis.readLong();
+            if (size < 0) throw new IOException("Invalid size for " + path);
+            entries.add(new Entry(path, size, mtime, null));
+        }
+        return new TransferManifest(rootName, true, entries);
+    }
+
+    /**
+     * Resolves an entry below {@code targetDir}, refusing paths that would escape it
+     * (absolute paths, "..", drive letters).
+     */
+    public static File resolveSafely(File targetDir, String relativePath) throws IOException {
+        Path base = targetDir.toPath().toAbsolutePath().normalize();
+        Path resolved = base.resolve(relativePath.replace('/', File.separatorChar)).normalize();
+        if (relativePath.isEmpty() || !resolved.startsWith(base) || resolved.equals(base)) {
+            throw new IOException("Refusing unsafe path in manifest: " + relativePath);
+        }
+        return resolved.toFile();
+    }
+}
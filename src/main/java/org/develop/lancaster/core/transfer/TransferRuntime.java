@@ -0,0 +1,131 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.TaskExecutors;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * What every download of this process shares: the {@link DownloadQueue}, one pool for download
+ * jobs and their side work (metadata probes, digests, swarm), one bounded pool for range and batch
+ * workers, and the workers' receive buffers. A download only submits to these, so a thousand small
+ * downloads run on the same few threads and buffers instead of building and tearing down pools
+ * for each file.
+ *
+ * Started on first use by {@link #shared()}; the app stops it with {@link #shutdownShared()} on
+ * exit. Once stopped, the next {@link #shared()} starts a fresh runtime.
+ */
+public final class TransferRuntime {
+
+    // Receive buffer of one range worker
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    // Running downloads are interrupted on shutdown; their journals let them resume next time
+    private static final long SHUTDOWN_WAIT_MS = 2000;
+
+    private static final Logger logger = Logger.getLogger(TransferRuntime.class.getName());
+
+    private static volatile TransferRuntime shared;
+
+    private final ExecutorService control;
+    private final ExecutorService workers;
+    private final DownloadQueue queue;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int maxPooled;
+    private volatile boolean stopped;
+
+    public TransferRuntime(int workerThreads) {
+        this.control = TaskExecutors.newCachedExecutor("lancaster-download");
+        this.workers = TaskExecutors.newBlockingExecutor("lancaster-chunk", workerThreads);
+        this.queue = new DownloadQueue(control, Config.getMaxActiveTransfers(), Config.getMaxTransfersPerPeer(),
+                Config.getMaxConnections(), Config.getMaxConnectionsPerPeer());
+        // One buffer per worker that can run at a time is all that is ever in use
+        this.maxPooled = Math.max(1, workerThreads);
+    }
+
+    /** The runtime for this process, with the limits from the config. */
+    public static TransferRuntime shared() {
+        if (shared == null) {
+            synchronized (TransferRuntime.class) {
+                if (shared == null) {
+                    shared = new TransferRuntime(Config.getTransferWorkerThreads());
+                }
+            }
+        }
+        return shared;
+    }
+
+    /** Stops the shared runtime if it was started. */
+    public static void shutdownShared() {
+        TransferRuntime runtime;
+        synchronized (TransferRuntime.class) {
+            runtime = shared;
+            shared = null;
+        }
+        if (runtime != null) runtime.shutdown();
+    }
+
+    public DownloadQueue queue() {
+        return queue;
+    }
+
+    /** Download jobs and short side tasks; not bounded, the queue bounds the downloads. */
+    ExecutorService control() {
+        return control;
+    }
+
+    /** Range and batch workers of all downloads, at most {@code transfers.worker.threads} at a time. */
+    ExecutorService workers() {
+        return workers;
+    }
+
+    /** A cleared receive buffer of {@link #BUFFER_SIZE} bytes; hand it back with {@link #release}. */
+    ByteBuffer acquire() {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null) return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        pooled.decrementAndGet();
+        return buf.clear();
+    }
+
+    void release(ByteBuffer buf) {
+        if (buf == null || stopped) return;
+        // Past the cap the buffer is left to the GC
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buf);
+    }
+
+    /**
+     * Cancels the downloads still waiting, interrupts the running ones and stops the pools. Waits
+     * up to {@code timeoutMillis} for their threads to finish.
+     */
+    public void shutdown(long timeoutMillis) {
+        if (stopped) return;
+        stopped = true;
+        int cancelled = queue.cancelAll();
+        control.shutdownNow();
+        workers.shutdownNow();
+        buffers.clear();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            control.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (cancelled > 0) logger.info("[Runtime] Stopped, " + cancelled + " queued downloads cancelled");
+    }
+
+    public void shutdown() {
+        shutdown(SHUTDOWN_WAIT_MS);
+    }
+}
@@ -28,6 +28,12 @@ public final class Config {
         }
     }
 
+    // Folder for local state (config, hash index); -Dlancaster.data.dir moves it
+    public static Path getDataDir() {
+        String override = System.getProperty("lancaster.data.dir");
+        return override != null ? Paths.get(override) : CONFIG_DIR;
+    }
+
     public static String getDeviceName() {
         return props.getProperty("device.name", System.getProperty("user.name", "LAN-Caster"));
     }
@@ -60,6 +66,207 @@ public final class Config {
         persist();
     }
 
+    // "nio" (selector event loop) or "blocking" (one thread per connection). Blocking is the
+    // default only in virtual-thread mode, where a thread per connection is cheap.
+    public static String getServingEngine() {
+        return getString("sender.engine", useVirtualThreads() ? "blocking" : "nio");
+    }
+
+    // Range compression: "auto" (only when it beats the link), "on" (whenever data shrinks) or "off"
+    public static String getCompression() {
+        return getString("transfer.compression", "auto").toLowerCase();
+    }
+
+    // One-to-many mode: data is multicast once on this group, receivers NAK what they missed
+    public static boolean isMulticastEnabled() {
+        return getBoolean("multicast.enabled", true);
+    }
+
+    public static String getMulticastGroup() {
+        return getString("multicast.group", "239.255.76.67");
+    }
+
+    public static int getMulticastPort() {
+        return getInt("multicast.port", 8890);
+    }
+
+    // Starting send rate; lowered while receivers report losses
+    public static int getMulticastRateMbps() {
+        return getInt("multicast.rate.mbps", 800);
+    }
+
+    // How long a session waits for the remaining receivers after the first one joined
+    public static long getMulticastWaitMillis() {
+        return getLong("multicast.wait.ms", 5000L);
+    }
+
+    // Swarm mode: downloaders serve the parts they already have to each other. Off unless asked for:
+    // it shuffles range order and opens a serving port, which a single receiver pays for in vain
+    public static boolean isSwarmEnabled() {
+        return getBoolean("swarm.enabled", false);
+    }
+
+    // How long a finished downloader keeps serving the other peers
+    public static long getSwarmLingerMillis() {
+        return getLong("swarm.linger.ms", 60_000L);
+    }
+
+    // Bandwidth caps in Mbit/s, 0 = unlimited: all traffic together, per remote peer, per download
+    public static int getGlobalRateMbps() {
+        return getInt("shaping.global.mbps", 0);
+    }
+
+    // shaping.peer.<ip>.mbps overrides the default for one peer
+    public static int getPeerRateMbps(String ip) {
+        return getInt("shaping.peer." + ip + ".mbps", getInt("shaping.peer.mbps", 0));
+    }
+
+    public static int getTransferRateMbps() {
+        return getInt("shaping.transfer.mbps", 0);
+    }
+
+    // Parallel range connections per download: the first try for an unknown peer and the ceiling.
+    // With tuning on, the count is adjusted to the measured goodput and remembered per peer
+    public static int getInitialStreams() {
+        return Math.max(1, getInt("transfer.streams.initial", 4));
+    }
+
+    public static int getMaxStreams() {
+        return Math.max(1, getInt("transfer.streams.max", 32));
+    }
+
+    // Downloads that run at once, overall and from one peer; the rest wait in the download queue
+    public static int getMaxActiveTransfers() {
+        return Math.max(1, getInt("transfers.max.active", 3));
+    }
+
+    public static int getMaxTransfersPerPeer() {
+        return Math.max(1, getInt("transfers.max.per.peer", 2));
+    }
+
+    // Range connections shared evenly by the running downloads, overall and per peer
+    public static int getMaxConnections() {
+        return Math.max(1, getInt("transfers.max.connections", getMaxStreams()));
+    }
+
+    public static int getMaxConnectionsPerPeer() {
+        return Math.max(1, getInt("transfers.max.connections.per.peer", getMaxStreams()));
+    }
+
+    // Range and batch workers of all downloads together; room for every connection plus batches beside them
+    public static int getTransferWorkerThreads() {
+        return Math.max(1, getInt("transfers.worker.threads", 2 * getMaxConnections()));
+    }
+
+    public static boolean isStreamTuningEnabled() {
+        return getBoolean("transfer.streams.tune", true);
+    }
+
+    // How long each stream count is measured before the tuner decides on the next one
+    public static long getStreamTuningIntervalMillis() {
+        return getLong("transfer.streams.interval.ms", 1000L);
+    }
+
+    // How range workers put received bytes on disk: "buffered" (receive buffer, positional writes)
+    // or "mmap" (socket reads straight into mapped windows of the file); ReceiveBackendTest compares them
+    public static String getReceiveBackend() {
+        return getString("transfer.receive.backend", "buffered").toLowerCase();
+    }
+
+    public static int getMmapWindowMegabytes() {
+        return getInt("transfer.receive.mmap.window.mb", 64);
+    }
+
+    // "gc" leaves finished windows to the garbage collector, "eager" unmaps them right away
+    public static String getMmapUnmapPolicy() {
+        return getString("transfer.receive.mmap.unmap", "eager").toLowerCase();
+    }
+
+    // Socket buffers of bulk connections in KB; 0 leaves them to the OS
+    public static int getSendBufferKilobytes() {
+        return getInt("net.send.buffer.kb", 4096);
+    }
+
+    public static int getReceiveBufferKilobytes() {
+        return getInt("net.receive.buffer.kb", 2048);
+    }
+
+    // Largest single transferTo of the blocking sender; progress is reported between them
+    public static long getSendChunkBytes() {
+        return Math.max(1, getLong("transfer.send.chunk.mb", 64L)) * 1024L * 1024L;
+    }
+
+    // Largest single transferFrom while receiving a file of a batch
+    public static long getBatchReceiveChunkBytes() {
+        return Math.max(1, getLong("transfer.batch.recv.chunk.mb", 16L)) * 1024L * 1024L;
+    }
+
+    // Disk of the download folder: "auto" (from sysfs), "hdd" or "ssd"
+    public static String getStorageKind() {
+        return getString("storage.kind", "auto").toLowerCase();
+    }
+
+    // "sparse" only sets the file length, "full" writes zeros so every block is allocated up front
+    public static String getPreallocation() {
+        return getString("storage.preallocate", "sparse").toLowerCase();
+    }
+
+    // Received data a download may hold in memory to put it on a spinning disk in file order
+    public static int getReorderBufferMegabytes() {
+        return getInt("storage.hdd.reorder.mb", 64);
+    }
+
+    // Text dump of the transfer metrics over HTTP (GET /metrics); 0 = off. Loopback only unless bound wider
+    public static int getMetricsHttpPort() {
+        return getInt("metrics.http.port", 0);
+    }
+
+    public static String getMetricsHttpBind() {
+        return getString("metrics.http.bind", "127.0.0.1");
+    }
+
+    // How often the window redraws transfer progress, however often transfers report it
+    public static int getUiRefreshMillis() {
+        return getInt("ui.refresh.ms", 100);
+    }
+
+    // Time constant of the transfer rates shown; longer is steadier, shorter follows changes sooner
+    public static long getRateSmoothingMillis() {
+        return getLong("rate.smoothing.ms", 2000);
+    }
+
+    // Run blocking transfer/serving tasks on virtual threads (needs a Java 21 runtime)
+    public static boolean useVirtualThreads() {
+        return getBoolean("threads.virtual", false);
+    }
+
+    // Typed lookups; a -Dlancaster.<key> system property wins over the config file
+    static String getString(String key, String def) {
+        String override = System.getProperty("lancaster." + key);
+        if (override != null) return override.trim();
+        return props.getProperty(key, def).trim();
+    }
+
+    static int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    static long getLong(String key, long def) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    static boolean getBoolean(String key, boolean def) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(def)));
+    }
+
     private static void persist() {
         try (OutputStream out = Files.newOutputStream(CONFIG_FILE)) {
             props.store(out, "LAN-Caster configuration");
@@ -0,0 +1,67 @@
+package org.develop.lancaster.core.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram of durations, safe to record from any number of threads without locking
+ * or allocating. Values are kept in microseconds, four buckets per power of two, so a percentile
+ * is exact to within 25% from one microsecond up to hours. Buckets are striped counters, so
+ * threads recording at the same time do not contend on one cache line.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB + SUB;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        counts[index(Math.max(0, nanos / 1000))].increment();
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts[i].sum();
+        return n;
+    }
+
+    /** Upper bound, in nanoseconds, of the bucket holding quantile {@code q} (0..1); 0 when empty. */
+    public long percentile(double q) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i].sum();
+            if (seen >= rank) return upperBound(i) * 1000;
+        }
+        return upperBound(BUCKETS - 1) * 1000;
+    }
+
+    public void reset() {
+        for (LongAdder c : counts) c.reset();
+    }
+
+    // Values below SUB get a bucket each; above, the top SUB_BITS + 1 bits pick the bucket
+    static int index(long micros) {
+        if (micros < SUB) return (int) micros;
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (msb - SUB_BITS)) & (SUB - 1);
+        return (msb - SUB_BITS + 1) * SUB + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB) return index;
+        int msb = index / SUB + SUB_BITS - 1;
+        return (1L << msb) | ((long) (index % SUB) << (msb - SUB_BITS));
+    }
+
+    static long upperBound(int index) {
+        return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE / 1000;
+    }
+}
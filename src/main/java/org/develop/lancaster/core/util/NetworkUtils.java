@@ -3,6 +3,7 @@ package org.develop.lancaster.core.util;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.Socket;
 import java.net.SocketException;
 import java.util.Enumeration;
 
@@ -34,4 +35,16 @@ public class NetworkUtils {
 
         throw new SocketException("No suitable network interface found! Connect to Wi-Fi.");
     }
+
+    // Socket buffers of bulk connections from the config; 0 keeps the OS default and its autotuning.
+    // Receive buffers take effect on the TCP window only when set before connecting.
+    public static void tuneSendBuffer(Socket socket) throws SocketException {
+        int kb = Config.getSendBufferKilobytes();
+        if (kb > 0) socket.setSendBufferSize(kb * 1024);
+    }
+
+    public static void tuneReceiveBuffer(Socket socket) throws SocketException {
+        int kb = Config.getReceiveBufferKilobytes();
+        if (kb > 0) socket.setReceiveBufferSize(kb * 1024);
+    }
 }
\ No newline at end of file
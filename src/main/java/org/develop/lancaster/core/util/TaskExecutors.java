@@ -0,0 +1,122 @@
+package org.develop.lancaster.core.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads and executors used by the blocking transfer and serving paths.
+ *
+ * With {@code threads.virtual=true} (and a Java 21+ runtime) every task gets its own virtual thread,
+ * so thousands of blocking chunk connections cost almost nothing. Otherwise named platform threads
+ * are used as before. The Java 21 APIs are looked up reflectively so the Java 17 build keeps working.
+ */
+public final class TaskExecutors {
+
+    private static final Logger logger = Logger.getLogger(TaskExecutors.class.getName());
+
+    // Thread.ofVirtual().factory() and Executors.newThreadPerTaskExecutor, or null before Java 21
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+    private static final MethodHandle PER_TASK_EXECUTOR = lookupPerTaskExecutor();
+
+    private TaskExecutors() {}
+
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle create = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtual));
+            MethodHandle factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+            return (ThreadFactory) factory.invoke(create.invoke());
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle lookupPerTaskExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return VIRTUAL_FACTORY != null && PER_TASK_EXECUTOR != null;
+    }
+
+    private static ExecutorService virtualPerTask(String name) {
+        try {
+            return (ExecutorService) PER_TASK_EXECUTOR.invoke(named(VIRTUAL_FACTORY, name));
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot create virtual thread executor", e);
+        }
+    }
+
+    /** True if the config asks for virtual threads and this JVM has them. */
+    public static boolean useVirtualThreads() {
+        boolean wanted = Config.useVirtualThreads();
+        if (wanted && !virtualThreadsAvailable()) {
+            logger.log(Level.FINE, "Virtual threads requested but not supported by this JVM; using platform threads");
+        }
+        return wanted && virtualThreadsAvailable();
+    }
+
+    /** Unbounded executor for short-lived or mostly idle tasks (cached pool / thread per task). */
+    public static ExecutorService newCachedExecutor(String name) {
+        if (useVirtualThreads()) return virtualPerTask(name);
+        return Executors.newCachedThreadPool(platformFactory(name, false));
+    }
+
+    /**
+     * Executor for blocking I/O tasks. Platform mode bounds it to {@code platformThreads};
+     * virtual mode starts one virtual thread per task, since blocking is cheap there.
+     */
+    public static ExecutorService newBlockingExecutor(String name, int platformThreads) {
+        if (useVirtualThreads()) return virtualPerTask(name);
+        int threads = Math.max(1, platformThreads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), platformFactory(name, false));
+        // Idle workers exit, so a pool nobody shuts down does not keep the JVM alive
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** Starts a thread for a long-running loop. Virtual threads are always daemon threads. */
+    public static Thread start(String name, boolean daemon, Runnable task) {
+        ThreadFactory factory = useVirtualThreads() ? VIRTUAL_FACTORY : platformFactory(name, daemon);
+        Thread t = factory.newThread(task);
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    private static ThreadFactory named(ThreadFactory base, String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = base.newThread(r);
+            t.setName(prefix + "-" + counter.incrementAndGet());
+            return t;
+        };
+    }
+
+    private static ThreadFactory platformFactory(String prefix, boolean daemon) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+}
@@ -19,18 +19,23 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle; // Added for Undecorated style
 import org.develop.lancaster.core.discovery.DiscoveryService;
 import org.develop.lancaster.core.discovery.PeerInfo;
+import org.develop.lancaster.core.metrics.MetricsEndpoint;
 import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.transfer.ProgressBus;
 import org.develop.lancaster.core.transfer.TransferManager;
+import org.develop.lancaster.core.transfer.TransferRuntime;
+import org.develop.lancaster.core.transfer.DownloadQueue;
 import org.develop.lancaster.core.util.Config;
+import org.develop.lancaster.core.util.TaskExecutors;
 
 import java.io.File;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,16 +47,20 @@ public class MainWindow extends Application {
     private DiscoveryService discoveryService;
     private VBox progressPanel;
     private Sender currentSender;
-    private final Map<String, TransferUIComponents> activeTransfers = new ConcurrentHashMap<>();
-    private final Map<String, AtomicLong> activeProgress = new ConcurrentHashMap<>();
+    // Downloads share the process's transfer runtime, stopped in stop()
+    private final TransferManager transferManager = new TransferManager();
+
+    // Transfer threads report into the bus; it redraws the cards and stats at a fixed rate
+    private final ProgressBus<CardInfo> progressBus = new ProgressBus<>(Config.getUiRefreshMillis(), Platform::runLater, this::render);
+    // Sending: one card per peer and file, whichever connection the bytes come from
+    private final Map<String, ProgressBus.Channel<CardInfo>> sendChannels = new ConcurrentHashMap<>();
+    // FX thread only
+    private final Map<ProgressBus.Channel<CardInfo>, TransferUIComponents> cards = new HashMap<>();
 
     // Stats tracking
     private Label activeTransfersLabel;
     private Label speedLabel;
     private Label filesCompletedLabel;
-    private AtomicLong totalFilesCompleted = new AtomicLong(0);
-    private AtomicLong totalBytesTransferred = new AtomicLong(0);
-    private long statsStartTime = System.currentTimeMillis();
 
     // Window Dragging Offsets
     private double xOffset = 0;
@@ -113,6 +122,9 @@ public class MainWindow extends Application {
 
     @Override
     public void start(Stage primaryStage) {
+        MetricsEndpoint.startIfConfigured();
+        progressBus.start();
+
         // 1. REMOVE DEFAULT OS TITLE BAR
         primaryStage.initStyle(StageStyle.UNDECORATED);
 
@@ -395,22 +407,29 @@ public class MainWindow extends Application {
         sendBtn.setMaxWidth(Double.MAX_VALUE);
         HBox.setHgrow(sendBtn, Priority.ALWAYS);
 
+        Button sendFolderBtn = new Button("📁 Send Folder");
+        sendFolderBtn.setStyle(BUTTON_PRIMARY_STYLE);
+        sendFolderBtn.setPrefHeight(48);
+        sendFolderBtn.setMaxWidth(Double.MAX_VALUE);
+        HBox.setHgrow(sendFolderBtn, Priority.ALWAYS);
+
         Button downloadBtn = new Button("📥 Download File");
         downloadBtn.setStyle(BUTTON_SUCCESS_STYLE);
         downloadBtn.setPrefHeight(48);
         downloadBtn.setMaxWidth(Double.MAX_VALUE);
         HBox.setHgrow(downloadBtn, Priority.ALWAYS);
 
-        sendBtn.setOnAction(e -> handleSendFile(stage));
+        sendBtn.setOnAction(e -> handleSendFile(stage, false));
+        sendFolderBtn.setOnAction(e -> handleSendFile(stage, true));
         downloadBtn.setOnAction(e -> handleDownloadFile(stage));
 
-        actionButtonsBox.getChildren().addAll(sendBtn, downloadBtn);
+        actionButtonsBox.getChildren().addAll(sendBtn, sendFolderBtn, downloadBtn);
 
         container.getChildren().addAll(header, statsBox, scrollPane, actionButtonsBox);
         return container;
     }
 
-    private void handleSendFile(Stage stage) {
+    private void handleSendFile(Stage stage, boolean folder) {
         ListView<PeerInfo> listView = getListView(stage);
         if (listView == null) return;
         List<PeerInfo> selectedPeers = listView.getSelectionModel().getSelectedItems();
@@ -420,60 +439,36 @@ public class MainWindow extends Application {
             return;
         }
 
-        FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Select File to Send");
-        File file = fileChooser.showOpenDialog(stage);
+        File file;
+        if (folder) {
+            DirectoryChooser dirChooser = new DirectoryChooser();
+            dirChooser.setTitle("Select Folder to Send");
+            file = dirChooser.showDialog(stage);
+        } else {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Select File to Send");
+            file = fileChooser.showOpenDialog(stage);
+        }
 
         if (file != null) {
             if (currentSender != null) currentSender.stop();
 
+            // The listener factory only runs once serving has started, so the sender is set by then
+            Sender[] senderRef = new Sender[1];
             currentSender = new Sender((Socket socket) -> {
+                long totalFileBytes = senderRef[0].getTotalBytes();
                 String peerIp = socket.getInetAddress().getHostAddress();
                 String key = peerIp + "|" + file.getName();
 
-                TransferUIComponents ui = activeTransfers.computeIfAbsent(key, k -> {
-                    FutureTask<TransferUIComponents> uiTask = new FutureTask<>(() ->
-                            addTransferCard(file.getName(), peerIp, "Sending", file.length())
-                    );
-                    Platform.runLater(uiTask);
-                    try {
-                        TransferUIComponents result = uiTask.get();
-                        activeProgress.putIfAbsent(key, new AtomicLong(0));
-                        updateStatsUI();
-                        return result;
-                    } catch (Exception ex) {
-                        logger.log(Level.WARNING, "Failed to create UI card", ex);
-                        return null;
-                    }
-                });
-
-                long totalFileBytes = file.length();
-                AtomicLong globalCounter = activeProgress.computeIfAbsent(key, k -> new AtomicLong(0));
-
-                return new org.develop.lancaster.core.transfer.ProgressListener() {
-                    private final AtomicLong lastSeen = new AtomicLong(0);
-
-                    @Override
-                    public void onProgress(long current, long chunkTotal) {
-                        long prev = lastSeen.getAndSet(current);
-                        long delta = current - prev;
-                        if (delta <= 0) return;
-                        long aggregated = globalCounter.addAndGet(delta);
-                        totalBytesTransferred.addAndGet(delta);
-
-                        updateProgress(ui, aggregated, totalFileBytes);
-
-                        if (aggregated >= totalFileBytes) {
-                            activeTransfers.remove(key);
-                            activeProgress.remove(key);
-                            totalFilesCompleted.incrementAndGet();
-                            updateStatsUI();
-                        }
-                    }
-                };
+                ProgressBus.Channel<CardInfo> channel = sendChannels.computeIfAbsent(key, k ->
+                        progressBus.open(new CardInfo(file.getName(), peerIp, "Sending"), totalFileBytes).completeAtTotal());
+                return channel.source();
             });
 
-            new Thread(() -> currentSender.startServing(file)).start();
+            senderRef[0] = currentSender;
+            // Several receivers of one file: send it once on the multicast group
+            if (!folder && selectedPeers.size() > 1) currentSender.enableMulticast(selectedPeers.size());
+            TaskExecutors.start("lancaster-sender", false, () -> senderRef[0].startServing(file));
             showNotification("Hosting '" + file.getName() + "' for " + selectedPeers.size() + " peer(s)");
         }
     }
@@ -494,18 +489,17 @@ public class MainWindow extends Application {
 
         if (saveDir != null) {
             String display = selectedPeer.toString();
-            TransferUIComponents ui = addTransferCard("Requesting File...", display, "Downloading", 100);
-            updateStatsUI();
-
-            TransferManager tm = new TransferManager();
-            tm.downloadFile(selectedPeer.getIp(), saveDir.getAbsolutePath(), (current, total) -> {
-                totalBytesTransferred.addAndGet(current);
-                updateProgress(ui, current, total);
-                if (current >= total) {
-                    totalFilesCompleted.incrementAndGet();
-                    updateStatsUI();
-                }
-            });
+            ProgressBus.Channel<CardInfo> channel = progressBus.open(new CardInfo("Requesting File...", display, "Downloading"), 0);
+
+            // Any other peer hosting the same file becomes an extra source
+            List<String> otherPeers = new ArrayList<>();
+            for (PeerInfo pi : peerList) {
+                if (!pi.getIp().equals(selectedPeer.getIp())) otherPeers.add(pi.getIp());
+            }
+
+            // Waits in the download queue while other downloads hold the slots
+            channel.info().ticket = transferManager.enqueue(selectedPeer.getIp(), otherPeers, saveDir.getAbsolutePath(),
+                    DownloadQueue.PRIORITY_NORMAL, channel);
         }
     }
 
@@ -541,39 +535,109 @@ public class MainWindow extends Application {
         return card;
     }
 
-    private void updateStatsUI() {
-        Platform.runLater(() -> {
-            int activeCount = activeTransfers.size();
-            activeTransfersLabel.setText(String.valueOf(activeCount));
+    // Runs on the FX thread, once per bus tick at most
+    private void render(ProgressBus.Snapshot<CardInfo> snapshot) {
+        for (ProgressBus.Progress<CardInfo> p : snapshot.transfers()) {
+            TransferUIComponents ui = cards.computeIfAbsent(p.channel(), c -> {
+                TransferUIComponents created = addTransferCard(p.info().name, p.info().peer, p.info().type, p.total());
+                if (p.info().ticket != null) addQueueMenu(created, p.info().ticket);
+                return created;
+            });
+            updateProgress(ui, p);
+            if (p.state() != ProgressBus.State.RUNNING) {
+                cards.remove(p.channel());
+                sendChannels.values().remove(p.channel());
+            }
+        }
 
-            long elapsedSeconds = Math.max(1, (System.currentTimeMillis() - statsStartTime) / 1000);
-            double mbps = (totalBytesTransferred.get() / (1024.0 * 1024.0)) / elapsedSeconds;
-            speedLabel.setText(String.format("%.2f MB/s", mbps));
+        activeTransfersLabel.setText(String.valueOf(snapshot.active()));
 
-            filesCompletedLabel.setText(String.valueOf(totalFilesCompleted.get()));
-        });
-    }
+        // Current rate over all transfers, not bytes over uptime
+        speedLabel.setText(String.format("%.2f MB/s", snapshot.rate() / (1024.0 * 1024.0)));
+        speedLabel.setTooltip(new Tooltip(String.format("Peak %.2f MB/s", snapshot.peak() / (1024.0 * 1024.0))));
 
-    private void updateProgress(TransferUIComponents ui, long current, long total) {
-        if (ui == null) return;
+        filesCompletedLabel.setText(String.valueOf(snapshot.completed()));
+    }
 
-        double progress = total > 0 ? (double) current / total : 0;
+    private void updateProgress(TransferUIComponents ui, ProgressBus.Progress<CardInfo> p) {
+        double progress = p.total() > 0 ? Math.min(1.0, (double) p.bytes() / p.total()) : 0;
+        ui.progressBar.setProgress(progress);
+        int percent = (int) (progress * 100);
+        ui.percentLabel.setText(percent + "%");
+
+        if (p.state() == ProgressBus.State.DONE) {
+            ui.progressBar.setProgress(1.0);
+            ui.percentLabel.setText("100%");
+            ui.statusLabel.setText("✓ Completed");
+            ui.statusLabel.setTextFill(Color.web(SUCCESS_COLOR));
+            ui.progressBar.setStyle("-fx-accent: " + SUCCESS_COLOR + ";");
+            ui.card.setStyle(CARD_STYLE + " -fx-border-color: " + SUCCESS_COLOR + ";");
+        } else if (p.state() == ProgressBus.State.FAILED) {
+            DownloadQueue.Ticket ticket = p.info().ticket;
+            ui.statusLabel.setText(ticket != null && ticket.state() == DownloadQueue.State.CANCELLED ? "✗ Cancelled" : "✗ Failed");
+            ui.statusLabel.setTextFill(Color.web(WARNING_COLOR));
+            ui.progressBar.setStyle("-fx-accent: " + WARNING_COLOR + ";");
+            ui.card.setStyle(CARD_STYLE + " -fx-border-color: " + WARNING_COLOR + ";");
+        } else if (p.info().ticket != null && p.info().ticket.state() == DownloadQueue.State.QUEUED) {
+            showQueued(ui, p.info().ticket);
+        } else {
+            ui.statusLabel.setText("↻ " + ui.transferType + "..." + rateText(p));
+            ui.statusLabel.setTextFill(Color.web(SECONDARY_COLOR));
+        }
+    }
 
-        Platform.runLater(() -> {
-            ui.progressBar.setProgress(progress);
-            int percent = (int) (progress * 100);
-            ui.percentLabel.setText(percent + "%");
+    private void showQueued(TransferUIComponents ui, DownloadQueue.Ticket ticket) {
+        ui.statusLabel.setText("⏸ Queued (#" + ticket.position() + ")");
+        ui.statusLabel.setTextFill(Color.web(WARNING_COLOR));
+    }
 
-            if (progress >= 0.99) {
-                ui.statusLabel.setText("✓ Completed");
-                ui.statusLabel.setTextFill(Color.web(SUCCESS_COLOR));
-                ui.progressBar.setStyle("-fx-accent: " + SUCCESS_COLOR + ";");
-                ui.card.setStyle(CARD_STYLE + " -fx-border-color: " + SUCCESS_COLOR + ";");
-            } else {
-                ui.statusLabel.setText("↻ " + ui.transferType + "...");
-                ui.statusLabel.setTextFill(Color.web(SECONDARY_COLOR));
-            }
+    // Right click on a waiting download: run it next, later, or not at all
+    private void addQueueMenu(TransferUIComponents ui, DownloadQueue.Ticket ticket) {
+        MenuItem next = new MenuItem("Download next");
+        next.setOnAction(e -> {
+            ticket.moveToFront();
+            if (ticket.state() == DownloadQueue.State.QUEUED) showQueued(ui, ticket);
         });
+        MenuItem later = new MenuItem("Download later");
+        later.setOnAction(e -> {
+            ticket.setPriority(DownloadQueue.PRIORITY_LOW);
+            if (ticket.state() == DownloadQueue.State.QUEUED) showQueued(ui, ticket);
+        });
+        MenuItem cancel = new MenuItem("Cancel");
+        cancel.setOnAction(e -> ticket.cancel());
+        ContextMenu menu = new ContextMenu(next, later, cancel);
+        menu.setOnShowing(e -> {
+            boolean queued = ticket.state() == DownloadQueue.State.QUEUED;
+            next.setDisable(!queued);
+            later.setDisable(!queued);
+            cancel.setDisable(!queued);
+        });
+        ui.card.setOnContextMenuRequested(e -> menu.show(ui.card, e.getScreenX(), e.getScreenY()));
+    }
+
+    // " 85.2 MB/s, 0:42 left" once the transfer is moving
+    private static String rateText(ProgressBus.Progress<CardInfo> p) {
+        if (p.rate() <= 0) return "";
+        String text = String.format(" %.1f MB/s", p.rate() / (1024.0 * 1024.0));
+        long eta = p.etaSeconds();
+        if (eta < 0) return text;
+        return text + (eta >= 3600
+                ? String.format(", %d:%02d:%02d left", eta / 3600, eta / 60 % 60, eta % 60)
+                : String.format(", %d:%02d left", eta / 60, eta % 60));
+    }
+
+    // What a card shows besides progress; downloads also have their place in the download queue
+    private static final class CardInfo {
+        final String name;
+        final String peer;
+        final String type;
+        volatile DownloadQueue.Ticket ticket;
+
+        CardInfo(String name, String peer, String type) {
+            this.name = name;
+            this.peer = peer;
+            this.type = type;
+        }
     }
 
     private static class TransferUIComponents {
@@ -675,10 +739,8 @@ public class MainWindow extends Application {
                 }
             });
         });
-        Thread t = new Thread(discoveryService);
-        t.setDaemon(true);
-        t.start();
-        Thread b = new Thread(() -> {
+        TaskExecutors.start("lancaster-discovery", true, discoveryService);
+        TaskExecutors.start("lancaster-presence", true, () -> {
             while (true) {
                 discoveryService.broadcastPresence();
                 try {
@@ -688,8 +750,6 @@ public class MainWindow extends Application {
                 }
             }
         });
-        b.setDaemon(true);
-        b.start();
     }
 
     private void showAlert(String title, String content) {
@@ -719,6 +779,10 @@ public class MainWindow extends Application {
     @Override
     public void stop() {
         if (currentSender != null) currentSender.stop();
+        progressBus.stop();
+        // Cancels queued downloads and stops the shared pools; running ones resume from their journals
+        TransferRuntime.shutdownShared();
+        MetricsEndpoint.stop();
         System.exit(0);
     }
 
@@ -0,0 +1,119 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.transfer.ChunkRange;
+import org.develop.lancaster.core.transfer.PeerConnection;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Loopback load test for the serving side: many persistent connections keep requesting random
+ * ranges from one in-process {@link Sender}. Throughput has to hold as the connection count grows
+ * past what a thread per connection could serve, and no connection may be starved.
+ */
+class SenderLoadTest {
+
+    private static final long FILE_SIZE = 256L * 1024 * 1024; // sparse
+    private static final long RANGE_SIZE = 1024 * 1024;
+    private static final long SECONDS = 2;
+
+    @TempDir
+    static Path dir;
+
+    private static File file;
+    private static Sender sender;
+    private static int port;
+
+    @BeforeAll
+    static void startSender() throws Exception {
+        file = dir.resolve("load.bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(FILE_SIZE);
+        }
+        sender = new Sender(null, 0);
+        Thread serving = new Thread(() -> sender.startServing(file), "loadtest-sender");
+        serving.setDaemon(true);
+        serving.start();
+        port = sender.awaitPort(5000);
+        assertTrue(port > 0, "sender did not start");
+    }
+
+    @AfterAll
+    static void stopSender() {
+        if (sender != null) sender.stop();
+    }
+
+    @Test
+    void throughputHoldsAt256Connections() throws Exception {
+        // Warms up the serving path, then gives the baseline
+        load(8);
+        long[] few = load(8);
+        long[] many = load(256);
+
+        double fewRate = sum(few) / (double) SECONDS;
+        double manyRate = sum(many) / (double) SECONDS;
+        assertTrue(manyRate >= 0.5 * fewRate,
+                String.format("%.1f MB/s with 256 connections, %.1f MB/s with 8", manyRate / 1e6, fewRate / 1e6));
+        for (int i = 0; i < many.length; i++) {
+            assertTrue(many[i] > 0, "connection " + i + " got no data");
+        }
+    }
+
+    // Bytes each of the connections received in SECONDS
+    private static long[] load(int connections) throws InterruptedException {
+        AtomicLongArray perConnection = new AtomicLongArray(connections);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        long deadline = System.nanoTime() + SECONDS * 1_000_000_000L;
+        Thread[] clients = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            int idx = i;
+            clients[i] = new Thread(() -> {
+                ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+                try (PeerConnection conn = PeerConnection.connect("127.0.0.1", port)) {
+                    if (conn == null) throw new IOException("Sender did not accept the binary protocol");
+                    while (System.nanoTime() < deadline) {
+                        long start = ThreadLocalRandom.current().nextLong(FILE_SIZE - RANGE_SIZE);
+                        conn.requestRange(new ChunkRange(start, start + RANGE_SIZE));
+                        long left = conn.awaitReply();
+                        while (left > 0) {
+                            sink.clear();
+                            if (left < sink.capacity()) sink.limit((int) left);
+                            int n = conn.channel().read(sink);
+                            if (n < 0) throw new IOException("Connection closed");
+                            left -= n;
+                            perConnection.addAndGet(idx, n);
+                        }
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "loadtest-client-" + i);
+            clients[i].start();
+        }
+        for (Thread t : clients) t.join();
+        assertNull(failure.get(), () -> "a connection failed: " + failure.get());
+
+        long[] bytes = new long[connections];
+        for (int i = 0; i < connections; i++) bytes[i] = perConnection.get(i);
+        return bytes;
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long v : values) total += v;
+        return total;
+    }
+}
@@ -0,0 +1,128 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.transfer.ChunkRange;
+import org.develop.lancaster.core.transfer.PeerConnection;
+import org.develop.lancaster.core.util.TaskExecutors;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Platform against virtual threads on the blocking paths: a thread-per-connection {@link Sender} on a
+ * free port takes many short range fetches, each on its own connection, from an executor of the same
+ * mode. Every fetch has to arrive whole; each mode prints its rate, peak platform threads and heap.
+ * Tagged "large" (mvn -Plarge); the virtual run needs a Java 21 runtime.
+ */
+class ThreadModeTest {
+
+    private static final long FILE_SIZE = 256L * 1024 * 1024; // sparse
+    private static final long RANGE_SIZE = 64 * 1024;
+    private static final int FETCHES = 5000;
+    private static final int CONCURRENCY = 1000;
+    private static final int PLATFORM_CLIENT_THREADS = 64;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @Tag("large")
+    void platformThreadsServeEveryFetch() throws Exception {
+        run(false);
+    }
+
+    @Test
+    @Tag("large")
+    void virtualThreadsServeEveryFetch() throws Exception {
+        assumeTrue(TaskExecutors.virtualThreadsAvailable(), "virtual threads need Java 21+");
+        run(true);
+    }
+
+    private void run(boolean virtual) throws Exception {
+        File file = dir.resolve("threadmode.bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(FILE_SIZE);
+        }
+        System.setProperty("lancaster.threads.virtual", String.valueOf(virtual));
+        System.setProperty("lancaster.sender.engine", "blocking");
+        Sender sender = new Sender(null, 0);
+        ExecutorService clients = null;
+        try {
+            TaskExecutors.start("threadmode-sender", true, () -> sender.startServing(file));
+            int port = sender.awaitPort(5000);
+            assertTrue(port > 0, "sender did not start");
+
+            AtomicLong bytes = new AtomicLong();
+            AtomicLong failures = new AtomicLong();
+            int peakThreads = Thread.activeCount();
+            long peakHeap = usedHeap();
+            clients = TaskExecutors.newBlockingExecutor("threadmode-client", PLATFORM_CLIENT_THREADS);
+            long started = System.nanoTime();
+            int submitted = 0;
+            List<Future<?>> inFlight = new ArrayList<>();
+            while (submitted < FETCHES || !inFlight.isEmpty()) {
+                // Keep at most CONCURRENCY fetches outstanding
+                while (submitted < FETCHES && inFlight.size() < CONCURRENCY) {
+                    inFlight.add(clients.submit(() -> fetchOnce(port, bytes, failures)));
+                    submitted++;
+                }
+                inFlight.removeIf(Future::isDone);
+                peakThreads = Math.max(peakThreads, Thread.activeCount());
+                peakHeap = Math.max(peakHeap, usedHeap());
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            System.out.printf("%s threads: %d fetches in %.2f s (%.0f fetches/s, %.1f MB/s), peak platform threads %d, peak heap %.1f MB%n",
+                    virtual ? "virtual" : "platform", FETCHES, seconds, FETCHES / seconds,
+                    bytes.get() / (1024.0 * 1024.0) / seconds, peakThreads, peakHeap / (1024.0 * 1024.0));
+            assertEquals(0, failures.get(), "failed fetches");
+            assertEquals(FETCHES * RANGE_SIZE, bytes.get(), "bytes received");
+        } finally {
+            if (clients != null) clients.shutdownNow();
+            sender.stop();
+            System.clearProperty("lancaster.threads.virtual");
+            System.clearProperty("lancaster.sender.engine");
+        }
+    }
+
+    private static void fetchOnce(int port, AtomicLong bytes, AtomicLong failures) {
+        ByteBuffer sink = ByteBuffer.allocate(16 * 1024);
+        try (PeerConnection conn = PeerConnection.connect("127.0.0.1", port)) {
+            if (conn == null) throw new IOException("Sender did not accept the binary protocol");
+            long start = ThreadLocalRandom.current().nextLong(FILE_SIZE - RANGE_SIZE);
+            conn.requestRange(new ChunkRange(start, start + RANGE_SIZE));
+            long left = conn.awaitReply();
+            while (left > 0) {
+                sink.clear();
+                if (left < sink.capacity()) sink.limit((int) left);
+                int n = conn.channel().read(sink);
+                if (n < 0) throw new IOException("Connection closed");
+                left -= n;
+                bytes.addAndGet(n);
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
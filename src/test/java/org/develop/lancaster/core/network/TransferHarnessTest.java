@@ -0,0 +1,253 @@
+package org.develop.lancaster.core.network;
+
+import org.develop.lancaster.core.metrics.Metrics;
+import org.develop.lancaster.core.transfer.ProgressListener;
+import org.develop.lancaster.core.transfer.TransferManager;
+import org.develop.lancaster.core.util.TaskExecutors;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * End-to-end check of the whole download path without a network or a second machine: in-process
+ * {@link Sender}s on free ports, {@link TransferManager}s pointed at them, synthetic source files.
+ * Every download has to arrive byte for byte; each one also prints its rate, range latency
+ * percentiles (taken range to committed range) and process CPU time per GB.
+ *
+ * Files above 64 MB are sparse with random blocks spread through them. The 1 GB and 20 GB downloads
+ * are tagged "large", the soak run "soak"; neither runs in a plain build (mvn -Plarge / -Psoak).
+ */
+class TransferHarnessTest {
+
+    private static final long MB = 1024L * 1024L;
+    private static final long GB = 1024 * MB;
+    // Sparse files carry a random block every this many bytes
+    private static final long SPARSE_STRIDE = 64 * MB;
+    private static final int WARMUP_ROUNDS = 2;
+    // Growth over the warm baseline that counts as a leak
+    private static final int THREAD_SLACK = 8;
+    private static final int FD_SLACK = 16;
+    private static final long DIRECT_SLACK = 64 * MB;
+
+    @TempDir
+    Path dir;
+
+    private record Source(File file, Sender sender, TransferManager manager) {}
+
+    private record Sample(int threads, long fds, long direct, long heap) {
+        @Override
+        public String toString() {
+            return String.format("threads %d, fds %s, direct %d MB, heap %d MB",
+                    threads, fds < 0 ? "n/a" : String.valueOf(fds), direct / MB, heap / MB);
+        }
+    }
+
+    @Test
+    void smallDownloadsArriveByteExact() throws Exception {
+        measure(1024, MB, 64 * MB);
+    }
+
+    @Test
+    @Tag("large")
+    void oneGigabyteArrivesByteExact() throws Exception {
+        measure(GB);
+    }
+
+    @Test
+    @Tag("large")
+    void twentyGigabytesArriveByteExact() throws Exception {
+        measure(20 * GB);
+    }
+
+    /** Repeats downloads for soak.minutes; threads, descriptors and buffer memory must level off. */
+    @Test
+    @Tag("soak")
+    void resourcesStayFlatUnderRepeatedDownloads() throws Exception {
+        long minutes = Long.getLong("soak.minutes", 30);
+        withSources(new long[]{1024, MB, 64 * MB}, sources -> {
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.MINUTES.toNanos(minutes);
+            // Pools grow to their size over the first rounds; the baseline waits for a quarter of the run
+            long warm = started + TimeUnit.MINUTES.toNanos(minutes) / 4;
+            Sample baseline = null;
+            Sample last = null;
+            int round = 0;
+            long bytes = 0;
+            while (System.nanoTime() < deadline) {
+                round++;
+                for (Source s : sources) {
+                    assertTrue(download(s) >= 0, "round " + round + ": download of " + s.file().getName() + " failed");
+                    assertArrivedIntact(s);
+                    bytes += s.file().length();
+                    deleteTree(dir.resolve("out"));
+                }
+                last = sample();
+                if (baseline == null && round >= WARMUP_ROUNDS && System.nanoTime() >= warm) baseline = last;
+                System.out.printf("Round %d (%.0f MB/s overall): %s%n", round,
+                        bytes / ((System.nanoTime() - started) / 1e9) / MB, last);
+            }
+            assertNotNull(baseline, "too few rounds to judge leaks; run longer");
+
+            assertTrue(last.threads() <= baseline.threads() + THREAD_SLACK,
+                    "threads " + baseline.threads() + " -> " + last.threads());
+            assertTrue(baseline.fds() < 0 || last.fds() <= baseline.fds() + FD_SLACK,
+                    "file descriptors " + baseline.fds() + " -> " + last.fds());
+            assertTrue(last.direct() <= baseline.direct() + DIRECT_SLACK,
+                    "direct memory " + baseline.direct() / MB + " MB -> " + last.direct() / MB + " MB");
+        });
+    }
+
+    private interface SourcesTest {
+        void run(List<Source> sources) throws Exception;
+    }
+
+    private void withSources(long[] sizes, SourcesTest test) throws Exception {
+        List<Source> sources = new ArrayList<>();
+        try {
+            for (long size : sizes) sources.add(serve(size));
+            test.run(sources);
+        } finally {
+            for (Source s : sources) s.sender().stop();
+        }
+    }
+
+    // Downloads each size once: asserts it arrived intact and prints the figures
+    private void measure(long... sizes) throws Exception {
+        withSources(sizes, sources -> {
+            System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n",
+                    "size", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "cpu s/GB");
+            Metrics metrics = Metrics.shared();
+            for (Source s : sources) {
+                long size = s.file().length();
+                metrics.resetRangeLatency();
+                Duration cpuBefore = cpuTime();
+                double seconds = download(s);
+                double cpu = cpuTime().minus(cpuBefore).toNanos() / 1e9;
+                assertTrue(seconds >= 0, "download of " + s.file().getName() + " failed");
+                assertArrivedIntact(s);
+                System.out.printf("%-10s %10.1f %10.1f %10.1f %10.1f %10.1f %10.2f%n", formatSize(size),
+                        size / Math.max(1e-9, seconds) / MB, metrics.rangeLatency(0.5) / 1e6, metrics.rangeLatency(0.9) / 1e6,
+                        metrics.rangeLatency(0.99) / 1e6, metrics.rangeLatency(1.0) / 1e6,
+                        cpu / Math.max(1e-9, size / (double) GB));
+                deleteTree(dir.resolve("out"));
+            }
+        });
+    }
+
+    // Downloads the source into a fresh folder; seconds until it is complete and verified, or -1
+    private double download(Source source) throws Exception {
+        Path target = Files.createDirectories(dir.resolve("out"));
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean succeeded = new AtomicBoolean();
+        long started = System.nanoTime();
+        source.manager().downloadFile("127.0.0.1", target.toString(), new ProgressListener() {
+            @Override
+            public void onProgress(long currentBytes, long totalBytes) {}
+
+            @Override
+            public void onFinished(boolean success) {
+                succeeded.set(success);
+                done.countDown();
+            }
+        });
+        long timeoutSeconds = 60 + source.file().length() / (10 * MB);
+        if (!done.await(timeoutSeconds, TimeUnit.SECONDS) || !succeeded.get()) return -1;
+        return (System.nanoTime() - started) / 1e9;
+    }
+
+    private void assertArrivedIntact(Source source) throws IOException {
+        Path received = dir.resolve("out").resolve(source.file().getName());
+        assertEquals(-1, Files.mismatch(source.file().toPath(), received),
+                source.file().getName() + " differs from its source");
+    }
+
+    private Source serve(long size) throws Exception {
+        File file = dir.resolve("source-" + formatSize(size) + ".bin").toFile();
+        writeSynthetic(file, size);
+        Sender sender = new Sender(null, 0);
+        TaskExecutors.start("harness-sender", true, () -> sender.startServing(file));
+        int port = sender.awaitPort(10_000);
+        assertTrue(port > 0, "sender for " + file.getName() + " did not start");
+        return new Source(file, sender, new TransferManager(port));
+    }
+
+    private static void writeSynthetic(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[(int) MB];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (size <= SPARSE_STRIDE) {
+                for (long pos = 0; pos < size; pos += block.length) {
+                    random.nextBytes(block);
+                    raf.write(block, 0, (int) Math.min(block.length, size - pos));
+                }
+                return;
+            }
+            raf.setLength(size);
+            for (long pos = 0; pos < size; pos += SPARSE_STRIDE) {
+                random.nextBytes(block);
+                raf.seek(pos);
+                raf.write(block, 0, (int) Math.min(block.length, size - pos));
+            }
+            // The tail too, so a short last range shows up
+            random.nextBytes(block);
+            int tail = (int) Math.min(block.length, size);
+            raf.seek(size - tail);
+            raf.write(block, 0, tail);
+        }
+    }
+
+    private static Sample sample() throws InterruptedException {
+        System.gc();
+        Thread.sleep(500);
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            direct += pool.getMemoryUsed(); // "direct" and "mapped"
+        }
+        Runtime rt = Runtime.getRuntime();
+        return new Sample(Thread.activeCount(), openFileDescriptors(), direct, rt.totalMemory() - rt.freeMemory());
+    }
+
+    private static long openFileDescriptors() {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        return fds != null ? fds.length : -1;
+    }
+
+    private static Duration cpuTime() {
+        return ProcessHandle.current().info().totalCpuDuration().orElse(Duration.ZERO);
+    }
+
+    private static String formatSize(long size) {
+        if (size >= GB && size % GB == 0) return size / GB + "G";
+        if (size >= MB && size % MB == 0) return size / MB + "M";
+        if (size >= 1024 && size % 1024 == 0) return size / 1024 + "K";
+        return String.valueOf(size);
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.network.Sender;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Loopback check of the caps: real downloads from an in-process {@link Sender} have to move at the
+ * configured rate. Rates are taken after the first quarter of a download, so the buckets' initial
+ * burst does not count.
+ */
+class BandwidthShaperTest {
+
+    private static final long MB = 1024L * 1024L;
+    private static final long FILE_SIZE = 32 * MB;
+    private static final double TOLERANCE = 0.10;
+
+    @TempDir
+    static Path dir;
+
+    private static File source;
+    private static Sender sender;
+    private static int port;
+
+    @BeforeAll
+    static void startSender() throws Exception {
+        source = dir.resolve("source.bin").toFile();
+        // Caps count wire bytes, so the data must not compress
+        byte[] block = new byte[(int) MB];
+        Random random = new Random(5);
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            for (long pos = 0; pos < FILE_SIZE; pos += block.length) {
+                random.nextBytes(block);
+                raf.write(block);
+            }
+        }
+        sender = new Sender(null, 0);
+        Thread serving = new Thread(() -> sender.startServing(source), "shaping-sender");
+        serving.setDaemon(true);
+        serving.start();
+        port = sender.awaitPort(5000);
+        assertTrue(port > 0, "sender did not start");
+    }
+
+    @AfterAll
+    static void stopSender() {
+        if (sender != null) sender.stop();
+    }
+
+    @Test
+    void senderGlobalCapHolds() throws Exception {
+        long cap = 8 * MB;
+        // The sender shapes with the process-wide shaper; the download below has an unlimited one
+        BandwidthShaper.shared().setGlobalRate(cap);
+        try {
+            Download download = new Download("127.0.0.1", 16 * MB, new BandwidthShaper(0, 0, 0).openTransfer());
+            download.run();
+            assertNear(cap, download.steadyRate(), "sender global cap");
+        } finally {
+            BandwidthShaper.shared().setGlobalRate(0);
+        }
+    }
+
+    @Test
+    void peerAndGlobalCapsHoldTogether() throws Exception {
+        long global = 16 * MB;
+        long peer = 4 * MB;
+        BandwidthShaper shaper = new BandwidthShaper(global, 0, 0);
+        shaper.setPeerRate("127.0.0.1", peer);
+
+        // Two peers at once: the capped one keeps to its cap, the other takes what is left of the global
+        // cap. The capped download is the longer one, so both caps apply all through the other's run
+        Download capped = new Download("127.0.0.1", 10 * MB, shaper.openTransfer());
+        Download other = new Download("127.0.0.2", 24 * MB, shaper.openTransfer());
+        ExecutorService runs = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> a = runs.submit(() -> { capped.run(); return null; });
+            Future<?> b = runs.submit(() -> { other.run(); return null; });
+            a.get(60, TimeUnit.SECONDS);
+            b.get(60, TimeUnit.SECONDS);
+        } finally {
+            runs.shutdownNow();
+        }
+        assertTrue(capped.doneAt > other.doneAt, "the capped download finished before the other one");
+        assertNear(peer, capped.steadyRate(), "peer cap");
+        assertNear(global - peer, other.steadyRate(), "rest of the global cap");
+    }
+
+    private static void assertNear(long expected, double measured, String what) {
+        double off = measured / expected - 1;
+        assertTrue(Math.abs(off) <= TOLERANCE, String.format("%s: expected %.1f MB/s, measured %.1f MB/s",
+                what, expected / 1e6, measured / 1e6));
+    }
+
+    /** The first {@code size} bytes of the source, fetched by two streams through one capped transfer. */
+    private static final class Download {
+        private static final int STREAMS = 2;
+
+        final String ip;
+        final long size;
+        final BandwidthShaper.Transfer transfer;
+        final long[] perStream = new long[STREAMS]; // guarded by this
+        volatile long quarterAt;
+        volatile long quarterBytes;
+        volatile long doneAt;
+
+        Download(String ip, long size, BandwidthShaper.Transfer transfer) {
+            this.ip = ip;
+            this.size = size;
+            this.transfer = transfer;
+        }
+
+        void run() throws Exception {
+            File target = dir.resolve("target-" + ip + "-" + size + ".bin").toFile();
+            Storage.preallocate(target, size);
+            ChunkScheduler scheduler = ChunkScheduler.forFile(size, MB);
+            ExecutorService pool = Executors.newFixedThreadPool(STREAMS);
+            try {
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (int i = 0; i < STREAMS; i++) {
+                    int stream = i;
+                    ChunkTransferTask task = new ChunkTransferTask(ip, port, target, scheduler, i,
+                            (current, total) -> progress(stream, current));
+                    task.shapedBy(transfer.flow(ip));
+                    futures.add(pool.submit(task));
+                }
+                for (Future<Boolean> f : futures) assertTrue(f.get(60, TimeUnit.SECONDS));
+                doneAt = System.nanoTime();
+            } finally {
+                pool.shutdownNow();
+            }
+            byte[] expected = new byte[(int) size];
+            try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+                raf.readFully(expected);
+            }
+            assertArrayEquals(expected, Files.readAllBytes(target.toPath()));
+        }
+
+        private synchronized void progress(int stream, long current) {
+            perStream[stream] = current;
+            if (quarterAt == 0) {
+                long moved = perStream[0] + perStream[1];
+                if (moved >= size / 4) {
+                    quarterAt = System.nanoTime();
+                    quarterBytes = moved;
+                }
+            }
+        }
+
+        double steadyRate() {
+            return (size - quarterBytes) / ((doneAt - quarterAt) / 1e9);
+        }
+    }
+}
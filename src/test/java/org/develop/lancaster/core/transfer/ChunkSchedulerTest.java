@@ -0,0 +1,113 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.network.Sender;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkSchedulerTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    void fastWorkersTakeTheSlowWorkersShare() throws Exception {
+        ChunkScheduler scheduler = ChunkScheduler.forFile(40 * MB, MB);
+        int workers = 4;
+        int[] taken = new int[workers];
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                int id = w;
+                // Worker 0 needs 200 ms per range, the others 5 ms
+                long perRange = id == 0 ? 200 : 5;
+                futures.add(pool.submit(() -> {
+                    ChunkRange r;
+                    while ((r = scheduler.next()) != null) {
+                        Thread.sleep(perRange);
+                        taken[id]++;
+                        scheduler.complete(r);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) f.get(30, TimeUnit.SECONDS);
+
+            assertTrue(scheduler.isDone());
+            assertEquals(40, taken[0] + taken[1] + taken[2] + taken[3]);
+            // A static split would leave 10 ranges to the slow worker
+            assertTrue(taken[0] <= 2, "slow worker took " + taken[0] + " ranges");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedRangeGoesToTheNextFreeWorker() throws Exception {
+        ChunkScheduler scheduler = ChunkScheduler.forFile(2 * MB, MB);
+        ChunkRange first = scheduler.next();
+        ChunkRange second = scheduler.next();
+        scheduler.retry(first, 0, new java.io.IOException("reset"));
+        assertEquals(first.getStart(), scheduler.next().getStart());
+        scheduler.complete(second);
+        assertNull(scheduler.tryNext());
+        assertNull(scheduler.getFailure());
+    }
+
+    @Test
+    void throttledStreamDoesNotHoldUpTheDownload(@TempDir Path dir) throws Exception {
+        long size = 32 * MB;
+        File source = dir.resolve("source.bin").toFile();
+        byte[] data = new byte[(int) size];
+        new Random(7).nextBytes(data);
+        Files.write(source.toPath(), data);
+        File target = dir.resolve("target.bin").toFile();
+        Storage.preallocate(target, size);
+
+        Sender sender = new Sender(null, 0);
+        Thread serving = new Thread(() -> sender.startServing(source));
+        serving.setDaemon(true);
+        serving.start();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            int port = sender.awaitPort(5000);
+            ChunkScheduler scheduler = ChunkScheduler.forFile(size, MB);
+            // Stream 0 is capped at 2 MB/s; the others run at loopback speed
+            BandwidthShaper shaper = new BandwidthShaper(0, 0, 0);
+            BandwidthShaper.Transfer slow = shaper.openTransfer();
+            slow.setRate(2 * MB);
+            AtomicLong slowBytes = new AtomicLong();
+
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                ChunkTransferTask task = new ChunkTransferTask("127.0.0.1", port, target, scheduler, i,
+                        i == 0 ? (current, total) -> slowBytes.set(current) : (current, total) -> {});
+                if (i == 0) task.shapedBy(slow.flow("127.0.0.1"));
+                futures.add(pool.submit(task));
+            }
+            for (Future<Boolean> f : futures) assertTrue(f.get(60, TimeUnit.SECONDS));
+
+            assertEquals(-1, Files.mismatch(source.toPath(), target.toPath()));
+            // With a fixed quarter each, the slow stream would have to move 8 MB
+            assertTrue(slowBytes.get() < 8 * MB, "slow stream moved " + slowBytes.get() + " bytes");
+        } finally {
+            pool.shutdownNow();
+            sender.stop();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.develop.lancaster.core.transfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DownloadQueueTest {
+
+    @Test
+    void downloadsTurnedAwayByAStoppedExecutorEndCancelled() {
+        // Takes the first download, then shuts down like the runtime's executor does
+        List<Runnable> accepted = new ArrayList<>();
+        Executor executor = task -> {
+            if (!accepted.isEmpty()) throw new RejectedExecutionException("shut down");
+            accepted.add(task);
+        };
+        DownloadQueue queue = new DownloadQueue(executor, 1, 1, 8, 8);
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+
+        DownloadQueue.Ticket first = queue.submit("10.0.0.1", DownloadQueue.PRIORITY_NORMAL,
+                new BandwidthShaper(0, 0, 0).openTransfer(), t -> ran.incrementAndGet(), cancelled::incrementAndGet);
+        DownloadQueue.Ticket second = queue.submit("10.0.0.1", DownloadQueue.PRIORITY_NORMAL,
+                new BandwidthShaper(0, 0, 0).openTransfer(), t -> ran.incrementAndGet(), cancelled::incrementAndGet);
+        assertEquals(DownloadQueue.State.RUNNING, first.state());
+        assertEquals(DownloadQueue.State.QUEUED, second.state());
+
+        // The first one finishing admits the second, which the executor turns away
+        accepted.get(0).run();
+
+        assertEquals(DownloadQueue.State.FINISHED, first.state());
+        assertEquals(DownloadQueue.State.CANCELLED, second.state());
+        assertEquals(1, ran.get());
+        assertEquals(1, cancelled.get());
+        assertEquals(0, queue.activeCount());
+        assertEquals(0, queue.queued().size());
+    }
+}
@@ -0,0 +1,48 @@
+package org.develop.lancaster.core.transfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HashIndexTest {
+
+    @Test
+    void parallelHashMatchesSequentialDigests(@TempDir Path dir) throws Exception {
+        // Several blocks and a short last one, so the hash is split across pool threads
+        byte[] data = new byte[9 * FileDigests.BLOCK_SIZE + 12345];
+        new Random(3).nextBytes(data);
+        File file = dir.resolve("data.bin").toFile();
+        Files.write(file.toPath(), data);
+
+        HashIndex index = new HashIndex(dir.resolve("hashes"));
+        // Twice: the second file reuses the pool threads' block buffers
+        for (int round = 0; round < 2; round++) {
+            HashIndex.Record record = index.get(file);
+            FileDigests expected = FileDigests.compute(file, data.length);
+            assertEquals(expected.getRoot(), record.getDigests().getRoot());
+            assertArrayEquals(contentDigest(data), record.getContentDigest());
+            data[data.length - 1]++;
+            Files.write(file.toPath(), data);
+            file.setLastModified(file.lastModified() + 2000);
+        }
+    }
+
+    // SHA-256 over the SHA-256 of every block
+    private static byte[] contentDigest(byte[] data) throws Exception {
+        MessageDigest whole = MessageDigest.getInstance("SHA-256");
+        for (int pos = 0; pos < data.length; pos += FileDigests.BLOCK_SIZE) {
+            MessageDigest block = MessageDigest.getInstance("SHA-256");
+            block.update(data, pos, Math.min(FileDigests.BLOCK_SIZE, data.length - pos));
+            whole.update(block.digest());
+        }
+        return whole.digest();
+    }
+}
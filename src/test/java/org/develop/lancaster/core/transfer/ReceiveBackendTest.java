@@ -0,0 +1,145 @@
+package org.develop.lancaster.core.transfer;
+
+import org.develop.lancaster.core.network.Sender;
+import org.develop.lancaster.core.util.TaskExecutors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the receive backends of the range workers ("buffered" and "mmap" with either unmap
+ * policy) by downloading files of several sizes over loopback from an in-process {@link Sender}.
+ * Every download has to arrive byte for byte; the median rate of each backend per size and the
+ * fastest one overall are printed. Tagged "large" (mvn -Plarge).
+ *
+ * Every download goes to a fresh folder that is deleted afterwards, so the page cache holds about the
+ * same amount of dirty data for each backend. Stream tuning is off, so all runs use the same count.
+ */
+class ReceiveBackendTest {
+
+    private static final long MB = 1024L * 1024L;
+    private static final long[] SIZES = {16 * MB, 256 * MB, 1024 * MB};
+    private static final int RUNS = 3;
+    // backend, unmap policy (null: not mapped)
+    private static final String[][] VARIANTS = {{"buffered", null}, {"mmap", "gc"}, {"mmap", "eager"}};
+    private static final String[] PROPERTIES = {"transfer.compression", "swarm.enabled", "transfer.streams.tune",
+            "transfer.receive.backend", "transfer.receive.mmap.unmap"};
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void clearOverrides() {
+        for (String key : PROPERTIES) System.clearProperty("lancaster." + key);
+    }
+
+    @Test
+    @Tag("large")
+    void everyBackendReceivesByteExact() throws Exception {
+        // Only the write path should differ: no compression, swarm or changing stream counts
+        System.setProperty("lancaster.transfer.compression", "off");
+        System.setProperty("lancaster.swarm.enabled", "false");
+        System.setProperty("lancaster.transfer.streams.tune", "false");
+
+        double[] totalSeconds = new double[VARIANTS.length];
+        System.out.printf("%-10s", "size");
+        for (String[] v : VARIANTS) System.out.printf("  %14s", label(v));
+        System.out.println();
+
+        for (long size : SIZES) {
+            File source = dir.resolve("source-" + size / MB + "M.bin").toFile();
+            writeRandom(source, size);
+            Sender sender = new Sender(null, 0);
+            try {
+                TaskExecutors.start("receive-sender", true, () -> sender.startServing(source));
+                int port = sender.awaitPort(10_000);
+                assertTrue(port > 0, "sender for " + source.getName() + " did not start");
+
+                System.out.printf("%-10s", size / MB + " MB");
+                for (int v = 0; v < VARIANTS.length; v++) {
+                    System.setProperty("lancaster.transfer.receive.backend", VARIANTS[v][0]);
+                    if (VARIANTS[v][1] != null) System.setProperty("lancaster.transfer.receive.mmap.unmap", VARIANTS[v][1]);
+                    double[] seconds = new double[RUNS];
+                    for (int r = 0; r < RUNS; r++) {
+                        seconds[r] = download(port, source, label(VARIANTS[v]));
+                        totalSeconds[v] += seconds[r];
+                    }
+                    Arrays.sort(seconds);
+                    System.out.printf("  %9.1f MB/s", size / seconds[RUNS / 2] / MB);
+                }
+                System.out.println();
+            } finally {
+                sender.stop();
+            }
+            Files.delete(source.toPath());
+        }
+
+        int best = 0;
+        for (int v = 1; v < VARIANTS.length; v++) if (totalSeconds[v] < totalSeconds[best]) best = v;
+        System.out.println("Fastest overall: " + label(VARIANTS[best]));
+    }
+
+    // Downloads the hosted file into a fresh folder; seconds until it is complete and verified
+    private double download(int port, File source, String backend) throws Exception {
+        Path target = Files.createDirectories(dir.resolve("out"));
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean succeeded = new AtomicBoolean();
+        long started = System.nanoTime();
+        new TransferManager(port).downloadFile("127.0.0.1", target.toString(), new ProgressListener() {
+            @Override
+            public void onProgress(long currentBytes, long totalBytes) {}
+
+            @Override
+            public void onFinished(boolean success) {
+                succeeded.set(success);
+                done.countDown();
+            }
+        });
+        long timeoutSeconds = 60 + source.length() / (10 * MB);
+        assertTrue(done.await(timeoutSeconds, TimeUnit.SECONDS), backend + ": download of " + source.getName() + " timed out");
+        double seconds = (System.nanoTime() - started) / 1e9;
+        assertTrue(succeeded.get(), backend + ": download of " + source.getName() + " failed");
+        assertEquals(-1, Files.mismatch(source.toPath(), target.resolve(source.getName())),
+                backend + ": " + source.getName() + " differs from its source");
+        deleteTree(target);
+        return seconds;
+    }
+
+    private static String label(String[] variant) {
+        return variant[1] == null ? variant[0] : variant[0] + "/" + variant[1];
+    }
+
+    private static void writeRandom(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[(int) MB];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long pos = 0; pos < size; pos += block.length) {
+                random.nextBytes(block);
+                raf.write(block, 0, (int) Math.min(block.length, size - pos));
+            }
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.develop.lancaster.core.transfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReorderBufferTest {
+
+    private static final int RANGE = 1024 * 1024;
+
+    @Test
+    void interleavedPiecesLandInPlace(@TempDir Path dir) throws Exception {
+        byte[] data = new byte[4 * RANGE];
+        new Random(11).nextBytes(data);
+        File target = dir.resolve("target.bin").toFile();
+        Storage.preallocate(target, data.length);
+
+        List<ChunkRange> ranges = new ArrayList<>();
+        for (int i = 0; i < 4; i++) ranges.add(new ChunkRange((long) i * RANGE, (long) (i + 1) * RANGE));
+        List<ChunkRange> committed = new ArrayList<>();
+        // A limit below the data in flight, so some of it is written early and slabs are reused
+        try (ReorderBuffer buffer = new ReorderBuffer(List.of(target), 2L * RANGE)) {
+            ranges.forEach(buffer::begin);
+            // Odd piece sizes, so pieces straddle slabs; the ranges arrive round-robin, last range first
+            int piece = 7919;
+            for (int off = 0; off < RANGE; off += piece) {
+                for (int r = ranges.size() - 1; r >= 0; r--) {
+                    long pos = ranges.get(r).getStart() + off;
+                    int n = Math.min(piece, RANGE - off);
+                    buffer.put(ranges.get(r), pos, ByteBuffer.wrap(data, (int) pos, n));
+                }
+            }
+            for (int r = ranges.size() - 1; r >= 0; r--) {
+                ChunkRange range = ranges.get(r);
+                buffer.whenWritten(range, () -> committed.add(range));
+            }
+        }
+
+        assertEquals(4, committed.size());
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    void abandonedRangeIsDroppedAndFetchedAgain(@TempDir Path dir) throws Exception {
+        byte[] data = new byte[2 * RANGE];
+        new Random(13).nextBytes(data);
+        File target = dir.resolve("target.bin").toFile();
+        Storage.preallocate(target, data.length);
+        ChunkRange first = new ChunkRange(0, RANGE);
+        ChunkRange second = new ChunkRange(RANGE, 2L * RANGE);
+
+        try (ReorderBuffer buffer = new ReorderBuffer(List.of(target), 4L * RANGE)) {
+            buffer.begin(first);
+            buffer.begin(second);
+            // The second range waits behind the first, which fails halfway and comes again
+            buffer.put(second, RANGE, ByteBuffer.wrap(data, RANGE, RANGE));
+            buffer.put(first, 0, ByteBuffer.wrap(new byte[RANGE / 2]));
+            buffer.abandon(first);
+            buffer.begin(first);
+            buffer.put(first, 0, ByteBuffer.wrap(data, 0, RANGE));
+            buffer.whenWritten(first, () -> {});
+            buffer.whenWritten(second, () -> {});
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+}
@@ -0,0 +1,61 @@
+package org.develop.lancaster.core.transfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferJournalTest {
+
+    private static final long SIZE = 100L * 1024;
+
+    @Test
+    void reopenedJournalResumesAfterCommittedRanges(@TempDir Path dir) throws Exception {
+        File dest = dir.resolve("file.bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(dest, "rw")) {
+            raf.setLength(SIZE);
+        }
+        TransferJournal journal = TransferJournal.open(dest, SIZE, 42);
+        // Enough ranges for several background flushes while more are recorded
+        for (long pos = 0; pos < SIZE / 2; pos += 256) journal.markComplete(new ChunkRange(pos, pos + 256));
+        journal.close();
+
+        TransferJournal reopened = TransferJournal.open(dest, SIZE, 42);
+        try {
+            assertTrue(reopened.isResumed());
+            assertEquals(SIZE / 2, reopened.completedBytes());
+            List<ChunkRange> missing = reopened.missingRanges(SIZE);
+            assertEquals(1, missing.size());
+            assertEquals(SIZE / 2, missing.get(0).getStart());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void changedSourceStartsOver(@TempDir Path dir) throws Exception {
+        File dest = dir.resolve("file.bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(dest, "rw")) {
+            raf.setLength(SIZE);
+        }
+        TransferJournal journal = TransferJournal.open(dest, SIZE, 1);
+        journal.markComplete(new ChunkRange(0, 1024));
+        journal.close();
+
+        TransferJournal reopened = TransferJournal.open(dest, SIZE, 2);
+        try {
+            assertFalse(reopened.isResumed());
+            assertEquals(0, reopened.completedBytes());
+        } finally {
+            reopened.finish();
+        }
+        assertFalse(TransferJournal.journalFileFor(dest).exists());
+    }
+}